@@ -0,0 +1,60 @@
+#!/usr/bin/env bash
+#
+# Copyright (c) NeoForged
+# SPDX-License-Identifier: LGPL-2.1-only
+#
+# Generates a few versions with a coordinator and two --worker processes sharing a fresh local cache, and checks that
+# every process exits cleanly and that the last version got committed.
+#
+# Usage: scripts/coordinator-workers.sh [start version] [target version]
+# The logs, the cache and the output repository are left in the printed directory.
+
+set -euo pipefail
+cd "$(dirname "$0")/.."
+
+start=${1:-1.21.1}
+target=${2:-1.21.3}
+work=$(mktemp -d)
+echo "Working in $work"
+
+./gradlew -q shadowJar
+jar=$(ls build/libs/snowblower-*-all.jar | head -n 1)
+port=$((20000 + RANDOM % 10000))
+
+java -jar "$jar" --output "$work/output" --cache "$work/cache" --start-ver "$start" --target-ver "$target" --releases-only \
+    --coordinator-port "$port" > "$work/coordinator.log" 2>&1 &
+coordinator=$!
+trap 'kill $(jobs -p) 2> /dev/null || true' EXIT
+
+# Workers stop as soon as they can't reach the coordinator, so wait for it to listen first
+until (exec 3<> "/dev/tcp/127.0.0.1/$port") 2> /dev/null; do
+    if ! kill -0 "$coordinator" 2> /dev/null; then
+        echo "Coordinator exited before listening, see $work/coordinator.log" >&2
+        exit 1
+    fi
+    sleep 1
+done
+
+workers=()
+for i in 1 2; do
+    java -jar "$jar" --cache "$work/cache" --worker "http://127.0.0.1:$port" > "$work/worker-$i.log" 2>&1 &
+    workers+=($!)
+done
+
+status=0
+wait "$coordinator" || { echo "Coordinator failed, see $work/coordinator.log" >&2; status=1; }
+for i in "${!workers[@]}"; do
+    wait "${workers[$i]}" || { echo "Worker $((i + 1)) failed, see $work/worker-$((i + 1)).log" >&2; status=1; }
+done
+
+last=$(git -C "$work/output" log -1 --format=%s)
+if [ "$last" != "$target" ]; then
+    echo "Expected $target to be the last commit, but it is $last" >&2
+    status=1
+fi
+
+for i in "${!workers[@]}"; do
+    echo "Worker $((i + 1)) produced: $(grep -o 'Producing [^ ]*' "$work/worker-$((i + 1)).log" | cut -d ' ' -f 2 | tr '\n' ' ')"
+done
+git -C "$work/output" log --oneline
+exit $status
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower;
+
+import net.neoforged.snowblower.util.RunReport;
+import net.neoforged.snowblower.util.Util;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Benchmarks syncing a decompiled jar into the working tree, as done by {@link Generator#syncIndex} for every
+ * version, using generated jars instead of real ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IndexSyncBenchmark {
+    private static final int FILES = 5_000;
+    private static final RunReport.Stage STAGE = RunReport.stage(null, "sync");
+
+    /** The percentage of files that differ between consecutive versions. */
+    @Param({"0", "1", "10"})
+    public int changedPercent;
+
+    private Path dir;
+    private Git git;
+    private Path[] jars;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, GitAPIException {
+        this.dir = Files.createTempDirectory("snowblower-bench");
+        this.git = Git.init().setDirectory(this.dir.resolve("output").toFile()).call();
+        this.jars = new Path[]{createJar(this.dir.resolve("a.jar"), 0), createJar(this.dir.resolve("b.jar"), 1)};
+        sync(this.jars[0]);
+        sync(this.jars[1]);
+    }
+
+    private Path createJar(Path jar, int version) throws IOException {
+        int changeEvery = this.changedPercent == 0 ? Integer.MAX_VALUE : 100 / this.changedPercent;
+        try (var out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (int i = 0; i < FILES; i++) {
+                out.putNextEntry(new ZipEntry("net/minecraft/pkg" + (i % 50) + "/Class" + i + ".java"));
+                int content = this.changedPercent != 0 && i % changeEvery == 0 ? version : 0;
+                var source = new StringBuilder("package net.minecraft.pkg").append(i % 50).append(";\n\npublic class Class").append(i).append(" {\n");
+                for (int j = 0; j < 100; j++)
+                    source.append("    public int field").append(j).append(" = ").append(content).append(";\n");
+                out.write(source.append("}\n").toString().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.git.close();
+        Util.deleteRecursive(this.dir);
+    }
+
+    /**
+     * Syncs the other jar than last time, so every invocation sees {@link #changedPercent} of the files change.
+     */
+    @Benchmark
+    public int sync() throws IOException {
+        this.next ^= 1;
+        return sync(this.jars[this.next]);
+    }
+
+    private int sync(Path jar) throws IOException {
+        return Generator.syncIndex(this.git.getRepository(), STAGE, consumer -> Generator.forEachFile(jar, List.of(), List.of(), STAGE, consumer), Map.of());
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MinecraftVersionBenchmark {
+    // One of each format the manifest contains
+    private static final String[] VERSIONS = {
+            "1.21.4", "1.8", "24w14a", "1.20.5-pre1", "1.19-rc2", "1.14 Pre-Release 3", "26.1-snapshot-1",
+            "25w14craftmine", "26w14a", "b1.7.3", "rd-132211", "1.21.5-rc1_unobfuscated"
+    };
+
+    @Benchmark
+    public void from(Blackhole blackhole) {
+        for (var version : VERSIONS)
+            blackhole.consume(MinecraftVersion.from(version));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks;
+
+import net.neoforged.srgutils.IMappingFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MappingTaskBenchmark {
+    /** About the size of the client mappings of a recent version. */
+    private static final int CLIENT_CLASSES = 10_000;
+    private static final int SERVER_CLASSES = 7_000;
+    private static final int MEMBERS = 20;
+
+    private IMappingFile client;
+    private IMappingFile server;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.client = load(CLIENT_CLASSES);
+        this.server = load(SERVER_CLASSES);
+    }
+
+    /**
+     * Generates ProGuard mappings in the format Mojang publishes. The first {@code classes} classes are the same for
+     * any count, so the server mappings are a strict subset of the client mappings, which makes canMerge check everything.
+     */
+    private static IMappingFile load(int classes) throws IOException {
+        var buf = new StringBuilder();
+        for (int i = 0; i < classes; i++) {
+            buf.append("net.minecraft.world.level.Class").append(i).append(" -> c").append(i).append(":\n");
+            for (int j = 0; j < MEMBERS; j++) {
+                buf.append("    int field").append(j).append(" -> f").append(j).append('\n');
+                buf.append("    1:10:net.minecraft.world.level.Class").append((i + j) % classes)
+                        .append(" method").append(j).append("(int,java.lang.String) -> m").append(j).append('\n');
+            }
+        }
+        return IMappingFile.load(new ByteArrayInputStream(buf.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public boolean canMerge() {
+        return MappingTask.canMerge(this.client, this.server);
+    }
+}
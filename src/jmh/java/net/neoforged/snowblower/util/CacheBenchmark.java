@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheBenchmark {
+    private Path dir;
+    private Path jar;
+    private Path keyFile;
+    private Cache key;
+    private FileHashCache fileHashes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("snowblower-bench");
+        this.jar = this.dir.resolve("joined.jar");
+        var data = new byte[16 << 20];
+        new Random(42).nextBytes(data);
+        Files.write(this.jar, data);
+        Files.setLastModifiedTime(this.jar, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        this.fileHashes = FileHashCache.load(this.dir.resolve("file-hashes.txt"));
+
+        // Shaped like the key of DecompileTask
+        this.key = new Cache()
+                .comment("Decompiled jar key")
+                .put("vineflower", HashFunction.SHA1.hash("vineflower"))
+                .put("vineflower-plugins", HashFunction.SHA1.hash("vineflower-plugins"))
+                .put("joined", this.jar)
+                .put("decompileArgs", "--decompile-inner --remove-bridge --decompile-generics --ascii-strings --remove-synthetic");
+        for (int i = 0; i < 100; i++)
+            this.key.put("lib" + i, HashFunction.SHA1.hash("lib" + i));
+        this.keyFile = this.dir.resolve("joined-decompiled.jar.cache");
+        this.key.write(this.keyFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileHashCache.setInstance(null);
+        Util.deleteRecursive(this.dir);
+    }
+
+    @Benchmark
+    public Cache putPath() throws IOException {
+        FileHashCache.setInstance(null);
+        return new Cache().put("joined", this.jar);
+    }
+
+    @Benchmark
+    public Cache putPathMemoized() throws IOException {
+        FileHashCache.setInstance(this.fileHashes);
+        return new Cache().put("joined", this.jar);
+    }
+
+    @Benchmark
+    public boolean isValid() throws IOException {
+        return this.key.isValid(this.keyFile);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HashFunctionBenchmark {
+    /** Roughly the sizes of a library, a client jar and a decompiled jar. */
+    @Param({"1", "32", "128"})
+    public int sizeMb;
+
+    private Path dir;
+    private Path file;
+    private FileHashCache fileHashes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("snowblower-bench");
+        this.file = this.dir.resolve("input.jar");
+        var data = new byte[this.sizeMb << 20];
+        new Random(42).nextBytes(data);
+        Files.write(this.file, data);
+        // Old enough that the file hash cache trusts it
+        Files.setLastModifiedTime(this.file, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        this.fileHashes = FileHashCache.load(this.dir.resolve("file-hashes.txt"));
+        this.fileHashes.get(HashFunction.SHA1, this.file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(this.dir);
+    }
+
+    @Benchmark
+    public String sha1() throws IOException {
+        return HashFunction.SHA1.hash(this.file);
+    }
+
+    @Benchmark
+    public Map<HashFunction, String> sha1AndMd5() throws IOException {
+        return HashFunction.hash(this.file, HashFunction.SHA1, HashFunction.MD5);
+    }
+
+    @Benchmark
+    public String sha1Memoized() throws IOException {
+        return this.fileHashes.get(HashFunction.SHA1, this.file);
+    }
+}
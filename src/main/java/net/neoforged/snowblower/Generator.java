@@ -11,16 +11,32 @@ import net.neoforged.snowblower.data.Version;
 import net.neoforged.snowblower.data.VersionManifestV2;
 import net.neoforged.snowblower.data.VersionManifestV2.VersionInfo;
 import net.neoforged.snowblower.github.GitHubActions;
+import net.neoforged.snowblower.jfr.GitEvent;
+import net.neoforged.snowblower.tasks.BundlerExtractTask;
 import net.neoforged.snowblower.tasks.DecompileTask;
 import net.neoforged.snowblower.tasks.MappingTask;
 import net.neoforged.snowblower.tasks.MergeRemapTask;
+import net.neoforged.snowblower.tasks.TaskGraph;
+import net.neoforged.snowblower.tasks.decompile.DecompileShards;
+import net.neoforged.snowblower.tasks.decompile.DecompileWorkerPool;
+import net.neoforged.snowblower.tasks.decompile.DecompiledClassCache;
+import net.neoforged.snowblower.tasks.decompile.LibraryIndex;
+import net.neoforged.snowblower.tasks.decompile.StreamingResultSaver;
 import net.neoforged.snowblower.tasks.enhance.EnhanceVersionTask;
 import net.neoforged.snowblower.tasks.init.InitTask;
 import net.neoforged.snowblower.util.ArtifactDiscoverer;
+import net.neoforged.snowblower.util.DecompileScheduler;
 import net.neoforged.snowblower.util.DependencyHashCache;
+import net.neoforged.snowblower.util.DownloadScheduler;
+import net.neoforged.snowblower.util.FileHashCache;
 import net.neoforged.snowblower.util.HashFunction;
+import net.neoforged.snowblower.util.IndexSync;
+import net.neoforged.snowblower.util.RunReport;
+import net.neoforged.snowblower.util.TreeCommitter;
 import net.neoforged.snowblower.util.UnobfuscatedVersions;
 import net.neoforged.snowblower.util.Util;
+import net.neoforged.snowblower.util.VersionCoordinator;
+import net.neoforged.snowblower.util.VersionWorker;
 import org.eclipse.jgit.api.CreateBranchCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ResetCommand.ResetType;
@@ -28,8 +44,11 @@ import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.PushResult;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.RemoteRefUpdate;
@@ -41,23 +60,33 @@ import org.slf4j.MDC;
 
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.URI;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -79,6 +108,7 @@ public class Generator implements AutoCloseable {
     private final DependencyHashCache depCache;
     private final List<String> includes;
     private final List<String> excludes;
+    private final FileHashCache fileHashes;
 
     private Git git;
     private String remoteName;
@@ -90,12 +120,34 @@ public class Generator implements AutoCloseable {
     private boolean startOver;
     private boolean startOverIfRequired;
     private boolean partialCache;
+    private boolean directTree;
+    @Nullable
+    private TreeCommitter treeCommitter;
     private boolean createdNewBranch;
     private MinecraftVersion startVer;
     private MinecraftVersion targetVer;
+    private int pipelineDepth;
+    @Nullable
+    private DecompileScheduler scheduler;
+    @Nullable
+    private DecompiledClassCache classCache;
+    @Nullable
+    private LibraryIndex libraryIndex;
+    @Nullable
+    private DecompileWorkerPool workers;
+    private int decompileShards = 1;
+    @Nullable
+    private Path scratch;
+    private boolean streamDecompile;
+    @Nullable
+    private VersionCoordinator coordinator;
+    private DownloadScheduler downloads = new DownloadScheduler(8);
 
-    public Generator(Path output, Path cache, Path extraMappings, DependencyHashCache depCache, List<String> includes, List<String> excludes) {
-        this.output = output.toAbsolutePath().normalize();
+    /**
+     * @param output the git repository, which may be {@code null} if the generator only {@linkplain #work works} for a coordinator
+     */
+    public Generator(@Nullable Path output, Path cache, Path extraMappings, DependencyHashCache depCache, List<String> includes, List<String> excludes) {
+        this.output = output == null ? null : output.toAbsolutePath().normalize();
         this.cache = cache.toAbsolutePath().normalize();
         this.extraMappings = extraMappings == null ? null : extraMappings.toAbsolutePath().normalize();
         this.depCache = depCache;
@@ -103,17 +155,20 @@ public class Generator implements AutoCloseable {
         this.excludes = new ArrayList<>(excludes);
         // Always exclude the manifest (it's included when using ProcessMinecraftJar from InstallerTools)
         this.excludes.add("META-INF/MANIFEST.MF");
+        this.fileHashes = FileHashCache.load(this.cache.resolve("file-hashes.txt"));
+        FileHashCache.setInstance(this.fileHashes);
     }
 
     public Generator setup(String branchName, @Nullable URIish remoteUrl, boolean checkout, boolean push, Config cfg, BranchSpec cliBranch,
-            boolean startOver, boolean startOverIfRequired, boolean partialCache) throws IOException, GitAPIException {
+            boolean startOver, boolean startOverIfRequired, boolean partialCache, boolean directTree) throws IOException, GitAPIException {
         try {
             this.git = Git.open(this.output.toFile());
         } catch (RepositoryNotFoundException e) { // I wish there was a better way to detect if it exists/is init
             if (branchName == null)
                 branchName = "releases";
             Util.deleteRecursive(this.output);
-            this.git = Git.init().setDirectory(this.output.toFile()).setInitialBranch(branchName).call();
+            // Nothing is written to the working tree in direct tree mode, so don't create one
+            this.git = Git.init().setDirectory(this.output.toFile()).setBare(directTree).setInitialBranch(branchName).call();
         }
 
         setupRemote(remoteUrl);
@@ -124,6 +179,7 @@ public class Generator implements AutoCloseable {
         this.startOver = startOver;
         this.startOverIfRequired = startOverIfRequired;
         this.partialCache = partialCache;
+        this.directTree = directTree;
         this.createdNewBranch = false;
 
         branchName = setupBranch(branchName, startOver);
@@ -147,6 +203,116 @@ public class Generator implements AutoCloseable {
         return this;
     }
 
+    /**
+     * Sets how many versions may be produced ahead of the version currently being committed.
+     * Zero (the default) produces and commits each version in turn on the calling thread.
+     */
+    public Generator setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 0)
+            throw new IllegalArgumentException("Pipeline depth must not be negative: " + pipelineDepth);
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    /**
+     * Produces up to {@code maxParallel} versions at the same time, limited by the estimated decompiler heap usage.
+     * See {@link DecompileScheduler}.
+     */
+    public Generator setParallelDecompiles(int maxParallel, int heapPerJarMb) {
+        if (this.scheduler != null)
+            this.scheduler.close();
+        this.scheduler = maxParallel > 1 ? new DecompileScheduler(maxParallel, heapPerJarMb) : null;
+        return this;
+    }
+
+    /**
+     * Sets how many downloads may run against the same host at once. See {@link DownloadScheduler}.
+     */
+    public Generator setDownloadsPerHost(int perHost) {
+        if (perHost < 1)
+            throw new IllegalArgumentException("Downloads per host must be positive: " + perHost);
+        this.downloads.close();
+        this.downloads = new DownloadScheduler(perHost);
+        return this;
+    }
+
+    /**
+     * Caches decompiled classes across versions, so that only classes which changed (or whose dependencies changed)
+     * are decompiled again. See {@link DecompiledClassCache}.
+     */
+    public Generator setClassCache(boolean enabled) {
+        this.classCache = enabled ? new DecompiledClassCache(this.cache.resolve("decompiled-classes")) : null;
+        return this;
+    }
+
+    /**
+     * Reads the decompiler's libraries from indexes that are created once per library and shared by every version,
+     * instead of from their jars. See {@link LibraryIndex}.
+     */
+    public Generator setLibraryIndex(boolean enabled) {
+        this.libraryIndex = enabled ? new LibraryIndex(this.cache.resolve("library-index")) : null;
+        return this;
+    }
+
+    /**
+     * Runs the decompiler in up to {@code workers} child processes instead of in this one, or in this one if {@code workers}
+     * is 0. Each worker gets {@code heapMb} of heap and {@code threads} decompiler threads, and is replaced after
+     * {@code jobsPerWorker} decompiles. See {@link DecompileWorkerPool}.
+     */
+    public Generator setDecompileWorkers(int workers, int heapMb, int threads, int jobsPerWorker) {
+        if (this.workers != null)
+            this.workers.close();
+        this.workers = workers > 0 ? new DecompileWorkerPool(workers, heapMb, threads, jobsPerWorker) : null;
+        return this;
+    }
+
+    /**
+     * Splits the decompile of each version into up to {@code shards} shards of whole packages, which are decompiled at
+     * the same time. See {@link DecompileShards}.
+     */
+    public Generator setDecompileShards(int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("Decompile shards must be positive: " + shards);
+        this.decompileShards = shards;
+        return this;
+    }
+
+    /**
+     * Sets where intermediate files that are deleted right after use are written, instead of the version's cache
+     * directory. See {@link MergeRemapTask#run}.
+     */
+    public Generator setScratchDirectory(@Nullable Path scratch) throws IOException {
+        if (scratch != null)
+            Files.createDirectories(scratch);
+        this.scratch = scratch;
+        return this;
+    }
+
+    /**
+     * Decompiles each version while it's being committed, passing the decompiled files straight to the sync instead of
+     * writing {@code joined-decompiled.jar} and reading it back. The jar is only written if the partial cache is used.
+     * Versions are then only produced ahead up to the joined jar, and the sync stage includes the decompile.
+     * See {@link DecompileTask#stream}.
+     */
+    public Generator setStreamDecompile(boolean streamDecompile) {
+        this.streamDecompile = streamDecompile;
+        return this;
+    }
+
+    /**
+     * Leaves producing the versions to {@link VersionWorker} processes sharing the cache directory, which are handed
+     * out versions over HTTP on the given port. This process only syncs and commits them in order.
+     * See {@link VersionCoordinator}.
+     *
+     * @param address the address to listen on, or {@code null} for the loopback address
+     */
+    public Generator setCoordinator(@Nullable InetAddress address, int port) throws IOException {
+        if (this.coordinator != null)
+            this.coordinator.close();
+        this.coordinator = new VersionCoordinator(address, port);
+        return this;
+    }
+
     private String setupBranch(@Nullable String branchName, boolean fresh) throws IOException, GitAPIException {
         // Find the current branch in case the command line didn't specify one.
         var currentBranch = git.getRepository().getBranch();
@@ -156,6 +322,9 @@ public class Generator implements AutoCloseable {
             branchName = currentBranch;
         }
 
+        if (this.directTree)
+            return setupBranchRef(branchName, fresh);
+
         boolean exists = git.getRepository().resolve(branchName) != null;
         boolean deleteTemp = false;
         if (fresh && exists) {
@@ -193,6 +362,50 @@ public class Generator implements AutoCloseable {
         return branchName;
     }
 
+    /**
+     * Sets up the branch for direct tree mode by only updating refs, as there is no working tree to check out.
+     */
+    private String setupBranchRef(String branchName, boolean fresh) throws IOException {
+        var repo = git.getRepository();
+        var refName = Constants.R_HEADS + branchName;
+        boolean exists = repo.resolve(refName) != null;
+        ObjectId remoteBranch = !fresh && this.checkout && this.remoteName != null ? repo.resolve(Constants.R_REMOTES + this.remoteName + "/" + branchName) : null;
+
+        boolean orphan = false;
+        if (fresh && exists) {
+            this.createdNewBranch = true;
+            if (!this.startOver && this.startOverIfRequired) {
+                LOGGER.info("Detected incompatible changes, starting over existing branch \"{}\"", branchName);
+            } else {
+                LOGGER.info("Starting over existing branch \"{}\"", branchName);
+            }
+            // The branch is replaced by the first commit instead of being deleted, which HEAD wouldn't allow
+            orphan = true;
+        } else if (remoteBranch != null) {
+            LOGGER.info("Checking out remote branch \"{}/{}\"", this.remoteName, branchName);
+            var update = repo.updateRef(refName);
+            update.setNewObjectId(remoteBranch);
+            update.setRefLogMessage("branch: Created from " + this.remoteName + "/" + branchName, false);
+            var result = update.forceUpdate();
+            if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED && result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.NO_CHANGE)
+                throw new IOException("Failed to update " + refName + " to remote branch: " + result);
+        } else {
+            this.createdNewBranch = !exists;
+            LOGGER.info("Using {} local branch \"{}\"", exists ? "existing" : "new", branchName);
+        }
+
+        // Point HEAD at the branch, so that it's used when reading the log and pushing
+        var head = repo.updateRef(Constants.HEAD);
+        head.disableRefLog();
+        head.link(refName);
+
+        if (this.treeCommitter != null)
+            this.treeCommitter.close();
+        this.treeCommitter = new TreeCommitter(repo, branchName, orphan);
+
+        return branchName;
+    }
+
     private boolean deleteBranch(String branchName, String currentBranch) throws GitAPIException {
         boolean deleteTemp = false;
 
@@ -257,6 +470,20 @@ public class Generator implements AutoCloseable {
         }
     }
 
+    /**
+     * Produces the versions handed out by the coordinator at the given URL into the cache, until it shuts down.
+     * No git repository is used, so {@link #setup} doesn't need to be called. See {@link VersionWorker}.
+     */
+    public void work(URI coordinator, boolean partialCache) throws IOException {
+        this.partialCache = partialCache;
+        var libs = this.cache.resolve("libraries");
+        new VersionWorker(coordinator).run(id -> {
+            var artifact = produce(id, libs);
+            // Streaming is not supported by workers, so there is always a jar if there is anything
+            return artifact.decompiled() == null ? null : this.cache.relativize(artifact.decompiled()).toString().replace('\\', '/');
+        });
+    }
+
     private void runInternal() throws IOException, GitAPIException {
         var manifest = VersionManifestV2.query();
         if (manifest.versions() == null)
@@ -272,7 +499,7 @@ public class Generator implements AutoCloseable {
         List<VersionInfo> filteredVersions = this.filterAndSetVersions(versions, manifest);
 
         // Validate the current metadata, and make initial commit if needed.
-        if (!InitTask.validateOrInit(this.output, git, startVer) && this.startOverIfRequired("The starting commit on this branch does not have matching metadata."
+        if (!validateOrInit() && this.startOverIfRequired("The starting commit on this branch does not have matching metadata."
                 + " This could be due to a different Snowblower version or a different starting Minecraft version."))
             return;
 
@@ -291,43 +518,150 @@ public class Generator implements AutoCloseable {
         }
 
         // Filter version list to only versions that have mappings
-        toGenerate = findVersionsWithMappings(toGenerate, cache, extraMappings);
+        try (var scope = RunReport.stage(null, "manifests").time()) {
+            toGenerate = findVersionsWithMappings(toGenerate);
+        }
 
         pushRemainingCommits(); // Push old commits in increments of 10 in case we didn't push them then
 
         var libs = this.cache.resolve("libraries");
 
-        ArtifactDiscoverer.downloadArtifacts(cache, libs, extraMappings, toGenerate, partialCache);
+        try (var scope = RunReport.stage(null, "downloads").time()) {
+            ArtifactDiscoverer.downloadArtifacts(this.downloads, cache, libs, extraMappings, toGenerate, partialCache);
+        }
 
         LOGGER.info("Generating {} versions: {}", toGenerate.size(), toGenerate.stream().map(VersionInfo::id).toList());
 
         boolean generatedAny = !toGenerate.isEmpty();
-        for (int x = 0; x < toGenerate.size(); x++) {
-            var versionInfo = toGenerate.get(x);
-            var versionCache = this.cache.resolve(versionInfo.id().toString());
-            Files.createDirectories(versionCache);
+        generateAll(toGenerate, libs);
 
-            try {
-                GitHubActions.logStartGroup(versionInfo.id());
-                LOGGER.info("[{}, {}] Generating {}", x + 1, toGenerate.size(), versionInfo.id());
-                MDC.put("mcver", " [" + versionInfo.id() + "]");
+        if (!attemptPush(generatedAny ? "Pushing remaining versions to remote." : "Pushing versions to remote.")) {
+            // If the push was up-to-date or skipped, check if no versions were processed and print.
+            if (!generatedAny)
+                LOGGER.info("No versions to process");
+        }
+    }
 
-                var version = Version.load(versionCache.resolve("version.json"));
-                generate(versionCache, libs, version);
+    /**
+     * Produces and commits every version in order. Producing a version (mappings, merging, remapping and decompiling)
+     * is independent of the git repository, so with a {@link #pipelineDepth} above zero up to that many versions are
+     * produced ahead on a separate thread while the current one is synced and committed. When parallel decompiles
+     * are enabled, the versions in that window are produced by the {@link DecompileScheduler} instead. With a
+     * {@link VersionCoordinator}, every version is queued for the workers right away.
+     * Commits are always made in the order of {@code toGenerate}.
+     */
+    private void generateAll(List<VersionInfo> toGenerate, Path libs) throws IOException, GitAPIException {
+        Deque<Future<Artifact>> pending = new ArrayDeque<>();
+        int lookahead = this.pipelineDepth;
+        ExecutorService producer = null;
+        if (this.coordinator != null) {
+            // However many workers there are, none of them should have to wait for the commits
+            lookahead = toGenerate.size();
+        } else if (this.scheduler != null) {
+            // Enough versions need to be queued for the scheduler to have a choice between them
+            lookahead = Math.max(lookahead, this.scheduler.getParallelism() * 2);
+        } else if (lookahead > 0) {
+            producer = Executors.newSingleThreadExecutor(r -> new Thread(r, "Snowblower-Producer"));
+        }
+
+        try {
+            int submitted = 0;
+            for (int x = 0; x < toGenerate.size(); x++) {
+                var versionInfo = toGenerate.get(x);
+                try {
+                    GitHubActions.logStartGroup(versionInfo.id());
+                    LOGGER.info("[{}, {}] Generating {}", x + 1, toGenerate.size(), versionInfo.id());
+                    MDC.put("mcver", " [" + versionInfo.id() + "]");
+
+                    // Keep the lookahead window filled; the queue never holds more than lookahead + 1 versions
+                    for (; submitted < toGenerate.size() && submitted <= x + lookahead; submitted++)
+                        pending.add(submit(producer, toGenerate.get(submitted), libs));
+
+                    var artifact = await(pending.remove());
+                    if (artifact.decompiled() != null || artifact.pending() != null) {
+                        if (this.directTree) {
+                            syncTree(artifact);
+                        } else {
+                            sync(artifact);
+                        }
+                    }
+                } finally {
+                    GitHubActions.logEndGroup();
+                    MDC.remove("mcver");
+                }
+
+                if (x % COMMIT_BATCH_SIZE == (COMMIT_BATCH_SIZE - 1)) { // Push every X versions
+                    attemptPush("Pushing " + COMMIT_BATCH_SIZE + " versions to remote.");
+                }
+            }
+        } finally {
+            // Don't let queued versions start if we are bailing out early
+            pending.forEach(f -> f.cancel(true));
+            if (producer != null)
+                producer.close();
+        }
+    }
+
+    private Future<Artifact> submit(@Nullable ExecutorService producer, VersionInfo versionInfo, Path libs) throws IOException {
+        var id = versionInfo.id().toString();
+        if (this.coordinator != null) {
+            var version = Version.load(this.cache.resolve(id).resolve("version.json"));
+            var expected = this.cache.resolve(id).resolve(DecompileTask.DECOMP_JAR_FILENAME).toAbsolutePath().normalize();
+            var future = this.coordinator.submit(id);
+            var ret = future.thenApply(path -> {
+                if (path == null)
+                    return new Artifact(version, null, null);
+                // Workers only ever publish the decompiled jar of the version they were handed out
+                var decompiled = this.cache.resolve(path).toAbsolutePath().normalize();
+                if (!decompiled.equals(expected))
+                    throw new CompletionException(new IOException("Worker reported " + path + " for " + id + " instead of " + expected));
+                return new Artifact(version, decompiled, null);
+            });
+            // Cancelling the derived future wouldn't take the version out of the coordinator's queue
+            ret.whenComplete((artifact, e) -> {
+                if (e instanceof CancellationException)
+                    future.cancel(false);
+            });
+            return ret;
+        }
+
+        if (producer == null && this.scheduler == null) {
+            // Not pipelining, so produce right away on the current thread
+            var future = new FutureTask<>(() -> produce(id, libs));
+            future.run();
+            return future;
+        }
+
+        Callable<Artifact> task = () -> {
+            MDC.put("mcver", " [" + versionInfo.id() + "]");
+            try {
+                return produce(id, libs);
             } finally {
-                GitHubActions.logEndGroup();
                 MDC.remove("mcver");
             }
+        };
 
-            if (x % COMMIT_BATCH_SIZE == (COMMIT_BATCH_SIZE - 1)) { // Push every X versions
-                attemptPush("Pushing " + COMMIT_BATCH_SIZE + " versions to remote.");
-            }
-        }
+        if (producer != null)
+            return producer.submit(task);
 
-        if (!attemptPush(generatedAny ? "Pushing remaining versions to remote." : "Pushing versions to remote.")) {
-            // If the push was up-to-date or skipped, check if no versions were processed and print.
-            if (!generatedAny)
-                LOGGER.info("No versions to process");
+        // The client jar is the bulk of joined.jar and is known before anything is downloaded, so use it to rank versions
+        var version = Version.load(this.cache.resolve(id).resolve("version.json"));
+        var client = version.downloads().get("client");
+        return this.scheduler.submit(client == null ? 0 : client.size(), task);
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for version to be produced", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException)
+                throw ioException;
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw new RuntimeException(e.getCause());
         }
     }
 
@@ -569,11 +903,21 @@ public class Generator implements AutoCloseable {
         // TODO: refactor the logging statements here to be... better (called outside of this method)
         LOGGER.info(message);
 
-        final var result = this.git.push()
-                .setRemote(this.remoteName)
-                .setForce(true)
-                .setRefSpecs(spec)
-                .call();
+        final Iterable<PushResult> result;
+        try (var scope = RunReport.stage(null, "push").time()) {
+            var event = new GitEvent("push");
+            event.begin();
+            result = this.git.push()
+                    .setRemote(this.remoteName)
+                    .setForce(true)
+                    .setRefSpecs(spec)
+                    .call();
+            event.end();
+            if (event.shouldCommit()) {
+                event.detail = spec.toString();
+                event.commit();
+            }
+        }
         RemoteRefUpdate remoteRefUpdate = StreamSupport.stream(result.spliterator(), false)
                 .map(res -> res.getRemoteUpdate("refs/heads/" + this.branchName))
                 .filter(Objects::nonNull)
@@ -589,19 +933,28 @@ public class Generator implements AutoCloseable {
         return remoteRefUpdate.getStatus() == RemoteRefUpdate.Status.OK;
     }
 
-    private static List<VersionInfo> findVersionsWithMappings(List<VersionInfo> versions, Path cache, Path extraMappings) throws IOException {
+    /**
+     * Returns the versions which have mappings, in order. The version jsons are checked and downloaded concurrently,
+     * limited by the {@link DownloadScheduler}.
+     */
+    private List<VersionInfo> findVersionsWithMappings(List<VersionInfo> versions) throws IOException {
         LOGGER.info("Downloading version manifests");
         GitHubActions.logStartGroup("Downloading version manifests");
 
-        List<VersionInfo> ret = new ArrayList<>();
+        List<CompletableFuture<Path>> jsons = new ArrayList<>(versions.size());
         for (var ver : versions) {
             // Download the version json file.
             var json = cache.resolve(ver.id().toString()).resolve("version.json");
-            if (!Files.exists(json) || !HashFunction.SHA1.hash(json).equals(ver.sha1())) {
-                Util.downloadFile(json, ver.url(), ver.sha1());
-            }
+            jsons.add(this.downloads.submit(json, ver.url(), () -> {
+                if (!Files.exists(json) || !FileHashCache.hash(HashFunction.SHA1, json).equals(ver.sha1()))
+                    Util.downloadFile(json, ver.url(), ver.sha1());
+            }));
+        }
 
-            Version fullVersion = Version.load(json);
+        List<VersionInfo> ret = new ArrayList<>();
+        for (int i = 0; i < versions.size(); i++) {
+            var ver = versions.get(i);
+            Version fullVersion = Version.load(DownloadScheduler.join(jsons.get(i)));
             var dls = fullVersion.downloads();
             if (dls.containsKey("client_mappings") && dls.containsKey("server_mappings")) {
                 ret.add(ver);
@@ -638,34 +991,123 @@ public class Generator implements AutoCloseable {
         return null;
     }
 
-    private void generate(Path cache, Path libCache, Version version) throws IOException, GitAPIException {
-        Path decomped = DecompileTask.checkPartialCache(cache, version, depCache, partialCache);
+    /**
+     * Produces the decompiled jar for a version. This does not touch the git repository, so it is safe to run ahead
+     * of the version currently being committed. The tasks run as a {@link TaskGraph}, so the mappings, the jar
+     * downloads and the libraries are handled in parallel.
+     */
+    private Artifact produce(String id, Path libCache) throws IOException {
+        var cache = this.cache.resolve(id);
+        Files.createDirectories(cache);
+
+        var version = Version.load(cache.resolve("version.json"));
+        var mappingTask = new MappingTask(cache, version);
+        var extractTask = new BundlerExtractTask(cache, version, depCache);
+        var mergeTask = new MergeRemapTask(cache, version, depCache, mappingTask);
+
+        // The partial cache deletes the client and server jars, so they are only downloaded again if the joined jar is out
+        // of date. A task's key is only final once the tasks before it are cached, so they are checked in order.
+        boolean joinedCached = false;
+        DecompileTask cachedDecompile = null;
+        if (partialCache) {
+            try (var scope = RunReport.stage(id, "partial-cache").time()) {
+                joinedCached = mappingTask.isCached() && mergeTask.isCached();
+                if (joinedCached) {
+                    LOGGER.debug("Hit partial cache for joined jar");
+                    cachedDecompile = new DecompileTask(cache, version, depCache, mergeTask.getOutput(), libCache,
+                            ArtifactDiscoverer.getLibraries(this.downloads, libCache, version));
+                    if (cachedDecompile.isCached()) {
+                        LOGGER.debug("Hit partial cache for decompiled jar");
+                        return new Artifact(version, cachedDecompile.getOutput(), null);
+                    }
+                }
+            }
+        }
 
-        if (decomped == null) {
-            var mappings = MappingTask.getMergedMappings(cache, version);
-            if (!version.isUnobfuscated() && mappings == null)
-                return;
+        var graph = new TaskGraph(id);
+        var mappings = graph.add(mappingTask, List.of(), mappingTask::run);
+        // Without mappings, obfuscated versions can't be remapped. Such versions are filtered out already, unless the mappings are broken
+        Predicate<Path> missing = m -> !version.isUnobfuscated() && m == null;
 
-            var joined = MergeRemapTask.getJoinedRemappedJar(cache, version, mappings, depCache, partialCache);
-            var libs = getLibraries(libCache, version);
-            decomped = DecompileTask.getDecompiledJar(cache, version, joined, libCache, libs, depCache);
+        TaskGraph.Node<Path> joined;
+        if (joinedCached) {
+            joined = graph.add(mergeTask, List.of(mappings), () -> missing.test(mappings.get()) ? null : mergeTask.getOutput());
+        } else {
+            var clientJar = graph.add("client-jar", () -> MergeRemapTask.downloadMinecraftJar("client", cache, version));
+            var serverFullJar = graph.add("server-jar", () -> MergeRemapTask.downloadMinecraftJar("server", cache, version));
+            var serverJar = graph.add(extractTask, List.of(mappings, serverFullJar),
+                    () -> missing.test(mappings.get()) ? null : extractTask.run(serverFullJar.get(), mappings.get()));
+            joined = graph.add(mergeTask, List.of(mappings, clientJar, serverFullJar, serverJar),
+                    () -> missing.test(mappings.get()) ? null : mergeTask.run(mappings.get(), clientJar.get(), serverFullJar.get(), serverJar.get(), partialCache, this.scratch));
         }
 
-        Path src = output.resolve("src").resolve("main");
-        Set<Path> existingFiles;
-        if (Files.exists(src)) {
-            try (Stream<Path> walker = Files.walk(src)) {
-                existingFiles = walker.filter(Files::isRegularFile).collect(Collectors.toSet());
+        var libs = graph.add("libraries", () -> ArtifactDiscoverer.getLibraries(this.downloads, libCache, version));
+        var knownDecompile = cachedDecompile;
+        if (this.streamDecompile) {
+            // The decompile happens during the sync, unless the jar is cached, see forEachFile
+            graph.run();
+            LOGGER.debug("Produced version in {}", graph.getTimings());
+            return new Artifact(version, null, getDecompileTask(cache, version, libCache, knownDecompile, joined, libs));
+        }
+
+        var decompiled = graph.add("decompile", List.of(joined, libs), () -> {
+            var task = getDecompileTask(cache, version, libCache, knownDecompile, joined, libs);
+            return task == null ? null : task.run(this.scheduler, this.classCache, this.libraryIndex, this.workers, this.decompileShards);
+        });
+
+        graph.run();
+        LOGGER.debug("Produced version in {}", graph.getTimings());
+
+        return new Artifact(version, decompiled.get(), null);
+    }
+
+    /**
+     * Returns the task decompiling the joined jar, or {@code null} if there is nothing to decompile. The task the partial
+     * cache already checked is reused along with its key, as the joined jar was cached and hasn't changed since.
+     */
+    @Nullable
+    private DecompileTask getDecompileTask(Path cache, Version version, Path libCache, @Nullable DecompileTask cached,
+            TaskGraph.Node<Path> joined, TaskGraph.Node<List<Path>> libs) throws IOException {
+        if (joined.get() == null)
+            return null;
+        return cached != null ? cached : new DecompileTask(cache, version, depCache, joined.get(), libCache, libs.get());
+    }
+
+    /**
+     * Passes every decompiled file of a version that matches the includes and excludes to {@code consumer}, along
+     * with its path in the repository. The files are read from the decompiled jar, or come straight from the
+     * decompiler if the version still has to be decompiled.
+     */
+    private void forEachFile(Artifact artifact, RunReport.Stage stage, StreamingResultSaver.Consumer consumer) throws IOException {
+        var pending = artifact.pending();
+        var decompiled = artifact.decompiled();
+        if (pending != null && pending.isCached()) {
+            LOGGER.debug("Using cached decompiled jar instead of decompiling");
+            decompiled = pending.getOutput();
+        }
+
+        if (decompiled == null && pending != null) {
+            // There is no decompiled jar to match the patterns against, but the joined jar is a zip file system as well
+            try (FileSystem zipFs = FileSystems.newFileSystem(pending.getJoined())) {
+                var matcher = createMatcher(zipFs, includes, excludes);
+                pending.stream(this.scheduler, this.libraryIndex, this.partialCache, (name, data) -> {
+                    if (matcher.matches(zipFs.getPath(name)))
+                        consumer.accept(getTarget(name), data);
+                });
             }
-        } else {
-            existingFiles = new HashSet<>();
+            return;
         }
-        var java = src.resolve("java");
-        var resources = src.resolve("resources");
-        List<Path> added = new ArrayList<>();
-        List<Path> removed = new ArrayList<>();
 
-        try (FileSystem zipFs = FileSystems.newFileSystem(decomped)) {
+        forEachFile(decompiled, this.includes, this.excludes, stage, consumer);
+    }
+
+    /**
+     * Passes every file of a decompiled jar that matches the includes and excludes to {@code consumer}, along with its
+     * path in the repository.
+     */
+    static void forEachFile(Path decompiled, List<String> includes, List<String> excludes, RunReport.Stage stage,
+                            StreamingResultSaver.Consumer consumer) throws IOException {
+        try (FileSystem zipFs = FileSystems.newFileSystem(decompiled)) {
             var matcher = createMatcher(zipFs, includes, excludes);
             var root = zipFs.getPath("/");
             try (Stream<Path> walker = Files.walk(root)) {
@@ -675,66 +1117,85 @@ public class Generator implements AutoCloseable {
                     if (!matcher.matches(relative))
                         continue;
 
-                    var target = (p.toString().endsWith(".java") ? java : resources).resolve(relative.toString());
-
-                    if (existingFiles.remove(target)) {
-                        boolean copy;
-                        Path realPath = target.toRealPath(LinkOption.NOFOLLOW_LINKS);
-                        if (!realPath.toString().equals(target.toString())) {
-                            Files.delete(realPath);
-                            removed.add(realPath);
-                            added.add(target);
-                            copy = true;
-                        } else {
-                            var existing = HashFunction.MD5.hash(target);
-                            var created = HashFunction.MD5.hash(p);
-                            copy = !existing.equals(created);
-                        }
-
-                        if (copy) {
-                            Files.copy(p, target, StandardCopyOption.REPLACE_EXISTING);
-                            added.add(target);
-                        }
-                    } else {
-                        Files.createDirectories(target.getParent());
-                        Files.copy(p, target, StandardCopyOption.REPLACE_EXISTING);
-                        added.add(target);
-                    }
+                    var data = Files.readAllBytes(p);
+                    stage.read(data.length);
+                    consumer.accept(getTarget(relative.toString()), data);
                 }
             }
         }
+    }
 
-        var enhanced = EnhanceVersionTask.enhance(output, version);
-        enhanced.forEach(existingFiles::remove);
-        added.addAll(enhanced);
+    private static String getTarget(String name) {
+        return (name.endsWith(".java") ? "src/main/java/" : "src/main/resources/") + name;
+    }
 
-        existingFiles.stream().sorted().forEach(p -> {
-            try {
-                Files.delete(p);
-                removed.add(p);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    /**
+     * Syncs the output directory with the decompiled files of a version and commits the result.
+     * Changes are detected against the index, see {@link IndexSync}.
+     */
+    private void sync(Artifact artifact) throws IOException, GitAPIException {
+        var version = artifact.version();
+        var stage = RunReport.stage(version.id().toString(), "sync");
+        int changed;
+        try (var scope = stage.time()) {
+            changed = syncIndex(git.getRepository(), stage, consumer -> forEachFile(artifact, stage, consumer), EnhanceVersionTask.getFiles(version));
+        }
+
+        if (changed > 0) {
+            LOGGER.debug("Committing {} changed files", changed);
+            try (var scope = RunReport.stage(version.id().toString(), "commit").time()) {
+                Util.commit(git, version.id().toString(), version.releaseTime());
             }
-        });
+        }
+    }
+
+    /**
+     * Writes the files passed on by {@code files}, followed by {@code extra}, to the working tree and the index, and
+     * removes the files of the last version that are gone.
+     *
+     * @return the number of files that were written or removed
+     */
+    static int syncIndex(Repository repo, RunReport.Stage stage, FileSource files, Map<String, byte[]> extra) throws IOException {
+        try (var index = new IndexSync(repo, "src/main/")) {
+            files.forEach(index::write);
 
-        if (!added.isEmpty() || !removed.isEmpty()) {
-            LOGGER.debug("Committing files");
-            Function<Path, String> convert = p -> output.relativize(p).toString().replace('\\', '/'); // JGit requires / even on windows
+            for (var file : extra.entrySet())
+                index.write(file.getKey(), file.getValue());
 
-            if (!added.isEmpty()) {
-                var add = git.add();
-                added.stream().map(convert).forEach(add::addFilepattern);
-                add.call();
-            }
-            if (!removed.isEmpty()) {
-                var rm = git.rm();
-                removed.stream().map(convert).forEach(rm::addFilepattern);
-                rm.call();
-            }
-            Util.commit(git, version.id().toString(), version.releaseTime());
+            int changed = index.finish();
+            stage.files(index.getAdded(), index.getChanged(), index.getRemoved());
+            return changed;
         }
     }
 
+    /**
+     * Commits the decompiled files of a version straight from the jar or decompiler, without a working tree. See {@link TreeCommitter}.
+     */
+    private void syncTree(Artifact artifact) throws IOException {
+        var version = artifact.version();
+        var enhanced = EnhanceVersionTask.getFiles(version);
+        // Everything in src/main is replaced by the jar contents, anything else is kept unless it's regenerated
+        var tree = this.treeCommitter.newTree(p -> !p.startsWith("src/main/") && !enhanced.containsKey(p));
+
+        var stage = RunReport.stage(version.id().toString(), "sync");
+        try (var scope = stage.time()) {
+            forEachFile(artifact, stage, tree::add);
+
+            for (var file : enhanced.entrySet())
+                tree.add(file.getKey(), file.getValue());
+        }
+
+        LOGGER.debug("Committing tree with {} changed files", tree.getChanged());
+        try (var scope = RunReport.stage(version.id().toString(), "commit").time()) {
+            tree.commit(version.id().toString(), version.releaseTime());
+        }
+        stage.files(tree.getAdded(), tree.getChanged() - tree.getAdded(), tree.getRemoved());
+    }
+
+    private boolean validateOrInit() throws IOException, GitAPIException {
+        return this.directTree ? InitTask.validateOrInit(this.treeCommitter, this.startVer) : InitTask.validateOrInit(this.output, this.git, this.startVer);
+    }
+
     /**
      * Returns {@code true} if an error occurred, either the user did not setup {@code --start-over-if-required}
      * or the initial commit task failed to validate/commit after recreating the branch.
@@ -743,7 +1204,7 @@ public class Generator implements AutoCloseable {
         if (this.startOverIfRequired) {
             this.setupBranch(this.branchName, true);
 
-            if (!InitTask.validateOrInit(this.output, this.git, this.startVer)) {
+            if (!validateOrInit()) {
                 LOGGER.error("Initial commit failed verification after restarting branch. This should never happen!");
                 return true;
             }
@@ -756,26 +1217,6 @@ public class Generator implements AutoCloseable {
         return true;
     }
 
-    private List<Path> getLibraries(Path cache, Version version) {
-        if (version.libraries() == null)
-            return Collections.emptyList();
-
-        var ret = new ArrayList<Path>();
-        for (var lib : version.libraries()) {
-            if (lib.downloads() == null || !lib.downloads().containsKey("artifact"))
-                continue;
-            var dl = lib.downloads().get("artifact");
-            var target = cache.resolve(dl.path());
-
-            if (!Files.exists(target))
-                continue; // Downloaded ahead of time by ArtifactDiscoverer
-
-            ret.add(target);
-        }
-
-        return ret;
-    }
-
     private static PathMatcher createMatcher(FileSystem fs, List<String> includes, List<String> excludes) {
         final PathMatcher matcher;
         if (!includes.isEmpty()) {
@@ -816,9 +1257,34 @@ public class Generator implements AutoCloseable {
         };
     }
 
+    /**
+     * A produced version, with either its decompiled jar or what's needed to decompile it while syncing.
+     * Neither is set if the version can't be decompiled.
+     */
+    private record Artifact(Version version, @Nullable Path decompiled, @Nullable DecompileTask pending) {}
+
+    /**
+     * Passes the files of a version to a consumer, along with their paths in the repository.
+     */
+    @FunctionalInterface
+    interface FileSource {
+        void forEach(StreamingResultSaver.Consumer consumer) throws IOException;
+    }
+
     @Override
     public void close() throws Exception {
+        this.downloads.close();
+        if (this.scheduler != null)
+            this.scheduler.close();
+        if (this.workers != null)
+            this.workers.close();
+        if (this.coordinator != null)
+            this.coordinator.close();
+        if (this.treeCommitter != null)
+            this.treeCommitter.close();
         if (this.git != null)
             this.git.close();
+        FileHashCache.setInstance(null);
+        this.fileHashes.save();
     }
 }
@@ -4,6 +4,8 @@
  */
 package net.neoforged.snowblower;
 
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -13,6 +15,8 @@ import net.neoforged.snowblower.data.MinecraftVersion;
 import net.neoforged.snowblower.github.GitHubAppCredentials;
 import net.neoforged.snowblower.github.GitHubActions;
 import net.neoforged.snowblower.util.DependencyHashCache;
+import net.neoforged.snowblower.util.HttpCache;
+import net.neoforged.snowblower.util.RunReport;
 import net.neoforged.snowblower.util.Util;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.transport.CredentialsProvider;
@@ -20,9 +24,11 @@ import org.eclipse.jgit.transport.URIish;
 
 import java.io.File;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
@@ -30,7 +36,7 @@ import java.util.List;
 public class Main {
     public static void main(String[] args) throws Exception {
         OptionParser parser = new OptionParser();
-        var outputO = parser.accepts("output", "Output directory to put the git directory in").withRequiredArg().ofType(File.class).required();
+        var outputO = parser.accepts("output", "Output directory to put the git directory in").requiredUnless("worker").withRequiredArg().ofType(File.class);
         var cacheO = parser.accepts("cache", "Cache directory to hold all files related to a version. If omitted, goes to ./cache").withRequiredArg().ofType(File.class);
         var extraMappingsO = parser.accepts("extra-mappings", "When set, points to a directory with extra mappings files").withRequiredArg().ofType(File.class);
         var startVerO = parser.accepts("start-ver", "The starting Minecraft version to generate from (inclusive). If omitted, defaults to oldest while respecting --releases-only").withRequiredArg();
@@ -45,6 +51,42 @@ public class Main {
         var checkoutO = parser.accepts("checkout", "Whether to checkout the remote branch (if it exists) before generating").availableIf("remote");
         var pushO = parser.accepts("push", "Whether to push the branch to the remote once finished").availableIf("remote");
         var committerO = parser.accepts("committer", "The name and email of the user to use as the committer, separated by a space. If omitted, defaults to snowforge").withRequiredArg();
+        var pipelineDepthO = parser.accepts("pipeline-depth", "How many versions may be decompiled ahead of the version currently being committed. 0 processes one version at a time")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        var maxParallelDecompilesO = parser.accepts("max-parallel-decompiles", "The maximum number of versions to decompile at the same time, further limited by the available heap")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        var decompileHeapO = parser.accepts("decompile-heap-per-mb", "The estimated heap in megabytes needed to decompile each megabyte of a joined jar, used to limit parallel decompiles")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(96);
+        var downloadsPerHostO = parser.accepts("downloads-per-host", "The maximum number of concurrent downloads from a single host")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(8);
+        var classCacheO = parser.accepts("class-cache", "If present, decompiled classes are cached individually and reused by later versions in which neither the class nor the signatures of the types it uses changed");
+        var libraryIndexO = parser.accepts("library-index", "If present, the classes of each library are indexed once into the cache directory, and the decompiler reads the libraries from there instead of from their jars");
+        var streamDecompileO = parser.accepts("stream-decompile", "If present, the decompiled files of each version are committed while it's being decompiled, instead of being written to a jar and read back. The jar is still written with --partial-cache")
+                .availableUnless(classCacheO);
+        var decompileWorkersO = parser.accepts("decompile-workers", "The number of child processes to run the decompiler in, each running one decompile at a time. 0 decompiles in this process. Unless set, --max-parallel-decompiles defaults to this")
+                .availableUnless(streamDecompileO).withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        var decompileWorkerHeapO = parser.accepts("decompile-worker-heap", "The maximum heap in megabytes of each decompiler worker process")
+                .availableIf(decompileWorkersO).withRequiredArg().ofType(Integer.class).defaultsTo(4096);
+        var decompileWorkerThreadsO = parser.accepts("decompile-worker-threads", "The number of decompiler threads in each decompiler worker process. If omitted, the available cores are split between the workers")
+                .availableIf(decompileWorkersO).withRequiredArg().ofType(Integer.class);
+        var decompileWorkerJobsO = parser.accepts("decompile-worker-jobs", "How many decompiles a decompiler worker process runs before it's replaced by a new one")
+                .availableIf(decompileWorkersO).withRequiredArg().ofType(Integer.class).defaultsTo(20);
+        var decompileShardsO = parser.accepts("decompile-shards", "How many shards of whole packages to split the decompile of each version into, which are decompiled at the same time. 1 decompiles each version in one go")
+                .availableUnless(streamDecompileO).withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        var coordinatorO = parser.accepts("coordinator-port", "If present, versions are produced by --worker processes using the same cache directory, which are handed out versions on the given port. This process only commits them in order")
+                .availableUnless(streamDecompileO).withRequiredArg().ofType(Integer.class);
+        var coordinatorAddressO = parser.accepts("coordinator-address", "The address to listen on for --worker processes, such as 0.0.0.0 for all interfaces. If omitted, only workers on this machine can connect")
+                .availableIf(coordinatorO).withRequiredArg();
+        var workerO = parser.accepts("worker", "The URL of a coordinator started with --coordinator-port. If present, this process produces the versions handed out by the coordinator into the cache directory, until the coordinator is done")
+                .availableUnless(coordinatorO, streamDecompileO).withRequiredArg().ofType(URI.class);
+        var directTreeO = parser.accepts("direct-tree", "If present, commits are written straight from the decompiled jars without a working tree, so the output may be a bare repository");
+        var scratchO = parser.accepts("scratch-dir", "A directory for intermediate files that are deleted right after use, such as the merged obfuscated jar. Pointing this at a memory-backed file system like /dev/shm keeps them off the disk. If omitted, they are written to the cache directory")
+                .withRequiredArg().ofType(File.class);
+        var reportO = parser.accepts("report", "Where to write a JSON report with the time, I/O and cache hits of every stage. If omitted, goes to run-report.json in the cache directory")
+                .withRequiredArg().ofType(File.class);
+        var jfrO = parser.accepts("jfr", "If present, records the run with JDK Flight Recorder, including the events of every stage, to the given file. If no file is given, goes to snowblower.jfr in the cache directory")
+                .withOptionalArg().ofType(File.class);
+        var offlineO = parser.accepts("offline", "If present, nothing is downloaded and everything has to come from the cache, including the version manifest").availableUnless("remote");
         var partialCacheO = parser.accepts("partial-cache", "If present, the cache will be partial, meaning that the server and client jar will be deleted, leaving only the joined jar. The SHA1 hashes in the version manifest will be used to determine whether the joined jar should be remade");
 
         var excludeO = parser.accepts("exclude", "A glob pattern (see FileSystem#getPathMatcher) for excluding files from the output").withRequiredArg().ofType(String.class);
@@ -84,11 +126,35 @@ public class Main {
         boolean startOver = options.has(startOverO);
         boolean startOverIfRequired = !startOver && options.has(startOverIfRequiredO);
         boolean partialCache = options.has(partialCacheO);
+        boolean directTree = options.has(directTreeO);
         URIish remote = options.has(remoteO) ? options.valueOf(remoteO) : null;
         boolean checkout = options.has(checkoutO);
         boolean push = options.has(pushO);
         List<String> includes = options.valuesOf(includeO);
         List<String> excludes = options.valuesOf(excludeO);
+        int pipelineDepth = options.valueOf(pipelineDepthO);
+        int decompileWorkers = options.valueOf(decompileWorkersO);
+        int decompileWorkerHeap = options.valueOf(decompileWorkerHeapO);
+        int decompileWorkerThreads = options.has(decompileWorkerThreadsO) ? options.valueOf(decompileWorkerThreadsO)
+                : Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, decompileWorkers));
+        int decompileWorkerJobs = options.valueOf(decompileWorkerJobsO);
+        // The workers can only be kept busy if as many versions are produced at once
+        int maxParallelDecompiles = options.has(maxParallelDecompilesO) || decompileWorkers < 1 ? options.valueOf(maxParallelDecompilesO) : decompileWorkers;
+        int decompileHeapPerMb = options.valueOf(decompileHeapO);
+        int decompileShards = options.valueOf(decompileShardsO);
+        int downloadsPerHost = options.valueOf(downloadsPerHostO);
+        boolean classCache = options.has(classCacheO);
+        boolean libraryIndex = options.has(libraryIndexO);
+        boolean streamDecompile = options.has(streamDecompileO);
+        boolean offline = options.has(offlineO);
+        Integer coordinatorPort = options.valueOf(coordinatorO);
+        InetAddress coordinatorAddress = options.has(coordinatorAddressO) ? InetAddress.getByName(options.valueOf(coordinatorAddressO)) : null;
+        URI worker = options.valueOf(workerO);
+        Path scratchPath = options.has(scratchO) ? options.valueOf(scratchO).toPath() : null;
+        // Workers share the cache directory with the coordinator and each other
+        String reportName = worker == null ? "run-report.json" : "run-report-worker-" + ProcessHandle.current().pid() + ".json";
+        Path reportPath = options.has(reportO) ? options.valueOf(reportO).toPath() : cachePath.resolve(reportName);
+        Path jfrPath = !options.has(jfrO) ? null : options.hasArgument(jfrO) ? options.valueOf(jfrO).toPath() : cachePath.resolve("snowblower.jfr");
 
         var startVer = options.has(startVerO) ? MinecraftVersion.from(options.valueOf(startVerO)) : null;
         var targetVer = options.has(targetVerO) ? MinecraftVersion.from(options.valueOf(targetVerO)) : null;
@@ -97,6 +163,7 @@ public class Main {
         String branchName = options.valueOf(branchNameO);
 
         GitHubActions.setEnvironment(Boolean.parseBoolean(System.getenv("GITHUB_ACTIONS")));
+        HttpCache.setInstance(new HttpCache(cachePath.resolve("http"), offline));
 
         Config cfg;
         if (options.has(configO)) {
@@ -122,6 +189,11 @@ public class Main {
             }
         }
 
+        if (streamDecompile && maxParallelDecompiles > 1) {
+            // Streamed versions are decompiled one at a time while committing, so there would be nothing to run in parallel
+            throw new IllegalArgumentException("--stream-decompile can't be combined with --max-parallel-decompiles");
+        }
+
         if (options.has(committerO)) {
             final String[] committer = options.valueOf(committerO).split(" ");
             if (committer.length != 2) {
@@ -130,9 +202,48 @@ public class Main {
             Util.COMMITTER = new PersonIdent(committer[0], committer[1]);
         }
 
-        try (var gen = new Generator(output.toPath(), cachePath, extraMappingsPath, depCache, includes, excludes)) {
-            gen.setup(branchName, remote, checkout, push, cfg, cliBranch, startOver, startOverIfRequired, partialCache);
-            gen.run();
+        Recording recording = null;
+        if (jfrPath != null) {
+            if (jfrPath.getParent() != null)
+                Files.createDirectories(jfrPath.getParent());
+            // The profile settings include allocation and lock samples, which is what the decompiler needs to be looked at with
+            recording = new Recording(Configuration.getConfiguration("profile"));
+            recording.setName("Snowblower");
+            recording.setToDisk(true);
+            recording.setDestination(jfrPath);
+            recording.start();
+        }
+
+        var report = new RunReport();
+        RunReport.setInstance(report);
+        try (var gen = new Generator(output == null ? null : output.toPath(), cachePath, extraMappingsPath, depCache, includes, excludes)) {
+            gen.setPipelineDepth(pipelineDepth)
+                    .setParallelDecompiles(maxParallelDecompiles, decompileHeapPerMb)
+                    .setDecompileWorkers(decompileWorkers, decompileWorkerHeap, decompileWorkerThreads, decompileWorkerJobs)
+                    .setDecompileShards(decompileShards)
+                    .setDownloadsPerHost(downloadsPerHost)
+                    .setClassCache(classCache)
+                    .setLibraryIndex(libraryIndex)
+                    .setStreamDecompile(streamDecompile)
+                    .setScratchDirectory(scratchPath);
+
+            if (worker != null) {
+                gen.work(worker, partialCache);
+            } else {
+                gen.setup(branchName, remote, checkout, push, cfg, cliBranch, startOver, startOverIfRequired, partialCache, directTree);
+                if (coordinatorPort != null)
+                    gen.setCoordinator(coordinatorAddress, coordinatorPort);
+                gen.run();
+            }
+        } finally {
+            // Also written for failed runs, as those are the ones that need looking into
+            RunReport.setInstance(null);
+            report.write(reportPath);
+            GitHubActions.writeStepSummary(report.toMarkdown());
+            if (recording != null) {
+                recording.stop(); // Writes the recording to its destination
+                recording.close();
+            }
         }
     }
 }
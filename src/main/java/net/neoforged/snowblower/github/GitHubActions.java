@@ -7,6 +7,11 @@ package net.neoforged.snowblower.github;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 public class GitHubActions {
     private static final Logger LOGGER = LoggerFactory.getLogger(GitHubActions.class);
     private static boolean githubActions;
@@ -25,4 +30,11 @@ public class GitHubActions {
         if (githubActions)
             LOGGER.info("::endgroup::");
     }
+
+    // https://docs.github.com/en/actions/reference/workflows-and-actions/workflow-commands#adding-a-job-summary
+    public static void writeStepSummary(String markdown) throws IOException {
+        var summary = System.getenv("GITHUB_STEP_SUMMARY");
+        if (githubActions && summary != null && !summary.isEmpty())
+            Files.writeString(Path.of(summary), markdown, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
 }
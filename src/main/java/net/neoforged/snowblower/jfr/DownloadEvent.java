@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emitted for every file that is downloaded, including failed downloads.
+ */
+@Name("net.neoforged.snowblower.Download")
+@Label("Download")
+@Category("Snowblower")
+@StackTrace(false)
+public class DownloadEvent extends Event {
+    @Label("Version")
+    @Description("The Minecraft version that first needed the file, or empty if it was needed by the whole run")
+    public String version;
+
+    @Label("URL")
+    public String url;
+
+    @Label("File")
+    public String file;
+
+    @Label("Size")
+    @Description("The expected size of the file, or -1 if it isn't known")
+    @DataAmount
+    public long size;
+
+    @Label("Bytes Downloaded")
+    @Description("The bytes transferred, which is less than the size if an earlier attempt was resumed")
+    @DataAmount
+    public long bytesDownloaded;
+
+    @Label("Resumed")
+    @Description("Whether a partial download from an earlier run was resumed")
+    public boolean resumed;
+
+    @Label("Ranges")
+    @Description("How many ranges were downloaded in parallel, or 1 for a sequential download")
+    public int ranges;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import net.neoforged.snowblower.util.RunReport;
+
+/**
+ * Emitted for every git operation: updating the index, adding files, committing and pushing.
+ */
+@Name("net.neoforged.snowblower.Git")
+@Label("Git Operation")
+@Category("Snowblower")
+@StackTrace(false)
+public class GitEvent extends Event {
+    @Label("Version")
+    @Description("The Minecraft version being committed, or empty for operations of the whole run")
+    public String version;
+
+    @Label("Operation")
+    @Description("One of index, add, commit, commit-tree or push")
+    public String operation;
+
+    @Label("Files Added")
+    public int filesAdded;
+
+    @Label("Files Changed")
+    public int filesChanged;
+
+    @Label("Files Removed")
+    public int filesRemoved;
+
+    @Label("Bytes Written")
+    @Description("The size of the files and blobs written")
+    @DataAmount
+    public long bytesWritten;
+
+    @Label("Detail")
+    @Description("The commit message, the added file or the pushed ref spec")
+    public String detail;
+
+    /**
+     * Creates an event for the version of the {@link RunReport#current() current stage}.
+     */
+    public GitEvent(String operation) {
+        var version = RunReport.current().getVersion();
+        this.version = version == null ? "" : version;
+        this.operation = operation;
+    }
+}
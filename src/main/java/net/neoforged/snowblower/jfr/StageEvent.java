@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emitted for every stage of a run, like the tasks producing a version, syncing it and pushing. Stages that are made
+ * up of several steps, like merging and remapping, emit an event for each step as well.
+ */
+@Name("net.neoforged.snowblower.Stage")
+@Label("Stage")
+@Category("Snowblower")
+@Description("A stage of producing or committing a version")
+@StackTrace(false)
+public class StageEvent extends Event {
+    @Label("Version")
+    @Description("The Minecraft version, or empty for stages of the whole run")
+    public String version;
+
+    @Label("Stage")
+    public String stage;
+
+    @Label("Bytes Read")
+    @Description("The size of the artifacts read, like the jars being merged or decompiled")
+    @DataAmount
+    public long bytesRead;
+
+    @Label("Bytes Written")
+    @Description("The size of the artifacts written")
+    @DataAmount
+    public long bytesWritten;
+
+    @Label("Bytes Downloaded")
+    @DataAmount
+    public long bytesDownloaded;
+
+    @Label("Cache Hits")
+    public int cacheHits;
+
+    @Label("Cache Misses")
+    public int cacheMisses;
+
+    @Label("Cache Hit")
+    @Description("Whether the output of the stage came from the cache, which is the case if no cache check missed")
+    public boolean cacheHit;
+}
@@ -8,45 +8,56 @@ import net.neoforged.installertools.BundlerExtract;
 import net.neoforged.snowblower.data.Version;
 import net.neoforged.snowblower.util.Cache;
 import net.neoforged.snowblower.util.DependencyHashCache;
+import net.neoforged.snowblower.util.RunReport;
 import net.neoforged.snowblower.util.Tools;
-import net.neoforged.srgutils.IMappingFile;
+import net.neoforged.snowblower.util.Util;
+import net.neoforged.snowblower.util.ZipFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.Map;
+import java.util.function.Predicate;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.stream.Stream;
 
-public class BundlerExtractTask {
+public class BundlerExtractTask extends CachedTask {
     public static final String SERVER_EXTRACTED_JAR_FILENAME = "server-extracted.jar";
     public static final String SERVER_EXTRACTED_JAR_CACHE_FILENAME = SERVER_EXTRACTED_JAR_FILENAME + ".cache";
     private static final Logger LOGGER = LoggerFactory.getLogger(BundlerExtractTask.class);
     private static final Attributes.Name FORMAT = new Attributes.Name("Bundler-Format");
 
-    private static Cache getKey(Version version, DependencyHashCache depCache) {
-        return new Cache()
-                .put(Tools.INSTALLERTOOLS, depCache)
-                .put("server", version.downloads().get("server").sha1());
-    }
+    private final Version version;
+    private final DependencyHashCache depCache;
 
-    public static boolean inPartialCache(Path cache, Version version, DependencyHashCache depCache) throws IOException {
-        var key = getKey(version, depCache);
-        var keyF = cache.resolve(SERVER_EXTRACTED_JAR_CACHE_FILENAME);
+    public BundlerExtractTask(Path cache, Version version, DependencyHashCache depCache) {
+        super("bundler-extract", cache.resolve(SERVER_EXTRACTED_JAR_FILENAME), cache.resolve(SERVER_EXTRACTED_JAR_CACHE_FILENAME));
+        this.version = version;
+        this.depCache = depCache;
+    }
 
-        return Files.exists(keyF) && key.isValid(keyF);
+    @Override
+    protected Cache computeKey() {
+        return new Cache()
+                .put(Tools.INSTALLERTOOLS, this.depCache)
+                .put("server", this.version.downloads().get("server").sha1());
     }
 
-    public static Path getExtractedServerJar(Path cache, Version version, Path serverJar, DependencyHashCache depCache, Path mappingsPath) throws IOException {
+    /**
+     * Extracts the server jar from the bundler, or strips the shaded libraries from {@code serverJar} for versions
+     * that predate the bundler.
+     *
+     * @param serverJar the full server jar, downloaded by {@link MergeRemapTask#downloadMinecraftJar}
+     * @param mappingsPath the output of {@link MappingTask}
+     */
+    public Path run(Path serverJar, Path mappingsPath) throws IOException {
         boolean bundled = true;
         try (FileSystem fs = FileSystems.newFileSystem(serverJar, Map.of())) {
             Path mfp = fs.getPath("META-INF", "MANIFEST.MF");
@@ -64,28 +75,23 @@ public class BundlerExtractTask {
             }
         }
 
-        var key = getKey(version, depCache);
-        var keyF = cache.resolve(SERVER_EXTRACTED_JAR_CACHE_FILENAME);
-        var extractedServerJar = cache.resolve(SERVER_EXTRACTED_JAR_FILENAME);
+        var extractedServerJar = getOutput();
 
-        if (!Files.exists(extractedServerJar) || !key.isValid(keyF)) {
+        if (!isCached()) {
             LOGGER.debug("Extracting server jar");
 
             if (bundled) {
-                var stdout = System.out;
-                try (var ps = new PrintStream(OutputStream.nullOutputStream())) {
-                    System.setOut(ps); // Turn off installertools log output
-
-                    new BundlerExtract().process(new String[]{"--input", serverJar.toString(), "--output", extractedServerJar.toString(), "--jar-only"});
-                } finally {
-                    System.setOut(stdout);
-                }
+                // Turn off installertools log output
+                Util.runWithoutStdout(() -> new BundlerExtract().process(new String[]{"--input", serverJar.toString(), "--output", extractedServerJar.toString(), "--jar-only"}));
             } else {
                 if (mappingsPath != null)
                     deleteExtraFiles(serverJar, extractedServerJar, mappingsPath);
             }
 
-            key.write(keyF);
+            writeKey();
+            var stage = RunReport.current();
+            stage.read(serverJar);
+            stage.written(extractedServerJar);
         }
 
         return extractedServerJar;
@@ -104,13 +110,21 @@ public class BundlerExtractTask {
     private static void deleteExtraFiles(Path serverJar, Path extractedServerJar, Path mappingsPath) throws IOException {
         Files.deleteIfExists(extractedServerJar);
 
-        IMappingFile mappings;
-        try (var in = Files.newInputStream(mappingsPath)) {
-            // The server isn't bundled here, so it must be obfuscated.
-            // Thus, we need to look up by obfuscated name here.
-            mappings = IMappingFile.load(in).reverse();
-        }
+        var mappings = MappingTask.getMappingIndex(mappingsPath);
+        // Remove any class files not present in the mappings file;
+        // this implies they are not Minecraft/Mojang classes and instead
+        // come from a shaded library.
+        // The server isn't bundled here, so it must be obfuscated.
+        // Thus, we need to look up by obfuscated name here.
+        Predicate<String> keep = name -> name.endsWith(".class")
+                && mappings.getClassByMapped(name.substring(0, name.length() - ".class".length())) != null;
 
+        // The kept entries are copied still compressed, which makes this bound by I/O rather than by deflating
+        if (ZipFilter.filter(serverJar, extractedServerJar, keep))
+            return;
+
+        LOGGER.debug("Server jar can't be filtered as raw zip entries, copying classes instead");
+        Files.deleteIfExists(extractedServerJar);
         try (var inFs = FileSystems.newFileSystem(serverJar);
                 var outFs = FileSystems.newFileSystem(extractedServerJar, Map.of("create", true))) {
             var inRoot = inFs.getPath("/");
@@ -119,17 +133,8 @@ public class BundlerExtractTask {
             try (Stream<Path> walker = Files.walk(inRoot)) {
                 Iterable<Path> iterable = () -> walker.filter(Files::isRegularFile).iterator();
                 for (Path p : iterable) {
-                    Path relative = inRoot.relativize(p);
-                    if (!relative.getFileName().toString().endsWith(".class"))
-                        continue;
-
-                    String fullPathStr = relative.toString();
-                    String classname = fullPathStr.substring(0, fullPathStr.length() - ".class".length());
-
-                    // Remove any class files not present in the mappings file;
-                    // this implies they are not Minecraft/Mojang classes and instead
-                    // come from a shaded library.
-                    if (mappings.getClass(classname) == null)
+                    String fullPathStr = inRoot.relativize(p).toString();
+                    if (!keep.test(fullPathStr))
                         continue;
 
                     Path outPath = outRoot.resolve(fullPathStr);
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks;
+
+import net.neoforged.snowblower.util.Cache;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A stage producing a version, which writes its output into the cache of the version together with a key file
+ * recording what it was produced from.
+ * <p>
+ * The key is computed once, by whichever asks for it first: the partial cache checking whether the stage can be skipped,
+ * or the stage itself when it runs. A stage's inputs are the outputs of earlier stages, so its key may only be computed
+ * once those are final, which is the case once the earlier stages are cached or ran.
+ */
+public abstract class CachedTask {
+    private final String name;
+    private final Path output;
+    private final Path keyFile;
+    @Nullable
+    private Cache key;
+
+    protected CachedTask(String name, Path output, Path keyFile) {
+        this.name = name;
+        this.output = output;
+        this.keyFile = keyFile;
+    }
+
+    /**
+     * Returns the name of the stage, which its {@link TaskGraph} node is reported under.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Returns the file the stage produces, which is in the cache of the version.
+     */
+    public Path getOutput() {
+        return this.output;
+    }
+
+    protected abstract Cache computeKey() throws IOException;
+
+    protected synchronized Cache getKey() throws IOException {
+        if (this.key == null)
+            this.key = computeKey();
+        return this.key;
+    }
+
+    /**
+     * Whether {@code entry} of the key file is compared, which is used to skip entries of older key files.
+     */
+    protected boolean isConsidered(String entry) {
+        return true;
+    }
+
+    /**
+     * Whether the output was produced from the same inputs, without checking that it still exists.
+     */
+    protected boolean isKeyValid() throws IOException {
+        return getKey().isValid(this.keyFile, this::isConsidered);
+    }
+
+    /**
+     * Whether the output exists and was produced from the same inputs, so that the stage can be skipped.
+     */
+    public boolean isCached() throws IOException {
+        return Files.exists(this.output) && isKeyValid();
+    }
+
+    protected Path getKeyFile() {
+        return this.keyFile;
+    }
+
+    protected void writeKey() throws IOException {
+        getKey().write(this.keyFile);
+    }
+}
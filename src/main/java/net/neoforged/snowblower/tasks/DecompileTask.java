@@ -5,22 +5,34 @@
 package net.neoforged.snowblower.tasks;
 
 import net.neoforged.snowblower.data.Version;
+import net.neoforged.snowblower.tasks.decompile.DecompileJob;
+import net.neoforged.snowblower.tasks.decompile.DecompileShards;
+import net.neoforged.snowblower.tasks.decompile.DecompileWorkerPool;
+import net.neoforged.snowblower.tasks.decompile.DecompiledClassCache;
+import net.neoforged.snowblower.tasks.decompile.LibraryIndex;
+import net.neoforged.snowblower.tasks.decompile.StreamingResultSaver;
 import net.neoforged.snowblower.util.Cache;
+import net.neoforged.snowblower.util.DecompileScheduler;
 import net.neoforged.snowblower.util.DependencyHashCache;
+import net.neoforged.snowblower.util.RunReport;
 import net.neoforged.snowblower.util.Tools;
 import net.neoforged.snowblower.util.Util;
-import org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.java.decompiler.main.decompiler.BaseDecompiler;
+import org.jetbrains.java.decompiler.main.decompiler.PrintStreamLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.stream.Stream;
 
-public class DecompileTask {
+public class DecompileTask extends CachedTask {
     public static final String DECOMP_JAR_FILENAME = "joined-decompiled.jar";
     public static final String DECOMP_JAR_CACHE_FILENAME = DECOMP_JAR_FILENAME + ".cache";
     private static final Logger LOGGER = LoggerFactory.getLogger(DecompileTask.class);
@@ -66,73 +78,210 @@ public class DecompileTask {
         return version.isUnobfuscated() ? DECOMPILE_ARGS_UNOBF : DECOMPILE_ARGS_OBF;
     }
 
-    private static Cache getKey(Version version, Path joined, DependencyHashCache depCache) throws IOException {
-        return new Cache()
-                .put(Tools.VINEFLOWER, depCache)
-                .put(Tools.VINEFLOWER_PLUGINS, depCache)
-                .put("joined", joined)
-                .put("decompileArgs", String.join(" ", getDecompileArgs(version)));
+    private final Path cache;
+    private final Version version;
+    private final DependencyHashCache depCache;
+    private final Path joined;
+    private final Path libCache;
+    private final List<Path> libs;
+
+    /**
+     * @param joined the output of {@link MergeRemapTask}
+     * @param libs   the libraries of the version, which are in {@code libCache}
+     */
+    public DecompileTask(Path cache, Version version, DependencyHashCache depCache, Path joined, Path libCache, List<Path> libs) {
+        super("decompile", cache.resolve(DECOMP_JAR_FILENAME), cache.resolve(DECOMP_JAR_CACHE_FILENAME));
+        this.cache = cache;
+        this.version = version;
+        this.depCache = depCache;
+        this.joined = joined;
+        this.libCache = libCache;
+        this.libs = libs;
     }
 
-    public static boolean inPartialCache(Path cache, Version version, DependencyHashCache depCache) throws IOException {
-        var decomp = cache.resolve(DECOMP_JAR_FILENAME);
-        if (!Files.exists(decomp))
-            return false;
+    public Path getJoined() {
+        return this.joined;
+    }
 
-        var joined = cache.resolve(MergeRemapTask.JOINED_JAR_FILENAME);
-        if (!Files.exists(joined))
-            return false;
+    @Override
+    protected Cache computeKey() throws IOException {
+        var key = new Cache()
+                .put(Tools.VINEFLOWER, this.depCache)
+                .put(Tools.VINEFLOWER_PLUGINS, this.depCache)
+                .put("joined", this.joined)
+                .put("decompileArgs", String.join(" ", getDecompileArgs(this.version)));
 
-        var key = getKey(version, joined, depCache);
-        var keyF = cache.resolve(DECOMP_JAR_CACHE_FILENAME);
-        if (!Files.exists(keyF) || !key.isValid(keyF))
-            return false;
+        for (var lib : this.libs) {
+            var relative = this.libCache.relativize(lib);
+            key.put(relative.toString(), lib);
+        }
 
-        // Ensure that no single task needs to be re-run
-        return MappingTask.inPartialCache(cache, version, depCache)
-                && BundlerExtractTask.inPartialCache(cache, version, depCache)
-                && MergeRemapTask.inPartialCache(cache, version, depCache);
+        return key;
     }
 
-    public static Path checkPartialCache(Path cache, Version version, DependencyHashCache depCache, boolean partialCache) throws IOException {
-        if (!partialCache)
-            return null;
+    /**
+     * @param libraryIndex if set, the libraries are read from their {@link LibraryIndex} instead of their jars
+     * @param workers      if set, the decompiler runs in one of its worker processes instead of in this one
+     * @param shards       how many shards to split a decompile of the whole jar into, see {@link DecompileShards}
+     */
+    public Path run(@Nullable DecompileScheduler scheduler, @Nullable DecompiledClassCache classCache, @Nullable LibraryIndex libraryIndex,
+            @Nullable DecompileWorkerPool workers, int shards) throws IOException {
+        var ret = getOutput();
+
+        if (!isCached()) {
+            LOGGER.debug("Decompiling joined.jar");
+            // Version workers may produce the same version at the same time, so everything is written to a directory of
+            // its own, and the jar is only published once it is complete
+            var dir = Files.createTempDirectory(this.cache, "decompile-");
+            try {
+                var cfg = dir.resolve("joined-libraries.cfg");
+                var output = dir.resolve(DECOMP_JAR_FILENAME);
 
-        if (inPartialCache(cache, version, depCache)) {
-            LOGGER.debug("Hit partial cache for decompiled jar");
+                if (classCache == null) {
+                    decompile(List.of(), cfg, output, scheduler, libraryIndex, workers, shards);
+                } else {
+                    // The JVM is included as the runtime classes are used as a library as well
+                    var environment = getKey().hash(k -> !k.equals("joined")) + ' ' + Runtime.version();
+                    classCache.decompile(this.joined, output, environment, prefixes -> {
+                        var partial = dir.resolve("joined-decompiled-partial.jar");
+                        decompile(prefixes, cfg, partial, scheduler, libraryIndex, workers, shards);
+                        return partial;
+                    });
+                }
 
-            return cache.resolve(DECOMP_JAR_FILENAME);
+                Files.move(output, ret, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Util.deleteRecursive(dir);
+            }
+
+            writeKey();
+            var stage = RunReport.current();
+            stage.read(this.joined);
+            stage.read(this.libs.toArray(Path[]::new));
+            stage.written(ret);
         }
 
-        return null;
+        return ret;
     }
 
-    public static Path getDecompiledJar(Path cache, Version version, Path joined, Path libCache, List<Path> libs, DependencyHashCache depCache) throws IOException {
-        var key = getKey(version, joined, depCache);
+    /**
+     * Decompiles {@code joined} and passes every file of the output to {@code consumer} as soon as Vineflower saves it,
+     * rather than writing {@link #DECOMP_JAR_FILENAME} and reading it back. Vineflower runs on a thread of its own while
+     * the files are passed on the calling thread, so the consumer works through them while the decompile is running.
+     * See {@link StreamingResultSaver}. Check {@link #isCached()} first, as this always decompiles.
+     *
+     * @param keepJar      whether to still write {@link #DECOMP_JAR_FILENAME}, so that the partial cache can use it later
+     * @param libraryIndex if set, the libraries are read from their {@link LibraryIndex} instead of their jars
+     */
+    public void stream(@Nullable DecompileScheduler scheduler, @Nullable LibraryIndex libraryIndex, boolean keepJar, StreamingResultSaver.Consumer consumer) throws IOException {
+        var jar = keepJar ? getOutput() : null;
+        // Whatever jar is there is about to be replaced or left out of date
+        Files.deleteIfExists(getKeyFile());
 
-        for (var lib : libs) {
-            var relative = libCache.relativize(lib);
-            key.put(relative.toString(), lib);
+        LOGGER.debug("Decompiling joined.jar");
+        var saver = new StreamingResultSaver(jar);
+        var stage = RunReport.stage(this.version.id().toString(), getName());
+        var context = MDC.getCopyOfContextMap();
+        var decompiler = Thread.ofPlatform().name("Snowblower-Decompile").start(() -> {
+            if (context != null)
+                MDC.setContextMap(context);
+            Throwable failure = null;
+            try (var scope = stage.time()) {
+                decompile(saver, scheduler, libraryIndex);
+                stage.read(this.joined);
+                stage.read(this.libs.toArray(Path[]::new));
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                saver.finish(failure);
+            }
+        });
+
+        try {
+            saver.drain(consumer);
+        } finally {
+            try {
+                decompiler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the decompiler", e);
+            }
         }
 
-        var ret = cache.resolve(DECOMP_JAR_FILENAME);
-        var keyF = cache.resolve(DECOMP_JAR_CACHE_FILENAME);
+        if (jar != null) {
+            writeKey();
+            stage.written(jar);
+        }
+    }
 
-        if (!Files.exists(ret) || !key.isValid(keyF)) {
-            LOGGER.debug("Decompiling joined.jar");
-            var cfg = cache.resolve("joined-libraries.cfg");
-            Util.writeLines(cfg, libs.stream().map(l -> "-e=" + l.toString()).toArray(String[]::new));
+    /**
+     * Decompiles the classes of {@code joined} starting with one of the given prefixes, or all of them if there are none.
+     * Only a decompile of all classes is sharded.
+     */
+    private void decompile(Collection<String> prefixes, Path cfg, Path output,
+            @Nullable DecompileScheduler scheduler, @Nullable LibraryIndex libraryIndex, @Nullable DecompileWorkerPool workers, int shards) throws IOException {
+        int threads = workers != null ? workers.getThreads() : scheduler != null ? scheduler.getDecompilerThreads() : 0;
+        var index = libraryIndex == null ? null : libraryIndex.getRoot();
+
+        if (shards > 1 && prefixes.isEmpty()) {
+            // Each worker has threads of its own, while in this process the shards share them
+            int shardThreads = workers != null ? threads : Math.max(1, (threads > 0 ? threads : Runtime.getRuntime().availableProcessors()) / shards);
+            DecompileShards.decompile(this.joined, output, shards, (shard, shardPrefixes) -> {
+                var shardCfg = cfg.resolveSibling("joined-libraries-shard-" + shard + ".cfg");
+                var partial = output.resolveSibling("joined-decompiled-shard-" + shard + ".jar");
+                runJob(new DecompileJob(getArgs(shardThreads), this.joined, this.libs, List.copyOf(shardPrefixes), shardCfg, partial, index), scheduler, libraryIndex, workers);
+                Files.deleteIfExists(shardCfg);
+                return partial;
+            });
+        } else {
+            runJob(new DecompileJob(getArgs(threads), this.joined, this.libs, List.copyOf(prefixes), cfg, output, index), scheduler, libraryIndex, workers);
+        }
+    }
 
-            ConsoleDecompiler.main(Stream.concat(getDecompileArgs(version).stream(), Stream.of(
-                    "-log=ERROR", // IFernflowerLogger.Severity
-                    "-cfg", cfg.toString(),
-                    joined.toString(),
-                    ret.toString()
-            )).toArray(String[]::new));
+    private static void runJob(DecompileJob job, @Nullable DecompileScheduler scheduler, @Nullable LibraryIndex libraryIndex, @Nullable DecompileWorkerPool workers) throws IOException {
+        if (workers != null) {
+            // The workers have heaps of their own, so there's no need to wait for this one's budget
+            workers.decompile(job);
+        } else if (scheduler != null) {
+            // Every shard reads the whole jar, so each one reserves the heap of a decompile of it
+            scheduler.decompile(job.joined(), () -> job.run(libraryIndex));
+        } else {
+            job.run(libraryIndex);
+        }
+    }
+
+    /**
+     * Decompiles {@code joined} into the given saver.
+     */
+    private void decompile(StreamingResultSaver saver, @Nullable DecompileScheduler scheduler, @Nullable LibraryIndex libraryIndex) throws IOException {
+        var options = DecompileJob.parseOptions(getArgs(scheduler == null ? 0 : scheduler.getDecompilerThreads()));
+        Util.IORunnable action = () -> {
+            var decompiler = new BaseDecompiler(saver, options, new PrintStreamLogger(System.out));
+            for (var lib : this.libs) {
+                if (libraryIndex != null)
+                    decompiler.addLibrary(libraryIndex.get(lib));
+                else
+                    decompiler.addLibrary(lib.toFile());
+            }
+            decompiler.addSource(this.joined.toFile());
+            decompiler.decompileContext();
+        };
 
-            key.write(keyF);
+        if (scheduler != null) {
+            scheduler.decompile(this.joined, action);
+        } else {
+            action.run();
         }
+    }
 
-        return ret;
+    /**
+     * @param threads the number of decompiler threads, or 0 for Vineflower's default
+     */
+    private List<String> getArgs(int threads) {
+        var args = new ArrayList<>(getDecompileArgs(this.version));
+        if (threads > 0) // Not part of the cache key, as it doesn't affect the output
+            args.add("--thread-count=" + threads);
+        args.add("-log=ERROR"); // IFernflowerLogger.Severity
+        return args;
     }
 }
@@ -6,124 +6,177 @@ package net.neoforged.snowblower.tasks;
 
 import net.neoforged.snowblower.data.Version;
 import net.neoforged.snowblower.util.Cache;
-import net.neoforged.snowblower.util.DependencyHashCache;
+import net.neoforged.snowblower.util.MappingIndex;
+import net.neoforged.snowblower.util.RunReport;
 import net.neoforged.srgutils.IMappingFile;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.Objects;
 
-public class MappingTask {
+public class MappingTask extends CachedTask {
     public static final String MAPPINGS_FILENAME = "moj_to_obf.tsrg";
     public static final String MAPPINGS_CACHE_FILENAME = MAPPINGS_FILENAME + ".cache";
+    /** The same mappings as a {@link MappingIndex}, written together with {@link #MAPPINGS_FILENAME}. */
+    public static final String MAPPINGS_INDEX_FILENAME = "moj_to_obf.bin";
     private static final Logger LOGGER = LoggerFactory.getLogger(MappingTask.class);
 
-    private static Cache getKey(Path cache, Version version) throws IOException {
-        Path clientMappings = cache.resolve("client_mappings.txt");
-        Path serverMappings = cache.resolve("server_mappings.txt");
+    private final Path cache;
+    private final Version version;
+
+    public MappingTask(Path cache, Version version) {
+        super("mappings", cache.resolve(MAPPINGS_FILENAME), cache.resolve(MAPPINGS_CACHE_FILENAME));
+        this.cache = cache;
+        this.version = version;
+    }
+
+    @Override
+    protected Cache computeKey() throws IOException {
+        Path clientMappings = this.cache.resolve("client_mappings.txt");
+        Path serverMappings = this.cache.resolve("server_mappings.txt");
 
         var key = new Cache()
                 .put("client", Files.exists(clientMappings) ? clientMappings : null)
                 .put("server", Files.exists(serverMappings) ? serverMappings : null);
 
-        Version.Download clientMappingsDownload = version.downloads().get("client_mappings");
+        Version.Download clientMappingsDownload = this.version.downloads().get("client_mappings");
         if (clientMappingsDownload != null)
             key.put("client_mappings", clientMappingsDownload.sha1());
-        Version.Download serverMappingsDownload = version.downloads().get("server_mappings");
+        Version.Download serverMappingsDownload = this.version.downloads().get("server_mappings");
         if (serverMappingsDownload != null)
             key.put("server_mappings", serverMappingsDownload.sha1());
 
         return key;
     }
 
-    @SuppressWarnings("unused") // depCache is kept for parity with other similar methods
-    public static boolean inPartialCache(Path cache, Version version, DependencyHashCache depCache) throws IOException {
-        var mappings = cache.resolve(MAPPINGS_FILENAME);
-        if (!Files.exists(mappings))
-            return version.isUnobfuscated(); // No mappings necessary if unobfuscated, so count it as in the partial cache
-
-        var key = getKey(cache, version);
-        var keyF = cache.resolve(MAPPINGS_CACHE_FILENAME);
+    @Override
+    public boolean isCached() throws IOException {
+        if (!Files.exists(getOutput()))
+            return this.version.isUnobfuscated(); // No mappings necessary if unobfuscated, so count it as cached
 
-        return Files.exists(keyF) && key.isValid(keyF);
+        return isKeyValid();
     }
 
-    public static Path getMergedMappings(Path cache, Version version) throws IOException {
-        boolean unobfuscated = version.isUnobfuscated();
-        var clientMojToObf = downloadMappings(cache, "client");
-
-        if (!unobfuscated && clientMojToObf == null) {
+    /**
+     * Merges the client and server mappings, returning {@code null} if there are none or an obfuscated version is
+     * missing either of them.
+     */
+    @Nullable
+    public Path run() throws IOException {
+        boolean unobfuscated = this.version.isUnobfuscated();
+        // Downloaded ahead of time by ArtifactDiscoverer
+        var clientMappings = this.cache.resolve("client_mappings.txt");
+        var serverMappings = this.cache.resolve("server_mappings.txt");
+
+        if (!unobfuscated && !Files.exists(clientMappings)) {
             LOGGER.debug("Client mappings not found, skipping version");
             return null;
         }
 
-        var serverMojToObf = downloadMappings(cache, "server");
-
-        if (!unobfuscated && serverMojToObf == null) {
+        if (!unobfuscated && !Files.exists(serverMappings)) {
             LOGGER.debug("Server mappings not found, skipping version");
             return null;
         }
 
-        if (clientMojToObf == null && serverMojToObf == null)
+        if (!Files.exists(clientMappings) && !Files.exists(serverMappings))
             return null;
 
-        if (clientMojToObf != null && serverMojToObf != null && !canMerge(clientMojToObf, serverMojToObf))
-            throw new IllegalStateException("Client mappings for " + version.id() + " are not a strict superset of the server mappings.");
+        var ret = getOutput();
+        var index = this.cache.resolve(MAPPINGS_INDEX_FILENAME);
 
-        var key = getKey(cache, version);
-        var keyF = cache.resolve(MAPPINGS_CACHE_FILENAME);
-        var ret = cache.resolve(MAPPINGS_FILENAME);
+        // The text mappings are only parsed when the outputs are out of date, as parsing them is the bulk of this task
+        if (!Files.exists(ret) || !Files.exists(index) || !isKeyValid()) {
+            var clientMojToObf = loadMappings(clientMappings);
+            var serverMojToObf = loadMappings(serverMappings);
+
+            if (clientMojToObf != null && serverMojToObf != null && !canMerge(clientMojToObf, serverMojToObf))
+                throw new IllegalStateException("Client mappings for " + this.version.id() + " are not a strict superset of the server mappings.");
 
-        if (!Files.exists(ret) || !key.isValid(keyF)) {
             var mappingsToWrite = clientMojToObf != null ? clientMojToObf : serverMojToObf;
             mappingsToWrite.write(ret, IMappingFile.Format.TSRG2, false);
-            key.write(keyF);
+            MappingIndex.write(mappingsToWrite, index);
+            writeKey();
+            RunReport.current().written(ret);
+            RunReport.current().written(index);
         }
 
         return ret;
     }
 
-    private static IMappingFile downloadMappings(Path cache, String type) throws IOException {
-        var mappings = cache.resolve(type + "_mappings.txt");
+    /**
+     * Returns the index of the mappings produced by {@link #run}, creating it from the text mappings if
+     * they were produced before indexes existed.
+     */
+    public static MappingIndex getMappingIndex(Path mappings) throws IOException {
+        var index = mappings.resolveSibling(MAPPINGS_INDEX_FILENAME);
+        if (!Files.exists(index)) {
+            LOGGER.debug("Indexing {}", mappings);
+            MappingIndex.write(loadMappings(mappings), index);
+        }
 
+        RunReport.current().read(index);
+        return MappingIndex.load(index);
+    }
+
+    @Nullable
+    private static IMappingFile loadMappings(Path mappings) throws IOException {
         if (!Files.exists(mappings))
-            return null; // Downloaded ahead of time by ArtifactDiscoverer
+            return null;
 
+        RunReport.current().read(mappings);
         try (var in = Files.newInputStream(mappings)) {
             return IMappingFile.load(in);
         }
     }
 
     // https://github.com/LexManos/MappingToy/blob/master/src/main/java/net/minecraftforge/lex/mappingtoy/MappingToy.java#L271
-    private static boolean canMerge(IMappingFile client, IMappingFile server) {
+    static boolean canMerge(IMappingFile client, IMappingFile server) {
         // Test if the client is a strict super-set of server.
         // If so, the client mappings can be used for the joined jar.
-        final Function<IMappingFile.IField, String> fldToString = fld -> fld.getOriginal() + " " + fld.getDescriptor() + " -> " + fld.getMapped() + " " + fld.getMappedDescriptor();
-        final Function<IMappingFile.IMethod, String> mtdToString = mtd -> mtd.getOriginal() + " " + mtd.getDescriptor() + " -> " + mtd.getMapped() + " " + mtd.getMappedDescriptor();
-
-        for (IMappingFile.IClass clsS : server.getClasses()) {
+        // Classes are independent of each other, so they are compared in parallel, stopping at the first mismatch.
+        return server.getClasses().parallelStream().allMatch(clsS -> {
             IMappingFile.IClass clsC = client.getClass(clsS.getOriginal());
             if (clsC == null || !clsS.getMapped().equals(clsC.getMapped()))
                 return false;
 
-            Set<String> fldsS = clsS.getFields().stream().map(fldToString).collect(Collectors.toCollection(HashSet::new));
-            Set<String> fldsC = clsC.getFields().stream().map(fldToString).collect(Collectors.toCollection(HashSet::new));
-            Set<String> mtdsS = clsS.getMethods().stream().map(mtdToString).collect(Collectors.toCollection(HashSet::new));
-            Set<String> mtdsC = clsC.getMethods().stream().map(mtdToString).collect(Collectors.toCollection(HashSet::new));
+            for (IMappingFile.IField fldS : clsS.getFields()) {
+                if (!hasField(clsC, fldS))
+                    return false;
+            }
 
-            fldsS.removeAll(fldsC);
-            mtdsS.removeAll(mtdsC);
+            for (IMappingFile.IMethod mtdS : clsS.getMethods()) {
+                IMappingFile.IMethod mtdC = clsC.getMethod(mtdS.getOriginal(), mtdS.getDescriptor());
+                if (mtdC == null || !mtdS.getMapped().equals(mtdC.getMapped()) || !Objects.equals(mtdS.getMappedDescriptor(), mtdC.getMappedDescriptor()))
+                    return false;
+            }
 
-            if (!fldsS.isEmpty() || !mtdsS.isEmpty())
-                return false;
+            return true;
+        });
+    }
+
+    private static boolean hasField(IMappingFile.IClass clsC, IMappingFile.IField fldS) {
+        // Fields are looked up by name only, so fall back to all fields in case there are several with the same name
+        IMappingFile.IField fldC = clsC.getField(fldS.getOriginal());
+        if (fldC == null)
+            return false;
+        if (isSameField(fldC, fldS))
+            return true;
+
+        for (IMappingFile.IField other : clsC.getFields()) {
+            if (isSameField(other, fldS))
+                return true;
         }
+        return false;
+    }
 
-        return true;
+    private static boolean isSameField(IMappingFile.IField fldC, IMappingFile.IField fldS) {
+        return fldS.getOriginal().equals(fldC.getOriginal())
+                && fldS.getMapped().equals(fldC.getMapped())
+                && Objects.equals(fldS.getDescriptor(), fldC.getDescriptor())
+                && Objects.equals(fldS.getMappedDescriptor(), fldC.getMappedDescriptor());
     }
 }
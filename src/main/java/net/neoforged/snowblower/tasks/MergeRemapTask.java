@@ -10,75 +10,88 @@ import net.neoforged.mergetool.Merger;
 import net.neoforged.snowblower.data.Version;
 import net.neoforged.snowblower.util.Cache;
 import net.neoforged.snowblower.util.DependencyHashCache;
+import net.neoforged.snowblower.util.RunReport;
 import net.neoforged.snowblower.util.Tools;
 import net.neoforged.snowblower.util.Util;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 
-public class MergeRemapTask {
+public class MergeRemapTask extends CachedTask {
     public static final String JOINED_JAR_FILENAME = "joined.jar";
     public static final String JOINED_JAR_CACHE_FILENAME = JOINED_JAR_FILENAME + ".cache";
     private static final Logger LOGGER = LoggerFactory.getLogger(MergeRemapTask.class);
 
-    private static Cache getKey(Version version, Path mappings, DependencyHashCache depCache) throws IOException {
+    private final Path cache;
+    private final Version version;
+    private final DependencyHashCache depCache;
+    private final MappingTask mappings;
+
+    public MergeRemapTask(Path cache, Version version, DependencyHashCache depCache, MappingTask mappings) {
+        super("merge-remap", cache.resolve(JOINED_JAR_FILENAME), cache.resolve(JOINED_JAR_CACHE_FILENAME));
+        this.cache = cache;
+        this.version = version;
+        this.depCache = depCache;
+        this.mappings = mappings;
+    }
+
+    /**
+     * The client and server jars are downloaded with the SHA-1 from the version json, so the key only needs those.
+     * That way the key can be checked without the jars, which the partial cache deletes.
+     */
+    @Override
+    protected Cache computeKey() throws IOException {
+        var mappings = this.mappings.getOutput();
         var key = new Cache()
-                .put(Tools.INSTALLERTOOLS, depCache)
-                .put("map", mappings)
-                .put("client", getSha("client", version))
-                .put("server-full", getSha("server", version));
+                .put(Tools.INSTALLERTOOLS, this.depCache)
+                .put("map", Files.exists(mappings) ? mappings : null)
+                .put("client", getSha("client", this.version))
+                .put("server-full", getSha("server", this.version));
 
-        if (!version.isUnobfuscated())
-            key.put(Tools.MERGETOOL, depCache);
+        if (!this.version.isUnobfuscated())
+            key.put(Tools.MERGETOOL, this.depCache);
 
         return key;
     }
 
-    public static boolean inPartialCache(Path cache, Version version, DependencyHashCache depCache) throws IOException {
-        var joined = cache.resolve(JOINED_JAR_FILENAME);
-        if (!Files.exists(joined))
-            return false;
-
-        var key = getKey(version, cache.resolve(MappingTask.MAPPINGS_FILENAME), depCache);
-        var keyF = cache.resolve(JOINED_JAR_CACHE_FILENAME);
-
-        return Files.exists(keyF) && key.isValid(keyF, k -> !k.equals("server"));
+    /**
+     * Older key files include the hash of the extracted server jar, which is determined by the other entries.
+     */
+    @Override
+    protected boolean isConsidered(String entry) {
+        return !entry.equals("server");
     }
 
-    public static Path getJoinedRemappedJar(Path cache, Version version, Path mappings, DependencyHashCache depCache, boolean partialCache) throws IOException {
-        var joinedJar = cache.resolve(JOINED_JAR_FILENAME);
-
-        if (partialCache && inPartialCache(cache, version, depCache)) {
-            LOGGER.debug("Hit partial cache for joined jar");
-
-            return joinedJar;
-        }
-
-        var key = getKey(version, mappings, depCache);
-        var keyF = cache.resolve(JOINED_JAR_CACHE_FILENAME);
-
-        var clientJar = downloadMinecraftJar("client", cache, version);
-        var serverFullJar = downloadMinecraftJar("server", cache, version);
-        var serverJar = BundlerExtractTask.getExtractedServerJar(cache, version, serverFullJar, depCache, mappings);
-
-        key.put("client", clientJar)
-                .put("server-full", serverFullJar)
-                .put("server", serverJar);
-
-        if (!Files.exists(joinedJar) || !key.isValid(keyF)) {
+    /**
+     * Merges and remaps the client and the extracted server jar. The inputs are produced by {@link #downloadMinecraftJar}
+     * and {@link BundlerExtractTask}, so that they can run in parallel with the mappings task.
+     * <p>
+     * MergeTool and installertools only work with files, so the merged obfuscated jar is handed to the remapper as a
+     * temporary file. If {@code scratch} is set, that file goes there instead of the cache, which allows keeping it on a
+     * memory-backed file system.
+     *
+     * @param mappings the output of {@link MappingTask}, or {@code null} if the version has no mappings
+     */
+    public Path run(@Nullable Path mappings, Path clientJar, Path serverFullJar, Path serverJar, boolean partialCache, @Nullable Path scratch) throws IOException {
+        var joinedJar = getOutput();
+
+        if (!isCached()) {
             LOGGER.debug("Merging client and server jars and remapping");
 
+            var stage = RunReport.current();
             Path joinedObfJar = null;
+            // Version workers may produce the same version at the same time, so the jar is only published once it is complete
+            var output = Files.createTempFile(this.cache, "joined-", ".jar");
             try {
                 List<String> args = new ArrayList<>();
-                if (version.isUnobfuscated()) {
+                if (this.version.isUnobfuscated()) {
                     args.addAll(List.of(
                             "--input", clientJar.toString(),
                             "--input", serverJar.toString()
@@ -88,12 +101,18 @@ public class MergeRemapTask {
                     // so that dist annotations are respected on class members (methods & fields).
                     // Dist annotations on class members are used in older versions, e.g., certain constructors of Vector3f
                     // in at least the 1.14-1.16 era.
-                    joinedObfJar = cache.resolve("joined-obf.jar");
+                    // Versions may be merged in parallel, so the name has to be unique in a shared scratch directory, and
+                    // version workers may merge the same version at the same time
+                    joinedObfJar = scratch == null ? Files.createTempFile(this.cache, "joined-obf-", ".jar") : Files.createTempFile(scratch, "joined-obf-" + this.version.id() + '-', ".jar");
                     Merger merger = new Merger(clientJar.toFile(), serverJar.toFile(), joinedObfJar.toFile());
                     merger.annotate(AnnotationVersion.API, true);
                     merger.keepData();
                     merger.skipMeta();
-                    merger.process();
+                    try (var step = stage.step("merge")) {
+                        stage.read(clientJar, serverJar);
+                        merger.process();
+                        stage.written(joinedObfJar);
+                    }
 
                     args.addAll(List.of("--input", joinedObfJar.toString()));
                     // Dist annotations are injected by MergeTool
@@ -101,7 +120,7 @@ public class MergeRemapTask {
                 }
 
                 args.addAll(List.of(
-                        "--output", joinedJar.toString(),
+                        "--output", output.toString(),
                         "--no-mod-manifest"
                 ));
 
@@ -110,20 +129,23 @@ public class MergeRemapTask {
                     args.add(mappings.toString());
                 }
 
-                var stdout = System.out;
-                try (var ps = new PrintStream(OutputStream.nullOutputStream())) {
-                    System.setOut(ps); // Turn off installertools log output
-
-                    new ProcessMinecraftJar().process(args.toArray(String[]::new));
-                } finally {
-                    System.setOut(stdout);
+                try (var step = stage.step("remap")) {
+                    if (joinedObfJar != null)
+                        stage.read(joinedObfJar);
+                    else
+                        stage.read(clientJar, serverJar);
+                    // Turn off installertools log output
+                    Util.runWithoutStdout(() -> new ProcessMinecraftJar().process(args.toArray(String[]::new)));
+                    stage.written(output);
                 }
+                Files.move(output, joinedJar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             } finally {
                 if (joinedObfJar != null)
                     Files.deleteIfExists(joinedObfJar);
+                Files.deleteIfExists(output);
             }
 
-            key.write(keyF);
+            writeKey();
         }
 
         if (partialCache) {
@@ -154,7 +176,7 @@ public class MergeRemapTask {
 
         if (!Files.exists(jar) || !key.isValid(keyF)) {
             try {
-                Util.downloadFile(jar, dl.url(), dl.sha1());
+                Util.downloadFile(jar, dl);
             } catch (IOException e) {
                 throw new IOException("Failed to download \"" + type + "\" jar for version \"" + version.id() + "\"", e);
             }
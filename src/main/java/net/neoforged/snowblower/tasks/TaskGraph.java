@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks;
+
+import net.neoforged.snowblower.util.RunReport;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the tasks producing a version as a graph, so that tasks which don't depend on each other run in parallel.
+ * <p>
+ * A node can only depend on nodes that were added before it, which keeps the graph acyclic. Each node runs on its own
+ * thread once all of its dependencies completed, with the logging context of the thread calling {@link #run()}, and
+ * is recorded as a stage of the {@link RunReport}. Platform threads are used so that the CPU time of a node can be
+ * measured, and a graph only has a handful of nodes. If a node fails, the nodes depending on it are skipped and the
+ * failure is rethrown by {@code run}.
+ * <p>
+ * Stages that write into the cache are added with their {@link CachedTask}, which names the node and holds the key of
+ * its output, so that the key isn't computed again if the partial cache already checked it.
+ */
+public class TaskGraph {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TaskGraph.class);
+
+    private final String name;
+    private final List<Node<?>> nodes = new ArrayList<>();
+
+    /**
+     * @param name the name the nodes are reported under, usually the version they produce
+     */
+    public TaskGraph(String name) {
+        this.name = name;
+    }
+
+    public <T> Node<T> add(String name, Action<T> action) {
+        return add(name, List.of(), action);
+    }
+
+    public <T> Node<T> add(CachedTask task, List<Node<?>> dependencies, Action<T> action) {
+        return add(task.getName(), dependencies, action);
+    }
+
+    public <T> Node<T> add(String name, List<Node<?>> dependencies, Action<T> action) {
+        for (var dependency : dependencies) {
+            if (!this.nodes.contains(dependency))
+                throw new IllegalArgumentException("Dependency " + dependency.name + " of " + name + " isn't part of this graph");
+        }
+
+        var node = new Node<>(name, List.copyOf(dependencies), action);
+        this.nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Runs every node and waits for all of them to complete.
+     */
+    public void run() throws IOException {
+        var context = MDC.getCopyOfContextMap();
+        try (var executor = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("Snowblower-Task-", 0).factory())) {
+            for (var node : this.nodes)
+                node.schedule(executor, context, RunReport.stage(this.name, node.name));
+            // Nodes are only submitted once their dependencies are done, so the executor must stay open until then
+            CompletableFuture.allOf(this.nodes.stream().map(n -> n.future).toArray(CompletableFuture[]::new))
+                    .handle((v, e) -> null)
+                    .join();
+        }
+
+        for (var node : this.nodes)
+            node.get();
+    }
+
+    /**
+     * Returns how long each node that completed took to run, in the order the nodes were added.
+     */
+    public Map<String, Duration> getTimings() {
+        Map<String, Duration> ret = new LinkedHashMap<>();
+        for (var node : this.nodes) {
+            if (node.time != null)
+                ret.put(node.name, node.time);
+        }
+        return ret;
+    }
+
+    @FunctionalInterface
+    public interface Action<T> {
+        @Nullable
+        T run() throws IOException;
+    }
+
+    public static final class Node<T> {
+        private final String name;
+        private final List<Node<?>> dependencies;
+        private final Action<T> action;
+        @Nullable
+        private CompletableFuture<T> future;
+        @Nullable
+        private volatile Duration time;
+
+        private Node(String name, List<Node<?>> dependencies, Action<T> action) {
+            this.name = name;
+            this.dependencies = dependencies;
+            this.action = action;
+        }
+
+        private void schedule(Executor executor, @Nullable Map<String, String> context, RunReport.Stage stage) {
+            var dependencies = this.dependencies.stream().map(d -> d.future).toArray(CompletableFuture[]::new);
+            this.future = CompletableFuture.allOf(dependencies).thenApplyAsync(v -> {
+                if (context != null)
+                    MDC.setContextMap(context);
+                try (var scope = stage.time()) {
+                    long start = System.nanoTime();
+                    T ret = this.action.run();
+                    this.time = Duration.ofNanos(System.nanoTime() - start);
+                    LOGGER.debug("Task {} took {} ms", this.name, this.time.toMillis());
+                    return ret;
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    MDC.clear();
+                }
+            }, executor);
+        }
+
+        /**
+         * Returns the result of this node, which may only be called by nodes depending on it or once the graph ran.
+         */
+        @Nullable
+        public T get() throws IOException {
+            if (this.future == null || !this.future.isDone())
+                throw new IllegalStateException("Task " + this.name + " hasn't completed, is it missing from the dependencies?");
+
+            try {
+                return this.future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException io)
+                    throw io;
+                if (e.getCause() instanceof RuntimeException re)
+                    throw re;
+                throw e;
+            }
+        }
+    }
+}
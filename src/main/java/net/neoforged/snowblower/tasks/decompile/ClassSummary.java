@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks.decompile;
+
+import net.neoforged.snowblower.util.HashFunction;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The parts of a class file that matter when decompiling <em>other</em> classes.
+ * <p>
+ * Only the constant pool and the member table are read, which is enough to find every type a class refers to and to
+ * fingerprint its signature: the class header, members, generic signatures, constant values and nesting information.
+ * Method bodies are deliberately left out of the fingerprint, so that a change to one method's code doesn't force every
+ * class calling it to be decompiled again.
+ *
+ * @param name        the internal name of the class
+ * @param hash        the SHA-1 of the full class file
+ * @param superName   the internal name of the super class, or {@code null} for {@code java/lang/Object} and modules
+ * @param interfaces  the internal names of the directly implemented interfaces
+ * @param references  every type name found in the constant pool; may contain names that aren't classes at all
+ * @param fingerprint the SHA-1 of the class signature
+ */
+public record ClassSummary(String name, String hash, @Nullable String superName, List<String> interfaces, Set<String> references, String fingerprint) {
+    private static final int MAGIC = 0xCAFEBABE;
+
+    public static ClassSummary read(byte[] data) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a class file");
+        in.readUnsignedShort(); // minor
+        in.readUnsignedShort(); // major
+
+        int poolSize = in.readUnsignedShort();
+        var tags = new byte[poolSize];
+        var values = new Object[poolSize];
+        var classIndexes = new ArrayList<Integer>();
+        for (int i = 1; i < poolSize; i++) {
+            byte tag = in.readByte();
+            tags[i] = tag;
+            switch (tag) {
+                case 1 -> values[i] = in.readUTF(); // Utf8
+                case 3 -> values[i] = in.readInt(); // Integer
+                case 4 -> values[i] = in.readFloat(); // Float
+                case 5 -> values[i++] = in.readLong(); // Long, takes two slots
+                case 6 -> values[i++] = in.readDouble(); // Double, takes two slots
+                case 7 -> { // Class
+                    values[i] = in.readUnsignedShort();
+                    classIndexes.add(i);
+                }
+                case 8, 16, 19, 20 -> values[i] = in.readUnsignedShort(); // String, MethodType, Module, Package
+                case 9, 10, 11, 12, 17, 18 -> in.readInt(); // Member refs, NameAndType, Dynamic, InvokeDynamic
+                case 15 -> { // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag + " at index " + i);
+            }
+        }
+
+        var pool = new Pool(tags, values);
+        var references = new HashSet<String>();
+        for (int index : classIndexes)
+            addReference(references, pool.utf8((Integer) values[index]));
+        for (int i = 1; i < poolSize; i++) {
+            if (tags[i] == 1)
+                addDescriptorReferences(references, (String) values[i]);
+        }
+
+        var sig = new StringBuilder();
+        int access = in.readUnsignedShort();
+        String name = pool.className(in.readUnsignedShort());
+        int superIndex = in.readUnsignedShort();
+        String superName = superIndex == 0 ? null : pool.className(superIndex);
+        var interfaces = new ArrayList<String>();
+        for (int i = in.readUnsignedShort(); i > 0; i--)
+            interfaces.add(pool.className(in.readUnsignedShort()));
+        sig.append(access).append(' ').append(name).append(' ').append(superName).append(' ').append(interfaces).append('\n');
+
+        // Member order doesn't change how other classes decompile, so it shouldn't change the fingerprint either
+        var members = new ArrayList<String>();
+        for (int kind = 0; kind < 2; kind++) {
+            for (int i = in.readUnsignedShort(); i > 0; i--) {
+                var member = new StringBuilder(kind == 0 ? "field " : "method ");
+                member.append(in.readUnsignedShort()).append(' ')
+                        .append(pool.utf8(in.readUnsignedShort())).append(' ')
+                        .append(pool.utf8(in.readUnsignedShort()));
+                readAttributes(in, pool, member);
+                members.add(member.toString());
+            }
+        }
+        members.sort(null);
+        members.forEach(m -> sig.append(m).append('\n'));
+        readAttributes(in, pool, sig);
+
+        return new ClassSummary(name, HashFunction.SHA1.hash(data), superName, List.copyOf(interfaces), references, HashFunction.SHA1.hash(sig.toString()));
+    }
+
+    /**
+     * Appends the attributes that are visible to other classes, resolving constant pool indexes so that the result
+     * doesn't change when the pool is merely reordered.
+     */
+    private static void readAttributes(DataInputStream in, Pool pool, StringBuilder out) throws IOException {
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            String attribute = pool.utf8(in.readUnsignedShort());
+            int length = in.readInt();
+            switch (attribute) {
+                case "Signature" -> out.append(" signature ").append(pool.utf8(in.readUnsignedShort()));
+                case "ConstantValue" -> out.append(" value ").append(pool.constant(in.readUnsignedShort()));
+                case "Exceptions", "PermittedSubclasses" -> {
+                    out.append(' ').append(attribute);
+                    for (int j = in.readUnsignedShort(); j > 0; j--)
+                        out.append(' ').append(pool.className(in.readUnsignedShort()));
+                }
+                case "InnerClasses" -> {
+                    out.append(" inner");
+                    for (int j = in.readUnsignedShort(); j > 0; j--) {
+                        out.append(' ').append(pool.className(in.readUnsignedShort()))
+                                .append(':').append(pool.className(in.readUnsignedShort()))
+                                .append(':').append(pool.utf8(in.readUnsignedShort()))
+                                .append(':').append(in.readUnsignedShort());
+                    }
+                }
+                case "Record" -> {
+                    out.append(" record");
+                    for (int j = in.readUnsignedShort(); j > 0; j--) {
+                        out.append(' ').append(pool.utf8(in.readUnsignedShort())).append(':').append(pool.utf8(in.readUnsignedShort()));
+                        skipAttributes(in);
+                    }
+                }
+                default -> in.skipNBytes(length);
+            }
+        }
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            in.readUnsignedShort();
+            in.skipNBytes(in.readInt());
+        }
+    }
+
+    private static void addReference(Set<String> references, String name) {
+        if (name.startsWith("[")) {
+            addDescriptorReferences(references, name);
+        } else {
+            references.add(name);
+        }
+    }
+
+    /**
+     * Collects every {@code Lname;} or {@code Lname<} in a descriptor or signature. This is also run over string
+     * constants, which can only add names that don't exist, so those are filtered out when looked up later.
+     */
+    private static void addDescriptorReferences(Set<String> references, String descriptor) {
+        int start = descriptor.indexOf('L');
+        while (start != -1) {
+            int end = start + 1;
+            while (end < descriptor.length() && descriptor.charAt(end) != ';' && descriptor.charAt(end) != '<')
+                end++;
+            if (end == descriptor.length())
+                return;
+            if (end > start + 1)
+                references.add(descriptor.substring(start + 1, end));
+            start = descriptor.indexOf('L', start + 1);
+        }
+    }
+
+    private record Pool(byte[] tags, Object[] values) {
+        String utf8(int index) {
+            return index == 0 ? "" : (String) this.values[index];
+        }
+
+        String className(int index) {
+            return index == 0 ? "" : utf8((Integer) this.values[index]);
+        }
+
+        String constant(int index) {
+            // String constants point at a Utf8 entry, every other constant value is stored inline
+            return this.tags[index] == 8 ? '"' + utf8((Integer) this.values[index]) + '"' : String.valueOf(this.values[index]);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks.decompile;
+
+import net.neoforged.snowblower.util.Util;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler;
+import org.jetbrains.java.decompiler.main.decompiler.OptionParser;
+import org.jetbrains.java.decompiler.main.decompiler.PrintStreamLogger;
+import org.jetbrains.java.decompiler.main.extern.IFernflowerPreferences;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A single Vineflower run writing a decompiled jar, which can be sent to a worker process.
+ *
+ * @param args         the decompiler options, as they are given to {@code ConsoleDecompiler}
+ * @param prefixes     the prefixes of the classes to decompile, or none to decompile everything
+ * @param cfg          where the libraries and prefixes are written for {@code ConsoleDecompiler}
+ * @param libraryIndex the root of the {@link LibraryIndex} to read the libraries from instead of their jars, if any
+ */
+public record DecompileJob(List<String> args, Path joined, List<Path> libs, List<String> prefixes, Path cfg, Path output, @Nullable Path libraryIndex) {
+    /**
+     * Runs the decompiler in this process.
+     *
+     * @param index the library index to use if the job has one, to keep it loaded across jobs
+     */
+    public void run(@Nullable LibraryIndex index) throws IOException {
+        if (this.libraryIndex == null) {
+            Util.writeLines(this.cfg, Stream.concat(this.libs.stream().map(l -> "-e=" + l), this.prefixes.stream().map(p -> "-only=" + p)).toArray(String[]::new));
+            var args = new ArrayList<>(this.args);
+            args.addAll(List.of(
+                    "-cfg", this.cfg.toString(),
+                    this.joined.toString(),
+                    this.output.toString()
+            ));
+            ConsoleDecompiler.main(args.toArray(String[]::new));
+            return;
+        }
+
+        if (index == null)
+            index = new LibraryIndex(this.libraryIndex);
+
+        // Libraries can only be passed as something other than a file through the API, which is otherwise what main does
+        var decompiler = new ConsoleDecompiler(this.output.toFile(), parseOptions(this.args), new PrintStreamLogger(System.out)) {};
+        for (var lib : this.libs)
+            decompiler.addLibrary(index.get(lib));
+        decompiler.addSource(this.joined.toFile());
+        this.prefixes.forEach(decompiler::addWhitelist);
+        decompiler.decompileContext();
+    }
+
+    /**
+     * Parses the arguments the same way {@code ConsoleDecompiler} does, for when it isn't run through its main method.
+     */
+    public static Map<String, Object> parseOptions(List<String> args) {
+        Map<String, Object> options = new HashMap<>();
+        options.put(IFernflowerPreferences.INCLUDE_JAVA_RUNTIME, "current"); // ConsoleDecompiler's default
+        for (var arg : args) {
+            if (!OptionParser.parse(arg, options))
+                throw new IllegalStateException("Unknown decompiler argument: " + arg);
+        }
+        return options;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        writeStrings(out, this.args);
+        out.writeUTF(this.joined.toString());
+        writeStrings(out, this.libs.stream().map(Path::toString).toList());
+        writeStrings(out, this.prefixes);
+        out.writeUTF(this.cfg.toString());
+        out.writeUTF(this.output.toString());
+        out.writeUTF(this.libraryIndex == null ? "" : this.libraryIndex.toString());
+    }
+
+    public static DecompileJob read(DataInput in) throws IOException {
+        var args = readStrings(in);
+        var joined = Path.of(in.readUTF());
+        var libs = readStrings(in).stream().map(Path::of).toList();
+        var prefixes = readStrings(in);
+        var cfg = Path.of(in.readUTF());
+        var output = Path.of(in.readUTF());
+        var libraryIndex = in.readUTF();
+        return new DecompileJob(args, joined, libs, prefixes, cfg, output, libraryIndex.isEmpty() ? null : Path.of(libraryIndex));
+    }
+
+    private static void writeStrings(DataOutput out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (var value : values)
+            out.writeUTF(value);
+    }
+
+    private static List<String> readStrings(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<String> ret = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            ret.add(in.readUTF());
+        return ret;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks.decompile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Splits the decompile of a single jar into shards of whole packages, which are decompiled at the same time.
+ * <p>
+ * One Vineflower run over a large {@code joined.jar} spends its last stretch on a few huge classes while most of its
+ * threads have nothing left to do. Instead, packages are handed out largest first to whichever shard has the least
+ * bytecode so far. Every shard still gets the full {@code joined.jar} as its input, and decompiles the classes it
+ * depends on along with its own, the same way {@link DecompiledClassCache} does, so that each class decompiles to the
+ * same source as in a single run. Only the shard owning a class contributes it to the output.
+ * <p>
+ * The outputs are merged in the order a single run writes them: the resources, which every shard copies, followed by
+ * the classes in the order of {@code joined.jar}.
+ */
+public class DecompileShards {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DecompileShards.class);
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+    /**
+     * Decompiles {@code joined} into {@code output} in up to {@code count} shards.
+     *
+     * @param decompiler decompiles the classes starting with the given prefixes, or everything if there are none, and
+     *                   returns the resulting jar. Called from a thread per shard.
+     */
+    public static void decompile(Path joined, Path output, int count, Decompiler decompiler) throws IOException {
+        // Classes in the order Vineflower writes them, which only includes the base version of multi-release jars
+        List<String> order = new ArrayList<>();
+        Map<String, ClassSummary> classes = new HashMap<>();
+        Map<String, Long> packageSizes = new TreeMap<>();
+        try (var zip = new ZipFile(joined.toFile())) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().endsWith(".class") || entry.getName().startsWith(VERSIONS_PREFIX))
+                    continue;
+
+                byte[] data;
+                try (var in = zip.getInputStream(entry)) {
+                    data = in.readAllBytes();
+                }
+                var summary = ClassSummary.read(data);
+                if (classes.putIfAbsent(summary.name(), summary) == null)
+                    order.add(summary.name());
+                packageSizes.merge(getPackage(summary.name()), (long) data.length, Long::sum);
+            }
+        }
+
+        var shards = assign(packageSizes, count);
+        if (shards.size() < 2) {
+            LOGGER.debug("Only found {} package(s) to shard, decompiling in one go", packageSizes.size());
+            var ret = decompiler.decompile(0, List.of());
+            Files.move(ret, output, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        Map<String, Integer> owners = new HashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            for (var pkg : shards.get(i))
+                owners.put(pkg, i);
+        }
+
+        List<Set<String>> prefixes = new ArrayList<>();
+        for (var packages : shards) {
+            var own = classes.values().stream().filter(c -> packages.contains(getPackage(c.name()))).toList();
+            Set<String> shardPrefixes = new TreeSet<>();
+            own.forEach(c -> shardPrefixes.add(DecompiledClassCache.getGroup(c.name())));
+            // Vineflower only knows how to name classes it was asked to decompile, so the dependencies need to be included
+            DecompiledClassCache.getDependencies(own, classes).forEach(d -> shardPrefixes.add(DecompiledClassCache.getGroup(d)));
+            prefixes.add(shardPrefixes);
+        }
+        LOGGER.debug("Decompiling {} packages in {} shards", packageSizes.size(), shards.size());
+
+        var outputs = new Path[shards.size()];
+        try {
+            decompileAll(prefixes, decompiler, outputs);
+            merge(order, owners, outputs, output);
+        } finally {
+            for (var partial : outputs) {
+                if (partial != null)
+                    Files.deleteIfExists(partial);
+            }
+        }
+    }
+
+    /**
+     * Hands out the packages to the shards, largest first, so that the shards end up with about the same amount of
+     * bytecode. Ties are broken by name, so that the same jar is always split the same way.
+     */
+    private static List<Set<String>> assign(Map<String, Long> packageSizes, int count) {
+        var packages = new ArrayList<>(packageSizes.keySet());
+        packages.sort(Comparator.comparing((String p) -> packageSizes.get(p)).reversed().thenComparing(Comparator.naturalOrder()));
+
+        int shardCount = Math.min(count, packages.size());
+        List<Set<String>> ret = new ArrayList<>(shardCount);
+        var sizes = new long[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            ret.add(new HashSet<>());
+
+        for (var pkg : packages) {
+            int smallest = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (sizes[i] < sizes[smallest])
+                    smallest = i;
+            }
+            ret.get(smallest).add(pkg);
+            sizes[smallest] += packageSizes.get(pkg);
+        }
+
+        return ret;
+    }
+
+    private static void decompileAll(List<Set<String>> prefixes, Decompiler decompiler, Path[] outputs) throws IOException {
+        try (var executor = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("Snowblower-Decompile-Shard-", 0).factory())) {
+            List<Future<Path>> futures = new ArrayList<>();
+            for (int i = 0; i < prefixes.size(); i++) {
+                int shard = i;
+                futures.add(executor.submit(() -> decompiler.decompile(shard, prefixes.get(shard))));
+            }
+
+            Throwable failure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    outputs[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause();
+                    else
+                        failure.addSuppressed(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for decompile shards", e);
+                }
+            }
+
+            if (failure instanceof IOException io)
+                throw io;
+            if (failure instanceof RuntimeException re)
+                throw re;
+            if (failure instanceof Error error)
+                throw error;
+            if (failure != null)
+                throw new RuntimeException(failure);
+        }
+    }
+
+    private static void merge(List<String> order, Map<String, Integer> owners, Path[] outputs, Path output) throws IOException {
+        var zips = new ZipFile[outputs.length];
+        try (var out = new ZipOutputStream(Files.newOutputStream(output))) {
+            for (int i = 0; i < outputs.length; i++)
+                zips[i] = new ZipFile(outputs[i].toFile());
+
+            Set<String> classes = new HashSet<>(order);
+            Set<String> written = new HashSet<>();
+            // Every shard copies the resources, and writes them before any class
+            var entries = zips[0].entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (!isClass(entry.getName(), classes) && written.add(entry.getName()))
+                    copy(zips[0], entry, out);
+            }
+
+            for (var cls : order) {
+                var name = cls + ".java";
+                var zip = zips[owners.get(getPackage(cls))];
+                var entry = zip.getEntry(name);
+                // Nested classes are written as part of their outer class
+                if (entry != null && written.add(name))
+                    copy(zip, entry, out);
+            }
+        } finally {
+            for (var zip : zips) {
+                if (zip != null)
+                    zip.close();
+            }
+        }
+    }
+
+    private static boolean isClass(String name, Set<String> classes) {
+        return name.endsWith(".java") && classes.contains(name.substring(0, name.length() - ".java".length()));
+    }
+
+    private static void copy(ZipFile zip, ZipEntry entry, ZipOutputStream out) throws IOException {
+        var copy = new ZipEntry(entry.getName());
+        // Vineflower stores line mappings in the extra data
+        if (entry.getExtra() != null)
+            copy.setExtra(entry.getExtra());
+        out.putNextEntry(copy);
+        try (var in = zip.getInputStream(entry)) {
+            in.transferTo(out);
+        }
+        out.closeEntry();
+    }
+
+    private static String getPackage(String name) {
+        int idx = name.lastIndexOf('/');
+        return idx == -1 ? "" : name.substring(0, idx);
+    }
+
+    @FunctionalInterface
+    public interface Decompiler {
+        Path decompile(int shard, Collection<String> prefixes) throws IOException;
+    }
+}
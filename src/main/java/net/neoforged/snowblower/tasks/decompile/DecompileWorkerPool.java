@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks.decompile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs decompiles in child JVMs instead of in the Snowblower process.
+ * <p>
+ * Each worker is a separate JVM with its own maximum heap and decompiler thread count, so a version that needs more
+ * memory than expected only takes down its own worker, and Vineflower's static state doesn't build up over a run.
+ * Jobs are sent to a worker over its standard input, and the worker answers on its standard output once the job is
+ * done. Everything the decompiler logs goes to the worker's standard error, which is shared with this process.
+ * A worker is replaced after a number of jobs, or as soon as a job fails.
+ */
+public class DecompileWorkerPool implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DecompileWorkerPool.class);
+    private static final int MAX_TRACE_LENGTH = 16384;
+
+    private final int heapMb;
+    private final int threads;
+    private final int jobsPerWorker;
+    private final Semaphore available;
+    private final Deque<Worker> idle = new ArrayDeque<>();
+    /** Every worker that is still running, whether it's idle or busy with a job. */
+    private final Set<Worker> running = new HashSet<>();
+    private int started;
+    private boolean closed;
+
+    /**
+     * @param workers       the maximum number of worker processes, and so of decompiles running at the same time
+     * @param heapMb        the maximum heap of each worker in megabytes
+     * @param threads       the number of decompiler threads of each worker
+     * @param jobsPerWorker how many jobs a worker runs before it's replaced by a new one
+     */
+    public DecompileWorkerPool(int workers, int heapMb, int threads, int jobsPerWorker) {
+        if (workers < 1)
+            throw new IllegalArgumentException("Must have at least one worker: " + workers);
+        if (heapMb < 1 || threads < 1 || jobsPerWorker < 1)
+            throw new IllegalArgumentException("Worker heap, threads and jobs must be positive");
+
+        this.heapMb = heapMb;
+        this.threads = threads;
+        this.jobsPerWorker = jobsPerWorker;
+        this.available = new Semaphore(workers, true);
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Runs a job on the next free worker, starting one if needed, and waits for it to finish.
+     */
+    public void decompile(DecompileJob job) throws IOException {
+        try {
+            this.available.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a decompiler worker", e);
+        }
+
+        Worker worker = null;
+        try {
+            synchronized (this) {
+                worker = this.idle.poll();
+            }
+            if (worker == null)
+                worker = start();
+
+            worker.run(job);
+        } catch (IOException | RuntimeException e) {
+            if (worker != null) {
+                destroy(worker);
+                worker = null;
+            }
+            throw e;
+        } finally {
+            if (worker != null) {
+                boolean keep;
+                synchronized (this) {
+                    keep = !this.closed && worker.jobs < this.jobsPerWorker;
+                    if (keep)
+                        this.idle.push(worker);
+                    else
+                        this.running.remove(worker);
+                }
+                if (!keep)
+                    worker.close();
+            }
+            this.available.release();
+        }
+    }
+
+    private Worker start() throws IOException {
+        int id;
+        synchronized (this) {
+            if (this.closed)
+                throw new IllegalStateException("Decompiler worker pool is closed");
+            id = this.started++;
+        }
+
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var command = List.of(
+                java,
+                "-Xmx" + this.heapMb + "m",
+                // Fail the job right away instead of spending a long time in GC first
+                "-XX:+ExitOnOutOfMemoryError",
+                "-cp", System.getProperty("java.class.path"),
+                DecompileWorkerPool.class.getName()
+        );
+        LOGGER.debug("Starting decompiler worker {} with {} MB of heap", id, this.heapMb);
+        var process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        var ret = new Worker(id, process);
+        synchronized (this) {
+            if (this.closed) {
+                ret.destroy();
+                throw new IllegalStateException("Decompiler worker pool is closed");
+            }
+            this.running.add(ret);
+        }
+        return ret;
+    }
+
+    private void destroy(Worker worker) {
+        synchronized (this) {
+            this.running.remove(worker);
+        }
+        worker.destroy();
+    }
+
+    /**
+     * Lets the idle workers exit, and kills the ones that are still busy, which only happens when the run is aborted.
+     * The jobs they were running then fail.
+     */
+    @Override
+    public void close() {
+        List<Worker> idle;
+        List<Worker> busy;
+        synchronized (this) {
+            this.closed = true;
+            idle = List.copyOf(this.idle);
+            this.idle.clear();
+            busy = this.running.stream().filter(w -> !idle.contains(w)).toList();
+            this.running.clear();
+        }
+
+        for (var worker : busy) {
+            LOGGER.debug("Killing busy decompiler worker {}", worker.id);
+            worker.destroy();
+        }
+        for (var worker : idle)
+            worker.close();
+    }
+
+    private static final class Worker {
+        private final int id;
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private int jobs;
+
+        private Worker(int id, Process process) {
+            this.id = id;
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        private void run(DecompileJob job) throws IOException {
+            this.jobs++;
+            job.write(this.out);
+            this.out.flush();
+
+            boolean success;
+            String error;
+            try {
+                success = this.in.readBoolean();
+                error = this.in.readUTF();
+            } catch (EOFException e) {
+                throw new IOException("Decompiler worker " + this.id + " exited with code " + waitFor() + " while decompiling " + job.joined(), e);
+            }
+            if (!success)
+                throw new IOException("Decompiler worker " + this.id + " failed to decompile " + job.joined() + ": " + error);
+        }
+
+        private int waitFor() {
+            try {
+                return this.process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+
+        /**
+         * Lets the worker exit on its own by closing its input, which it reads as the end of the jobs.
+         */
+        private void close() {
+            try {
+                this.out.close();
+                if (!this.process.waitFor(30, TimeUnit.SECONDS))
+                    destroy();
+            } catch (IOException e) {
+                destroy();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                destroy();
+            }
+        }
+
+        private void destroy() {
+            this.process.destroyForcibly();
+        }
+    }
+
+    /**
+     * The entry point of a worker process, which runs jobs until its input is closed.
+     */
+    public static void main(String[] args) throws IOException {
+        // Standard output is where the results go, so anything else printed to it has to go to standard error instead
+        var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        var in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+
+        // Kept across jobs, so that the libraries stay mapped
+        Map<Path, LibraryIndex> indexes = new HashMap<>();
+        while (true) {
+            DecompileJob job;
+            try {
+                job = DecompileJob.read(in);
+            } catch (EOFException e) {
+                break;
+            }
+
+            Throwable failure = null;
+            try {
+                job.run(job.libraryIndex() == null ? null : indexes.computeIfAbsent(job.libraryIndex(), LibraryIndex::new));
+            } catch (Exception e) {
+                failure = e;
+            }
+
+            out.writeBoolean(failure == null);
+            out.writeUTF(failure == null ? "" : getStackTrace(failure));
+            out.flush();
+        }
+    }
+
+    private static String getStackTrace(Throwable t) {
+        var writer = new StringWriter();
+        t.printStackTrace(new PrintWriter(writer));
+        var ret = writer.toString();
+        // writeUTF is limited to 64 KiB of UTF-8, so very deep traces are cut off
+        return ret.length() > MAX_TRACE_LENGTH ? ret.substring(0, MAX_TRACE_LENGTH) : ret;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks.decompile;
+
+import net.neoforged.snowblower.util.HashFunction;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A persistent cache of decompiled classes shared by every version.
+ * <p>
+ * Classes are cached in groups of a top-level class and everything nested in it, as that is the unit Vineflower
+ * outputs a source file for. A group is keyed by the bytes of its classes, the decompiler environment (Vineflower,
+ * plugins, arguments and libraries) and the signature fingerprints of every type the group references, including their
+ * super types. As long as none of those change, the group decompiles to the same source in the next version.
+ * <p>
+ * Only the groups that aren't cached, and the groups they depend on, are handed to Vineflower. It still gets the full
+ * {@code joined.jar} as its input, so it sees exactly the same classes as a full decompile would.
+ */
+public class DecompiledClassCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DecompiledClassCache.class);
+    private static final int FORMAT = 1;
+    /** Written by Vineflower when it fails on a class or method, which may be caused by e.g. running out of memory. */
+    private static final String FAILURE_MARKER = "$VF: Couldn't be decompiled";
+
+    private final Path root;
+
+    public DecompiledClassCache(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Decompiles {@code joined} into {@code output}, only passing the class groups that aren't cached to the decompiler.
+     *
+     * @param environment a hash of everything besides {@code joined} that affects the decompiled output
+     * @param decompiler  decompiles the classes starting with the given prefixes, or everything if there are none,
+     *                    and returns the resulting jar
+     */
+    public void decompile(Path joined, Path output, String environment, Decompiler decompiler) throws IOException {
+        Map<String, ClassSummary> classes = new HashMap<>();
+        try (var zip = new ZipFile(joined.toFile())) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().endsWith(".class"))
+                    continue;
+
+                byte[] data;
+                try (var in = zip.getInputStream(entry)) {
+                    data = in.readAllBytes();
+                }
+                var summary = ClassSummary.read(data);
+                classes.put(summary.name(), summary);
+            }
+        }
+
+        Map<String, List<ClassSummary>> groups = new TreeMap<>();
+        for (var cls : classes.values())
+            groups.computeIfAbsent(getGroup(cls.name()), k -> new ArrayList<>()).add(cls);
+
+        Map<String, String> keys = new HashMap<>();
+        Map<String, List<CachedFile>> hits = new TreeMap<>();
+        Set<String> misses = new HashSet<>();
+        // Vineflower only knows how to name classes it was asked to decompile, so the dependencies need to be included
+        Set<String> prefixes = new TreeSet<>();
+        for (var group : groups.entrySet()) {
+            var dependencies = getDependencies(group.getValue(), classes);
+            var key = getKey(environment, group.getValue(), dependencies, classes);
+            keys.put(group.getKey(), key);
+            var cached = load(key);
+            if (cached != null) {
+                hits.put(group.getKey(), cached);
+            } else {
+                misses.add(group.getKey());
+                prefixes.add(group.getKey());
+                dependencies.forEach(d -> prefixes.add(getGroup(d)));
+            }
+        }
+
+        LOGGER.debug("Found {} of {} class groups in the class cache, decompiling {}", hits.size(), groups.size(), prefixes.size());
+
+        Set<String> written = new HashSet<>();
+        try (var out = new ZipOutputStream(Files.newOutputStream(output))) {
+            if (misses.isEmpty()) {
+                copyResources(joined, out, written);
+            } else {
+                var partial = decompiler.decompile(hits.isEmpty() ? List.of() : prefixes);
+                Map<String, List<CachedFile>> decompiled = new HashMap<>();
+                try (var zip = new ZipFile(partial.toFile())) {
+                    var entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        var entry = entries.nextElement();
+                        byte[] data;
+                        try (var in = zip.getInputStream(entry)) {
+                            data = in.readAllBytes();
+                        }
+
+                        var file = new CachedFile(entry.getName(), entry.getExtra(), data);
+                        write(out, file);
+                        written.add(file.name());
+
+                        if (file.name().endsWith(".java")) {
+                            var group = getGroup(file.name().substring(0, file.name().length() - ".java".length()));
+                            if (misses.contains(group))
+                                decompiled.computeIfAbsent(group, k -> new ArrayList<>()).add(file);
+                        }
+                    }
+                } finally {
+                    Files.deleteIfExists(partial);
+                }
+
+                // Groups that produced no output, such as package-info, are cached as well
+                for (var group : misses) {
+                    var files = decompiled.getOrDefault(group, List.of());
+                    if (files.stream().noneMatch(f -> new String(f.data(), StandardCharsets.UTF_8).contains(FAILURE_MARKER)))
+                        save(keys.get(group), files);
+                }
+            }
+
+            for (var files : hits.values()) {
+                for (var file : files) {
+                    // Dependencies, and anything else matching the prefixes, were decompiled again already
+                    if (written.add(file.name()))
+                        write(out, file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the resources the same way Vineflower's {@code SingleFileSaver} does, for when there is nothing to decompile.
+     */
+    private static void copyResources(Path joined, ZipOutputStream out, Set<String> written) throws IOException {
+        try (var zip = new ZipFile(joined.toFile())) {
+            var manifest = zip.getEntry(JarFile.MANIFEST_NAME);
+            if (manifest != null) {
+                var bytes = new ByteArrayOutputStream();
+                try (var in = zip.getInputStream(manifest)) {
+                    new Manifest(in).write(bytes);
+                }
+                // JarOutputStream marks the manifest with the jar magic number
+                write(out, new CachedFile(JarFile.MANIFEST_NAME, new byte[]{(byte) 0xFE, (byte) 0xCA, 0, 0}, bytes.toByteArray()));
+                written.add(JarFile.MANIFEST_NAME);
+            }
+
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory() || entry.getName().endsWith(".class") || !written.add(entry.getName()))
+                    continue;
+
+                try (var in = zip.getInputStream(entry)) {
+                    write(out, new CachedFile(entry.getName(), null, in.readAllBytes()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the top-level class a class is grouped under, which is its name up to the first {@code $}.
+     * Classes which merely have a {@code $} in their name end up grouped with their namesake, which is harmless.
+     */
+    static String getGroup(String name) {
+        int idx = name.indexOf('$', name.lastIndexOf('/') + 2);
+        return idx == -1 ? name : name.substring(0, idx);
+    }
+
+    /**
+     * Returns every class in {@code joined.jar} that the group references, and all of their super types. How a class
+     * decompiles depends on the signatures of those.
+     */
+    static Set<String> getDependencies(List<ClassSummary> group, Map<String, ClassSummary> classes) {
+        Set<String> dependencies = new HashSet<>();
+        List<String> queue = new ArrayList<>();
+        for (var cls : group) {
+            queue.add(cls.name());
+            queue.addAll(cls.references());
+        }
+
+        while (!queue.isEmpty()) {
+            var name = queue.removeLast();
+            var cls = classes.get(name);
+            if (cls == null || !dependencies.add(name))
+                continue; // Not in joined.jar, so covered by the environment, or already visited
+
+            if (cls.superName() != null)
+                queue.add(cls.superName());
+            queue.addAll(cls.interfaces());
+        }
+
+        return dependencies;
+    }
+
+    private static String getKey(String environment, List<ClassSummary> group, Set<String> dependencies, Map<String, ClassSummary> classes) {
+        var digest = HashFunction.SHA1.get();
+        digest.update(("format: " + FORMAT + "\nenvironment: " + environment + '\n').getBytes(StandardCharsets.UTF_8));
+
+        group.stream().sorted(Comparator.comparing(ClassSummary::name)).forEach(cls ->
+                digest.update((cls.name() + ' ' + cls.hash() + '\n').getBytes(StandardCharsets.UTF_8)));
+        dependencies.stream().sorted().forEach(name ->
+                digest.update((name + ' ' + classes.get(name).fingerprint() + '\n').getBytes(StandardCharsets.UTF_8)));
+
+        return HashFunction.toHex(digest.digest());
+    }
+
+    private Path getPath(String key) {
+        return this.root.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    @Nullable
+    private List<CachedFile> load(String key) throws IOException {
+        var path = getPath(key);
+        if (!Files.exists(path))
+            return null;
+
+        try (var in = new DataInputStream(new GZIPInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != FORMAT)
+                return null;
+
+            int count = in.readInt();
+            List<CachedFile> files = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int extraLength = in.readInt();
+                byte[] extra = extraLength == -1 ? null : in.readNBytes(extraLength);
+                byte[] data = in.readNBytes(in.readInt());
+                files.add(new CachedFile(name, extra, data));
+            }
+            return files;
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring unreadable class cache entry {}", path, e);
+            return null;
+        }
+    }
+
+    private void save(String key, Collection<CachedFile> files) throws IOException {
+        var path = getPath(key);
+        Files.createDirectories(path.getParent());
+
+        // Versions may be decompiled in parallel, so never expose a partially written entry
+        var tmp = Files.createTempFile(path.getParent(), key, ".tmp");
+        try {
+            try (var out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(FORMAT);
+                out.writeInt(files.size());
+                for (var file : files) {
+                    out.writeUTF(file.name());
+                    out.writeInt(file.extra() == null ? -1 : file.extra().length);
+                    if (file.extra() != null)
+                        out.write(file.extra());
+                    out.writeInt(file.data().length);
+                    out.write(file.data());
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void write(ZipOutputStream out, CachedFile file) throws IOException {
+        var entry = new ZipEntry(file.name());
+        // Vineflower stores line mappings in the extra data
+        if (file.extra() != null)
+            entry.setExtra(file.extra());
+        out.putNextEntry(entry);
+        out.write(file.data());
+        out.closeEntry();
+    }
+
+    @FunctionalInterface
+    public interface Decompiler {
+        Path decompile(Collection<String> prefixes) throws IOException;
+    }
+
+    private record CachedFile(String name, byte @Nullable [] extra, byte[] data) {}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks.decompile;
+
+import net.neoforged.snowblower.util.FileHashCache;
+import net.neoforged.snowblower.util.HashFunction;
+import net.neoforged.snowblower.util.RunReport;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.java.decompiler.main.extern.IContextSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipFile;
+
+/**
+ * A persistent index of the classes in the decompiler's libraries, shared by every version.
+ * <p>
+ * Vineflower opens every library jar again for each version, reading its central directory and inflating the classes
+ * it needs, even though consecutive versions mostly use the same libraries. Instead, each library is indexed once,
+ * keyed by its SHA-1, into a file holding its class names in sorted order followed by the uncompressed class files.
+ * The file is memory mapped and passed to Vineflower as the library, so looking up a class is a binary search and a
+ * copy out of the page cache. Libraries stay mapped for the rest of the run once they're used.
+ */
+public class LibraryIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LibraryIndex.class);
+    private static final int MAGIC = 0x53424C49; // SBLI
+    private static final int FORMAT = 1;
+    /** Magic, format, class count, pool offset and data offset. */
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+    /** Name, data offset and data length. */
+    private static final int CLASS_SIZE = 3 * Integer.BYTES;
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+    private final Path root;
+    private final Map<String, Library> loaded = new HashMap<>();
+
+    public LibraryIndex(Path root) {
+        this.root = root;
+    }
+
+    public Path getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Returns the index of a library jar, creating it if this is the first time the library is used.
+     */
+    public synchronized IContextSource get(Path jar) throws IOException {
+        var sha1 = FileHashCache.hash(HashFunction.SHA1, jar);
+        var ret = this.loaded.get(sha1);
+        if (ret == null) {
+            var file = this.root.resolve(sha1.substring(0, 2)).resolve(sha1 + ".bin");
+            ret = Files.exists(file) ? load(file, jar) : null;
+            RunReport.current().cacheChecked(ret != null);
+            if (ret == null) {
+                LOGGER.debug("Indexing library {}", jar.getFileName());
+                write(jar, file);
+                ret = load(file, jar);
+                if (ret == null)
+                    throw new IOException("Failed to read the library index just written for " + jar);
+            }
+            this.loaded.put(sha1, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Memory maps an index, or returns {@code null} if it has an older format.
+     */
+    @Nullable
+    private static Library load(Path file, Path jar) throws IOException {
+        ByteBuffer buf;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT)
+            return null;
+
+        int count = buf.getInt(8);
+        int poolOffset = buf.getInt(12);
+        int dataOffset = buf.getInt(16);
+        if (poolOffset != HEADER_SIZE + count * CLASS_SIZE || dataOffset < poolOffset || dataOffset > buf.capacity())
+            throw new IOException("Corrupt library index: " + file);
+
+        return new Library(jar.getFileName().toString(), buf, count, poolOffset);
+    }
+
+    private static void write(Path jar, Path target) throws IOException {
+        // Only the classes of the base version are used for libraries, which is also what Vineflower reads from a jar
+        Map<String, byte[]> classes = new TreeMap<>((a, b) -> Arrays.compareUnsigned(utf8(a), utf8(b)));
+        try (var zip = new ZipFile(jar.toFile())) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                var name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(IContextSource.CLASS_SUFFIX) || name.startsWith(VERSIONS_PREFIX))
+                    continue;
+
+                try (var in = zip.getInputStream(entry)) {
+                    classes.put(name.substring(0, name.length() - IContextSource.CLASS_SUFFIX.length()), in.readAllBytes());
+                }
+            }
+        }
+
+        var records = new ByteArrayOutputStream();
+        var pool = new ByteArrayOutputStream();
+        var recordOut = new DataOutputStream(records);
+        var poolOut = new DataOutputStream(pool);
+        long dataOffset = HEADER_SIZE + (long) classes.size() * CLASS_SIZE;
+        for (var name : classes.keySet())
+            dataOffset += Short.BYTES + utf8(name).length;
+
+        long offset = dataOffset;
+        for (var entry : classes.entrySet()) {
+            var name = utf8(entry.getKey());
+            recordOut.writeInt(pool.size());
+            recordOut.writeInt((int) offset);
+            recordOut.writeInt(entry.getValue().length);
+            poolOut.writeShort(name.length);
+            poolOut.write(name);
+            offset += entry.getValue().length;
+        }
+        if (offset > Integer.MAX_VALUE)
+            throw new IOException("Library is too large to be indexed: " + jar);
+
+        Files.createDirectories(target.getParent());
+        var tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (var out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeInt(classes.size());
+                out.writeInt(HEADER_SIZE + records.size());
+                out.writeInt((int) dataOffset);
+                records.writeTo(out);
+                pool.writeTo(out);
+                for (var data : classes.values())
+                    out.write(data);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A library as seen by Vineflower. The class list is the only thing built on the heap, and only once.
+     */
+    private static final class Library implements IContextSource {
+        private final String name;
+        private final ByteBuffer buf;
+        private final int count;
+        private final int poolOffset;
+        @Nullable
+        private volatile Entries entries;
+
+        private Library(String name, ByteBuffer buf, int count, int poolOffset) {
+            this.name = name;
+            this.buf = buf;
+            this.count = count;
+            this.poolOffset = poolOffset;
+        }
+
+        @Override
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public Entries getEntries() {
+            var ret = this.entries;
+            if (ret == null) {
+                List<Entry> classes = new ArrayList<>(this.count);
+                for (int i = 0; i < this.count; i++)
+                    classes.add(Entry.atBase(name(i)));
+                ret = new Entries(classes, List.of(), List.of());
+                this.entries = ret;
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean hasClass(String className) {
+            return find(className) >= 0;
+        }
+
+        @Override
+        public byte @Nullable [] getClassBytes(String className) {
+            int cls = find(className);
+            if (cls < 0)
+                return null;
+
+            int record = HEADER_SIZE + cls * CLASS_SIZE;
+            var ret = new byte[this.buf.getInt(record + 2 * Integer.BYTES)];
+            this.buf.get(this.buf.getInt(record + Integer.BYTES), ret);
+            return ret;
+        }
+
+        @Override
+        @Nullable
+        public InputStream getInputStream(String resource) {
+            if (!resource.endsWith(CLASS_SUFFIX))
+                return null;
+
+            var data = getClassBytes(resource.substring(0, resource.length() - CLASS_SUFFIX.length()));
+            return data == null ? null : new ByteArrayInputStream(data);
+        }
+
+        private int find(String className) {
+            var key = utf8(className);
+            int lo = 0;
+            int hi = this.count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compare(mid, key);
+                if (cmp < 0)
+                    lo = mid + 1;
+                else if (cmp > 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        /**
+         * Compares the name of a class with {@code key}, in the same order as {@link Arrays#compareUnsigned(byte[], byte[])}.
+         */
+        private int compare(int cls, byte[] key) {
+            int start = this.poolOffset + this.buf.getInt(HEADER_SIZE + cls * CLASS_SIZE);
+            int length = this.buf.getShort(start) & 0xFFFF;
+            int common = Math.min(length, key.length);
+            for (int i = 0; i < common; i++) {
+                int cmp = Byte.compareUnsigned(this.buf.get(start + Short.BYTES + i), key[i]);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return length - key.length;
+        }
+
+        private String name(int cls) {
+            int start = this.poolOffset + this.buf.getInt(HEADER_SIZE + cls * CLASS_SIZE);
+            var bytes = new byte[this.buf.getShort(start) & 0xFFFF];
+            this.buf.get(start + Short.BYTES, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
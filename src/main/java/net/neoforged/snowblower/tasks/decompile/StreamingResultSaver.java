@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks.decompile;
+
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.java.decompiler.main.DecompilerContext;
+import org.jetbrains.java.decompiler.main.extern.IFernflowerPreferences;
+import org.jetbrains.java.decompiler.main.extern.IResultSaver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A Vineflower result saver that hands every file of the decompiled jar to a consumer on another thread, instead of
+ * only writing it to a jar that has to be read back.
+ * <p>
+ * Vineflower saves the resources of the input before it starts decompiling, and the classes one by one once they are
+ * all decompiled. The files are queued as they are saved, and {@link #drain} passes them to the consumer in the same
+ * order, so the consumer can start working through them while the decompile is still running. The queue is bounded,
+ * so a slow consumer holds up the decompiler rather than buffering every class. If a jar is given, it is written as
+ * well and matches the one {@code ConsoleDecompiler} writes.
+ */
+public class StreamingResultSaver implements IResultSaver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingResultSaver.class);
+    private static final int QUEUE_SIZE = 256;
+    private static final Entry END = new Entry("", new byte[0]);
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Set<String> saved = new HashSet<>();
+    private final Map<String, ZipFile> sources = new HashMap<>();
+    @Nullable
+    private final Path jar;
+    @Nullable
+    private ZipOutputStream zip;
+    @Nullable
+    private volatile Throwable failure;
+    private volatile boolean cancelled;
+
+    /**
+     * @param jar where to write the decompiled jar as well, or {@code null} to only pass the files on
+     */
+    public StreamingResultSaver(@Nullable Path jar) {
+        this.jar = jar;
+    }
+
+    /**
+     * Passes the saved files to {@code consumer} on the calling thread until the decompiler {@linkplain #finish finished}.
+     * If the consumer throws, the remaining files are discarded so that the decompiler isn't blocked.
+     *
+     * @throws IOException if the decompiler failed
+     */
+    public void drain(Consumer consumer) throws IOException {
+        try {
+            while (true) {
+                var entry = this.queue.take();
+                if (entry == END)
+                    break;
+                consumer.accept(entry.name(), entry.data());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new RuntimeException("Interrupted while waiting for decompiled files", e);
+        } catch (IOException | RuntimeException | Error e) {
+            cancel();
+            throw e;
+        }
+
+        var failure = this.failure;
+        if (failure instanceof IOException io)
+            throw io;
+        if (failure instanceof RuntimeException re)
+            throw re;
+        if (failure instanceof Error error)
+            throw error;
+        if (failure != null)
+            throw new RuntimeException(failure);
+    }
+
+    /**
+     * Called by the decompiling thread once it's done, with the exception it failed with if any.
+     */
+    public synchronized void finish(@Nullable Throwable failure) {
+        try {
+            for (var source : this.sources.values())
+                source.close();
+            this.sources.clear();
+            if (this.zip != null) {
+                // Only happens when the decompiler failed before closing the archive
+                this.zip.close();
+                this.zip = null;
+            }
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+        }
+        this.failure = failure;
+        put(END);
+    }
+
+    private void cancel() {
+        this.cancelled = true;
+        this.queue.clear();
+    }
+
+    private void put(Entry entry) {
+        try {
+            // Stop waiting once the consumer gave up, as nothing takes from the queue anymore
+            while (!this.cancelled) {
+                if (this.queue.offer(entry, 1, TimeUnit.SECONDS))
+                    return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing decompiled file " + entry.name(), e);
+        }
+    }
+
+    private synchronized void save(String entryName, byte[] data, byte @Nullable [] extra) {
+        if (!this.saved.add(entryName)) {
+            // ConsoleDecompiler keeps the first one as well
+            LOGGER.debug("Zip entry {} already exists, skipping", entryName);
+            return;
+        }
+
+        if (this.zip != null) {
+            try {
+                var entry = new ZipEntry(entryName);
+                if (extra != null)
+                    entry.setExtra(extra);
+                this.zip.putNextEntry(entry);
+                this.zip.write(data);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write " + entryName + " to " + this.jar, e);
+            }
+        }
+        put(new Entry(entryName, data));
+    }
+
+    @Override
+    public synchronized void createArchive(String path, String archiveName, @Nullable Manifest manifest) {
+        try {
+            if (this.jar != null)
+                this.zip = new ZipOutputStream(Files.newOutputStream(this.jar));
+
+            if (manifest != null) {
+                // Written first like a JarOutputStream would, the copy of the input's manifest is skipped as a duplicate
+                var out = new ByteArrayOutputStream();
+                manifest.write(out);
+                save(JarFile.MANIFEST_NAME, out.toByteArray(), null);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create " + this.jar, e);
+        }
+    }
+
+    @Override
+    public void saveDirEntry(String path, String archiveName, String entryName) {
+        // The jar ConsoleDecompiler writes has no directory entries either
+    }
+
+    @Override
+    public synchronized void copyEntry(String source, String path, String archiveName, String entryName) {
+        byte[] data;
+        try {
+            var zip = this.sources.get(source);
+            if (zip == null) {
+                zip = new ZipFile(source);
+                this.sources.put(source, zip);
+            }
+            try (var in = zip.getInputStream(zip.getEntry(entryName))) {
+                data = in.readAllBytes();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to copy " + entryName + " from " + source, e);
+        }
+        save(entryName, data, null);
+    }
+
+    @Override
+    public void saveClassEntry(String path, String archiveName, String qualifiedName, String entryName, String content) {
+        saveClassEntry(path, archiveName, qualifiedName, entryName, content, null);
+    }
+
+    @Override
+    public void saveClassEntry(String path, String archiveName, String qualifiedName, String entryName, String content, int @Nullable [] mapping) {
+        byte[] extra = mapping != null && DecompilerContext.getOption(IFernflowerPreferences.DUMP_CODE_LINES) ? getCodeLineData(mapping) : null;
+        save(entryName, content == null ? new byte[0] : content.getBytes(StandardCharsets.UTF_8), extra);
+    }
+
+    @Override
+    public synchronized void closeArchive(String path, String archiveName) {
+        if (this.zip == null)
+            return;
+
+        try {
+            this.zip.close();
+            this.zip = null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close " + this.jar, e);
+        }
+    }
+
+    @Override
+    public void saveFolder(String path) {
+        // Called for the directory the archive would be written to, which doesn't matter here
+    }
+
+    // Files outside of an archive are passed on the same way as entries, and written to the jar if one is open
+
+    @Override
+    public void copyFile(String source, String path, String entryName) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(Path.of(source));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to copy " + source, e);
+        }
+        save(entryName, data, null);
+    }
+
+    @Override
+    public void saveClassFile(String path, String qualifiedName, String entryName, String content, int @Nullable [] mapping) {
+        saveClassEntry(path, null, qualifiedName, entryName, content, mapping);
+    }
+
+    @FunctionalInterface
+    public interface Consumer {
+        /**
+         * @param name the name of the file in the decompiled jar
+         */
+        void accept(String name, byte[] data) throws IOException;
+    }
+
+    private record Entry(String name, byte[] data) {}
+}
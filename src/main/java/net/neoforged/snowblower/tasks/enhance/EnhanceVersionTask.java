@@ -5,14 +5,11 @@
 package net.neoforged.snowblower.tasks.enhance;
 
 import net.neoforged.snowblower.data.Version;
-import net.neoforged.snowblower.util.HashFunction;
 
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -55,7 +52,10 @@ public class EnhanceVersionTask {
             }
             """;
 
-    public static List<Path> enhance(Path output, Version version) throws IOException {
+    /**
+     * Returns the contents of the extra files added to each version, keyed by their path relative to the output.
+     */
+    public static Map<String, byte[]> getFiles(Version version) {
         var buildData = BUILD_GRADLE_CONTENT
                 .replace("%java_version%", Integer.toString(version.javaVersion().majorVersion())) // This assumes the minimum to be 8 (which it is)
                 .replace("%deps%", Stream.concat(version.libraries().stream()
@@ -67,21 +67,9 @@ public class EnhanceVersionTask {
                 .getBytes(StandardCharsets.UTF_8);
         var settingsData = SETTINGS_GRADLE_CONTENT.getBytes(StandardCharsets.UTF_8);
 
-        List<Path> added = new ArrayList<>();
-
-        writeCached(buildData, added, output.resolve("build.gradle"));
-        writeCached(settingsData, added, output.resolve("settings.gradle"));
-
-        return added;
-    }
-
-    private static void writeCached(byte[] data, List<Path> added, Path path) throws IOException {
-        var existing = Files.exists(path) ? HashFunction.MD5.hash(path) : "";
-        var created = HashFunction.MD5.hash(data);
-
-        if (!existing.equals(created)) {
-            Files.write(path, data);
-            added.add(path);
-        }
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("build.gradle", buildData);
+        files.put("settings.gradle", settingsData);
+        return files;
     }
 }
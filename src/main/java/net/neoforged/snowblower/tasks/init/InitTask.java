@@ -6,6 +6,7 @@ package net.neoforged.snowblower.tasks.init;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -23,6 +24,7 @@ import java.util.Set;
 
 import net.neoforged.snowblower.data.MinecraftVersion;
 import net.neoforged.snowblower.util.Cache;
+import net.neoforged.snowblower.util.TreeCommitter;
 import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
@@ -34,15 +36,52 @@ import net.neoforged.snowblower.util.Util;
 
 public class InitTask {
     private static final String COMMIT_MESSAGE = "Initial commit";
-
-    public static boolean validateOrInit(Path output, Git git, MinecraftVersion start) throws IOException, GitAPIException {
-        var meta = new Cache().comment(
+    // Oldest release timestamp in the Mojang version manifest (that number itself is an approximation but whatever)
+    private static final Date COMMIT_TIME = new Date(1242245460000L);
+    private static final String META_FILENAME = "Snowblower.txt";
+    private static final String[] GIT_ATTRIBUTES = {
+        "* text eol=lf",
+        "*.java text eol=lf",
+        "*.json text eol=lf",
+        "*.xml text eol=lf",
+        "*.bin binary",
+        "*.png binary",
+        "*.gif binary",
+        "*.nbt binary",
+        "*.ogg binary",
+        "# In GitHub, hide resources by default",
+        "src/main/resources/** linguist-generated"
+    };
+    private static final String[] GIT_IGNORE = {
+        ".gradle",
+        "build",
+        "",
+        "# Eclipse",
+        ".settings",
+        ".metadata",
+        ".classpath",
+        ".project",
+        "bin",
+        "",
+        "# IntelliJ",
+        "out",
+        "*.idea",
+        "*.iml"
+    };
+    private static final List<String> WRAPPER_FILES = List.of("gradlew", "gradlew.bat", "gradle/wrapper");
+
+    private static Cache getMeta(MinecraftVersion start) {
+        return new Cache().comment(
             "Source files created by Snowblower",
             "https://github.com/neoforged/snowblower")
             .put("VersionId", Integer.toString(Generator.VERSION_ID))
             .put("Start", start.toString());
+    }
 
-        var metaPath = output.resolve("Snowblower.txt");
+    public static boolean validateOrInit(Path output, Git git, MinecraftVersion start) throws IOException, GitAPIException {
+        var meta = getMeta(start);
+
+        var metaPath = output.resolve(META_FILENAME);
         if (Files.exists(metaPath) && !meta.isValid(metaPath))
             return false;
 
@@ -53,65 +92,21 @@ public class InitTask {
 
             // Create some git metadata files to make life sane
             var attrs = output.resolve(".gitattributes");
-            Util.writeLines(attrs,
-                "* text eol=lf",
-                "*.java text eol=lf",
-                "*.json text eol=lf",
-                "*.xml text eol=lf",
-                "*.bin binary",
-                "*.png binary",
-                "*.gif binary",
-                "*.nbt binary",
-                "*.ogg binary",
-                "# In GitHub, hide resources by default",
-                "src/main/resources/** linguist-generated"
-            );
+            Util.writeLines(attrs, GIT_ATTRIBUTES);
             Util.add(git, attrs);
 
             var ignore = output.resolve(".gitignore");
-            Util.writeLines(ignore,
-                ".gradle",
-                "build",
-                "",
-                "# Eclipse",
-                ".settings",
-                ".metadata",
-                ".classpath",
-                ".project",
-                "bin",
-                "",
-                "# IntelliJ",
-                "out",
-                "*.idea",
-                "*.iml"
-            );
+            Util.writeLines(ignore, GIT_IGNORE);
             Util.add(git, ignore);
 
-            try (var fs = Util.isDev() ? null : FileSystems.newFileSystem(getOurJar(), (ClassLoader) null)) {
-                Path copyParentFolder = fs == null ? Util.getSourcePath() : fs.getRootDirectories().iterator().next();
-                List<String> toCopy = List.of("gradlew", "gradlew.bat", "gradle/wrapper");
-                AddCommand addCmd = git.add();
-
-                for (String filename : toCopy) {
-                    Path copyPath = copyParentFolder.resolve(filename);
-                    if (Files.isRegularFile(copyPath)) {
-                        Files.copy(copyPath, output.resolve(filename), StandardCopyOption.REPLACE_EXISTING);
-                    } else {
-                        Files.walkFileTree(copyPath, new SimpleFileVisitor<>() {
-                            @Override
-                            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                                Path destinationPath = output.resolve(copyParentFolder.relativize(file).toString());
-                                Files.createDirectories(destinationPath.getParent());
-                                Files.copy(file, destinationPath, StandardCopyOption.REPLACE_EXISTING);
-                                return FileVisitResult.CONTINUE;
-                            }
-                        });
-                    }
-                    addCmd.addFilepattern(filename);
-                }
-
-                addCmd.call();
-            }
+            visitWrapperFiles((path, file) -> {
+                Path destinationPath = output.resolve(path);
+                Files.createDirectories(destinationPath.getParent());
+                Files.copy(file, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+            });
+            AddCommand addCmd = git.add();
+            WRAPPER_FILES.forEach(addCmd::addFilepattern);
+            addCmd.call();
 
             DirCache dirCache = git.getRepository().lockDirCache();
             dirCache.getEntry("gradlew").setFileMode(FileMode.EXECUTABLE_FILE);
@@ -125,13 +120,59 @@ public class InitTask {
                 posixFileAttributeView.setPermissions(perms);
             }
 
-            // Oldest release timestamp in the Mojang version manifest (that number itself is an approximation but whatever)
-            Util.commit(git, COMMIT_MESSAGE, new Date(1242245460000L));
+            Util.commit(git, COMMIT_MESSAGE, COMMIT_TIME);
         }
 
         return true;
     }
 
+    /**
+     * Same as {@link #validateOrInit(Path, Git, MinecraftVersion)}, but reads and commits the files through the
+     * {@link TreeCommitter} instead of the working tree.
+     */
+    public static boolean validateOrInit(TreeCommitter committer, MinecraftVersion start) throws IOException {
+        var meta = getMeta(start);
+
+        var existing = committer.read(META_FILENAME);
+        if (existing != null)
+            return meta.isValidContent(new String(existing, StandardCharsets.UTF_8));
+
+        var tree = committer.newTree(path -> true);
+        tree.add(META_FILENAME, meta.toString().getBytes(StandardCharsets.UTF_8));
+        tree.add(".gitattributes", String.join("\n", GIT_ATTRIBUTES).getBytes(StandardCharsets.UTF_8));
+        tree.add(".gitignore", String.join("\n", GIT_IGNORE).getBytes(StandardCharsets.UTF_8));
+        visitWrapperFiles((path, file) -> tree.add(path, Files.readAllBytes(file), path.equals("gradlew") ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE));
+        tree.commit(COMMIT_MESSAGE, COMMIT_TIME);
+
+        return true;
+    }
+
+    private static void visitWrapperFiles(WrapperVisitor visitor) throws IOException {
+        try (var fs = Util.isDev() ? null : FileSystems.newFileSystem(getOurJar(), (ClassLoader) null)) {
+            Path copyParentFolder = fs == null ? Util.getSourcePath() : fs.getRootDirectories().iterator().next();
+
+            for (String filename : WRAPPER_FILES) {
+                Path copyPath = copyParentFolder.resolve(filename);
+                if (Files.isRegularFile(copyPath)) {
+                    visitor.visit(filename, copyPath);
+                } else {
+                    Files.walkFileTree(copyPath, new SimpleFileVisitor<>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                            visitor.visit(copyParentFolder.relativize(file).toString().replace('\\', '/'), file);
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface WrapperVisitor {
+        void visit(String path, Path file) throws IOException;
+    }
+
     private static Path getOurJar() {
         try {
             return Paths.get(InitTask.class.getProtectionDomain().getCodeSource().getLocation().toURI());
@@ -8,64 +8,69 @@ import net.neoforged.snowblower.data.Version;
 import net.neoforged.snowblower.data.VersionManifestV2;
 import net.neoforged.snowblower.github.GitHubActions;
 import net.neoforged.snowblower.tasks.MergeRemapTask;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
 public class ArtifactDiscoverer {
     private static final Logger LOGGER = LoggerFactory.getLogger(ArtifactDiscoverer.class);
 
-    public static void downloadArtifacts(Path rootCache, Path libCache, Path extraMappings, List<VersionManifestV2.VersionInfo> versions, boolean partialCache) throws IOException {
+    /**
+     * Schedules the downloads for every version and waits for the mappings and Minecraft jars, which the tasks expect
+     * to be present. Libraries keep downloading in the background, and each version waits for its own libraries
+     * before decompiling, see {@link #getLibraries(DownloadScheduler, Path, Version)}.
+     */
+    public static void downloadArtifacts(DownloadScheduler downloads, Path rootCache, Path libCache, Path extraMappings, List<VersionManifestV2.VersionInfo> versions, boolean partialCache) throws IOException {
         LOGGER.info("Discovering and downloading artifacts for {} versions", versions.size());
         GitHubActions.logStartGroup("Discovering and downloading artifacts");
 
-        try (ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())) {
-            for (var versionInfo : versions) {
-                Path versionCache = rootCache.resolve(versionInfo.id().toString());
-                Version version = Version.load(versionCache.resolve("version.json"));
-
-                executor.submit(() -> {
-                    downloadVersion(libCache, extraMappings, partialCache, versionCache, version);
-
-                    return null;
-                });
-            }
-
-            executor.shutdown();
-            if (!executor.awaitTermination(10, TimeUnit.MINUTES))
-                throw new RuntimeException("Failed to download all artifacts within 10 minutes? Are we connected to the Internet?");
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted during artifact discovery", e);
+        List<CompletableFuture<Path>> required = new ArrayList<>();
+        for (var versionInfo : versions) {
+            Path versionCache = rootCache.resolve(versionInfo.id().toString());
+            Version version = Version.load(versionCache.resolve("version.json"));
+            downloadVersion(downloads, libCache, extraMappings, partialCache, versionCache, version, required);
         }
 
+        downloads.awaitAll(required);
+
         GitHubActions.logEndGroup();
     }
 
-    private static void downloadVersion(Path libCache, Path extraMappings, boolean partialCache, Path versionCache, Version version) throws IOException {
+    private static void downloadVersion(DownloadScheduler downloads, Path libCache, Path extraMappings, boolean partialCache, Path versionCache, Version version,
+            List<CompletableFuture<Path>> required) {
         // Client and server mappings
-        downloadMappings(versionCache, extraMappings, version, "client");
-        downloadMappings(versionCache, extraMappings, version, "server");
+        for (var type : List.of("client", "server")) {
+            required.add(downloads.submit(versionCache.resolve(type + "_mappings.txt"), getUrl(version, type + "_mappings"),
+                    () -> downloadMappings(versionCache, extraMappings, version, type)));
+        }
 
         // Client and server jar
         if (!partialCache) {
             // Only download client and server jar ahead of time if the partial cache is disabled;
             // otherwise, we may be able to skip if the joined jar is downloaded and up-to-date
-            MergeRemapTask.downloadMinecraftJar("client", versionCache, version);
-            MergeRemapTask.downloadMinecraftJar("server", versionCache, version);
+            for (var type : List.of("client", "server")) {
+                required.add(downloads.submit(versionCache.resolve(type + ".jar"), getUrl(version, type),
+                        () -> MergeRemapTask.downloadMinecraftJar(type, versionCache, version)));
+            }
         }
 
-        // Libraries
-        downloadLibraries(libCache, version);
+        // Libraries, which aren't waited for
+        getLibraryFutures(downloads, libCache, version);
+    }
+
+    @Nullable
+    private static URL getUrl(Version version, String key) {
+        var download = version.downloads() == null ? null : version.downloads().get(key);
+        return download == null ? null : download.url();
     }
 
     private static Void downloadMappings(Path versionCache, Path extraMappings, Version version, String type) throws IOException {
@@ -93,12 +98,24 @@ public class ArtifactDiscoverer {
         return null;
     }
 
-    private static Set<String> librariesInProgress = new HashSet<>();
+    /**
+     * Returns the libraries of a version, waiting for the ones that are still being downloaded. Downloads are moved
+     * into place once complete, so a library that exists is never partially written.
+     *
+     * @throws IOException if a library failed to download
+     */
+    public static List<Path> getLibraries(DownloadScheduler downloads, Path libCache, Version version) throws IOException {
+        List<Path> ret = new ArrayList<>();
+        for (var future : getLibraryFutures(downloads, libCache, version))
+            ret.add(DownloadScheduler.join(future));
+        return ret;
+    }
 
-    private static void downloadLibraries(Path libCache, Version version) throws IOException {
+    private static List<CompletableFuture<Path>> getLibraryFutures(DownloadScheduler downloads, Path libCache, Version version) {
         if (version.libraries() == null)
-            return;
+            return List.of();
 
+        List<CompletableFuture<Path>> ret = new ArrayList<>();
         for (var lib : version.libraries()) {
             if (lib.downloads() == null || !lib.downloads().containsKey("artifact"))
                 continue;
@@ -111,20 +128,9 @@ public class ArtifactDiscoverer {
             }
 
             var target = libCache.resolve(dl.path());
-
-            if (!Files.exists(target)) {
-                synchronized (ArtifactDiscoverer.class) {
-                    if (!librariesInProgress.add(dl.path()))
-                        continue;
-                }
-
-                Files.createDirectories(target.getParent());
-                Util.downloadFile(target, dl.url(), dl.sha1());
-
-                synchronized (ArtifactDiscoverer.class) {
-                    librariesInProgress.remove(dl.path());
-                }
-            }
+            // Every version needing the same library shares one future
+            ret.add(Files.exists(target) ? CompletableFuture.completedFuture(target) : downloads.submit(target, dl.url(), () -> Util.downloadFile(target, dl)));
         }
+        return ret;
     }
 }
@@ -34,7 +34,7 @@ public class Cache {
         if (path == null)
             return this;
 
-        data.put(key, HashFunction.SHA1.hash(path));
+        data.put(key, FileHashCache.hash(HashFunction.SHA1, path));
         return this;
     }
 
@@ -44,11 +44,28 @@ public class Cache {
     }
 
     public void write(Path target) throws IOException {
+        Files.writeString(target, toString());
+    }
+
+    @Override
+    public String toString() {
         StringBuilder buf = new StringBuilder();
         if (comment != null)
             buf.append(comment).append("\n\n");
         data.forEach((k,v) -> buf.append(k).append(": ").append(v).append('\n'));
-        Files.writeString(target, buf.toString());
+        return buf.toString();
+    }
+
+    /**
+     * Hashes the entries accepted by {@code shouldConsider}, for use as part of a larger key.
+     */
+    public String hash(Predicate<String> shouldConsider) {
+        StringBuilder buf = new StringBuilder();
+        data.forEach((k, v) -> {
+            if (shouldConsider.test(k))
+                buf.append(k).append(": ").append(v).append('\n');
+        });
+        return HashFunction.SHA1.hash(buf.toString());
     }
 
     public boolean isValid(Path target) throws IOException {
@@ -56,23 +73,36 @@ public class Cache {
     }
 
     public boolean isValid(Path target, Predicate<String> shouldConsider) throws IOException {
-        if (!Files.exists(target))
-            return false;
+        boolean valid = false;
+        if (Files.exists(target)) {
+            try (Stream<String> stream = Files.lines(target)) {
+                valid = isValid(stream, shouldConsider);
+            }
+        }
+        RunReport.current().cacheChecked(valid);
+        return valid;
+    }
+
+    /**
+     * Validates against the contents of a key file that isn't on disk, e.g., one read from a git tree.
+     */
+    public boolean isValidContent(String content) {
+        return isValid(content.lines(), e -> true);
+    }
 
+    private boolean isValid(Stream<String> lines, Predicate<String> shouldConsider) {
         Map<String, String> existing = new HashMap<>();
-        try (Stream<String> stream = Files.lines(target)) {
-            stream.forEach(l -> {
-                int idx = l.indexOf(' ');
-                if (idx <= 1 || l.charAt(idx - 1) != ':') // We don't care about comments.
-                    return;
-
-                String key = l.substring(0, idx - 1);
-                String value = l.substring(idx + 1);
-                if (shouldConsider.test(key)) {
-                    existing.put(key, value);
-                }
-            });
-        }
+        lines.forEach(l -> {
+            int idx = l.indexOf(' ');
+            if (idx <= 1 || l.charAt(idx - 1) != ':') // We don't care about comments.
+                return;
+
+            String key = l.substring(0, idx - 1);
+            String value = l.substring(idx + 1);
+            if (shouldConsider.test(key)) {
+                existing.put(key, value);
+            }
+        });
         return existing.equals(data);
     }
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.eclipse.jgit.attributes.Attribute;
+import org.eclipse.jgit.attributes.Attributes;
+import org.eclipse.jgit.attributes.AttributesNode;
+import org.eclipse.jgit.attributes.AttributesRule;
+import org.eclipse.jgit.lib.CoreConfig.EolStreamType;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk.OperationType;
+import org.eclipse.jgit.treewalk.WorkingTreeOptions;
+import org.eclipse.jgit.util.io.EolStreamTypeUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Converts line endings the way git does when a file is added, for code that stages or commits blobs directly.
+ * <p>
+ * The conversion depends on the {@code .gitattributes} at the root of the repository, such as the {@code * text eol=lf}
+ * written by {@code InitTask}, and the {@code core.autocrlf} and {@code core.eol} settings of the repository. Nested
+ * attribute files and the global attributes aren't considered, as the repository doesn't have any.
+ */
+public class CheckInFilter {
+    /** The built-in macro git expands {@code binary} to, which JGit only does when walking a repository. */
+    private static final List<Attribute> BINARY = List.of(
+            new Attribute("diff", Attribute.State.UNSET),
+            new Attribute("merge", Attribute.State.UNSET),
+            new Attribute("text", Attribute.State.UNSET)
+    );
+
+    private final List<AttributesRule> rules;
+    private final WorkingTreeOptions options;
+
+    /**
+     * @param gitattributes the content of the {@code .gitattributes} at the root of the repository, or {@code null} if
+     *                      it doesn't have one
+     */
+    public CheckInFilter(Repository repo, byte @Nullable [] gitattributes) throws IOException {
+        var node = new AttributesNode();
+        if (gitattributes != null)
+            node.parse(new ByteArrayInputStream(gitattributes));
+        this.rules = node.getRules();
+        this.options = repo.getConfig().get(WorkingTreeOptions.KEY);
+    }
+
+    /**
+     * Returns the content git would store for a file with the given content, which is the same array if nothing needs
+     * to be converted.
+     *
+     * @param path the path relative to the root of the repository, separated by {@code /}
+     */
+    public byte[] apply(String path, byte[] data) throws IOException {
+        // Every conversion on check-in only ever removes carriage returns
+        if (!contains(data, (byte) '\r'))
+            return data;
+
+        var type = EolStreamTypeUtil.detectStreamType(OperationType.CHECKIN_OP, this.options, getAttributes(path));
+        if (type == EolStreamType.DIRECT)
+            return data;
+
+        try (var in = EolStreamTypeUtil.wrapInputStream(new ByteArrayInputStream(data), type)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private Attributes getAttributes(String path) {
+        var ret = new Attributes();
+        // Later lines take precedence over earlier ones
+        for (var rule : this.rules) {
+            if (!rule.isMatch(path, false))
+                continue;
+            for (var attribute : rule.getAttributes()) {
+                ret.put(attribute);
+                if (attribute.getKey().equals("binary") && attribute.getState() == Attribute.State.SET)
+                    BINARY.forEach(ret::put);
+            }
+        }
+        return ret;
+    }
+
+    private static boolean contains(byte[] data, byte value) {
+        for (var b : data) {
+            if (b == value)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Produces several versions at once while keeping the combined decompiler heap usage within a budget.
+ * <p>
+ * Vineflower's memory usage grows with the size of the jar being decompiled, so the number of concurrent decompiles
+ * is bounded by an estimate of the heap each {@code joined.jar} needs rather than by the core count. Queued versions
+ * are started largest first so that the biggest ones don't end up at the tail of the run.
+ */
+public class DecompileScheduler implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DecompileScheduler.class);
+    private static final long MB = 1024 * 1024;
+    /** Heap kept aside for everything that isn't decompiling, e.g., JGit and the merge/remap tasks. */
+    private static final long RESERVED_HEAP_MB = 512;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Semaphore heap;
+    private final int heapBudgetMb;
+    private final int heapPerJarMb;
+    private final int decompilerThreads;
+
+    /**
+     * @param maxParallel  the maximum number of versions produced at the same time
+     * @param heapPerJarMb the estimated heap in megabytes needed to decompile one megabyte of {@code joined.jar}
+     */
+    public DecompileScheduler(int maxParallel, int heapPerJarMb) {
+        if (maxParallel < 1)
+            throw new IllegalArgumentException("Must allow at least one decompile at a time: " + maxParallel);
+        if (heapPerJarMb < 1)
+            throw new IllegalArgumentException("Heap estimate must be positive: " + heapPerJarMb);
+
+        this.heapBudgetMb = (int) Math.max(1, Runtime.getRuntime().maxMemory() / MB - RESERVED_HEAP_MB);
+        this.heapPerJarMb = heapPerJarMb;
+        this.heap = new Semaphore(this.heapBudgetMb, true);
+        this.decompilerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / maxParallel);
+
+        var threadId = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxParallel, maxParallel, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "Snowblower-Producer-" + threadId.getAndIncrement()));
+
+        LOGGER.info("Producing up to {} versions in parallel with a decompiler heap budget of {} MB and {} decompiler threads each",
+                maxParallel, this.heapBudgetMb, this.decompilerThreads);
+    }
+
+    public int getParallelism() {
+        return this.executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns how many threads a single Vineflower run should use so that parallel runs share the cores between them.
+     */
+    public int getDecompilerThreads() {
+        return this.decompilerThreads;
+    }
+
+    /**
+     * Queues a task. Tasks with a larger {@code size} are started first; ties are started in submission order.
+     */
+    public <T> Future<T> submit(long size, Callable<T> task) {
+        var job = new Job<>(task, size, this.sequence.getAndIncrement());
+        this.executor.execute(job);
+        return job;
+    }
+
+    /**
+     * Runs a decompile of the given jar once enough of the heap budget is free for it.
+     */
+    public void decompile(Path joined, Util.IORunnable action) throws IOException {
+        int permits = estimateHeapMb(joined);
+        try {
+            this.heap.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for decompiler heap budget", e);
+        }
+
+        try {
+            action.run();
+        } finally {
+            this.heap.release(permits);
+        }
+    }
+
+    private int estimateHeapMb(Path joined) throws IOException {
+        long jarMb = Math.max(1, (Files.size(joined) + MB - 1) / MB);
+        // A single decompile may always run, even if the estimate exceeds the budget
+        return (int) Math.min(this.heapBudgetMb, jarMb * this.heapPerJarMb);
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+        try {
+            if (!this.executor.awaitTermination(1, TimeUnit.HOURS))
+                LOGGER.warn("Timed out waiting for producer threads to finish");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+        private final long size;
+        private final long sequence;
+
+        private Job(Callable<T> callable, long size, long sequence) {
+            super(callable);
+            this.size = size;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Job<?> o) {
+            int ret = Long.compare(o.size, this.size);
+            return ret != 0 ? ret : Long.compare(this.sequence, o.sequence);
+        }
+    }
+}
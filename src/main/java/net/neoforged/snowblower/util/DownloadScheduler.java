@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs downloads on virtual threads, with a limit on how many run against the same host at once.
+ * <p>
+ * Downloads are deduplicated by their target file, so an artifact shared by many versions, like most libraries, is
+ * only downloaded once and every version waits on the same future. Failures are kept in the futures and reported by
+ * {@link #awaitAll()}, together with periodic progress and throughput.
+ * <p>
+ * A download takes one connection to its host, and may take more with {@link #acquireConnections(int)} to fetch
+ * several ranges at once, so that it stays within the limit as well.
+ */
+public class DownloadScheduler implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DownloadScheduler.class);
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+    /** The connections to the host of the download running on the current thread, if any. */
+    private static final ThreadLocal<Semaphore> HOST = new ThreadLocal<>();
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+    private final Map<Path, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+    private final int perHost;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param perHost the maximum number of concurrent downloads from a single host
+     */
+    public DownloadScheduler(int perHost) {
+        this.perHost = perHost;
+    }
+
+    /**
+     * Schedules {@code download} to create {@code target}, unless it was already scheduled.
+     *
+     * @param url the URL the file comes from, used to limit requests per host, or {@code null} if it isn't a download
+     * @return a future completed with {@code target} once {@code download} finished
+     */
+    public CompletableFuture<Path> submit(Path target, @Nullable URL url, Util.IORunnable download) {
+        return this.downloads.computeIfAbsent(target.toAbsolutePath().normalize(), k -> {
+            var host = url == null || url.getHost().isEmpty() ? null : this.hosts.computeIfAbsent(url.getHost(), h -> new Semaphore(this.perHost));
+            // Shared downloads are reported under the stage that needed them first
+            var stage = RunReport.current();
+            return CompletableFuture.supplyAsync(() -> {
+                try (var scope = stage.attach()) {
+                    if (host != null) {
+                        host.acquire();
+                        HOST.set(host);
+                    }
+                    try {
+                        download.run();
+                    } finally {
+                        if (host != null) {
+                            HOST.remove();
+                            host.release();
+                        }
+                    }
+
+                    this.completed.incrementAndGet();
+                    if (Files.exists(target))
+                        this.bytes.addAndGet(Files.size(target));
+                    return target;
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                } catch (InterruptedException e) {
+                    throw new CompletionException(new RuntimeException("Interrupted while downloading " + target, e));
+                }
+            }, this.executor);
+        });
+    }
+
+    /**
+     * Takes up to {@code max} more connections to the host of the download running on the current thread, without
+     * waiting for them. Downloads that aren't run by a scheduler aren't limited, so they get all of them.
+     *
+     * @return how many connections were taken, which have to be given back with {@link #releaseConnections(int)}
+     */
+    static int acquireConnections(int max) {
+        var host = HOST.get();
+        if (host == null)
+            return max;
+
+        int ret = 0;
+        while (ret < max && host.tryAcquire())
+            ret++;
+        return ret;
+    }
+
+    /**
+     * Gives back connections taken with {@link #acquireConnections(int)}.
+     */
+    static void releaseConnections(int count) {
+        var host = HOST.get();
+        if (host != null && count > 0)
+            host.release(count);
+    }
+
+    /**
+     * Waits for {@code target}, if it was scheduled, rethrowing its failure.
+     */
+    public void await(Path target) throws IOException {
+        var future = this.downloads.get(target.toAbsolutePath().normalize());
+        if (future != null)
+            join(future);
+    }
+
+    /**
+     * Waits for every scheduled download, logging progress while doing so.
+     *
+     * @throws IOException if any download failed, with the other failures suppressed
+     */
+    public void awaitAll() throws IOException {
+        awaitAll(this.downloads.values());
+    }
+
+    /**
+     * Waits for the given downloads, logging progress while doing so.
+     *
+     * @throws IOException if any download failed, with the other failures suppressed
+     */
+    public void awaitAll(Collection<CompletableFuture<Path>> downloads) throws IOException {
+        List<CompletableFuture<Path>> futures = new ArrayList<>(downloads);
+        var all = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+        long pending = futures.stream().filter(f -> !f.isDone()).count();
+        long start = System.nanoTime();
+        int startCompleted = this.completed.get();
+        long startBytes = this.bytes.get();
+
+        while (true) {
+            try {
+                all.get(PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                break;
+            } catch (TimeoutException e) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                LOGGER.info("Downloaded {}/{} artifacts, {} MB at {} MB/s", this.completed.get() - startCompleted, pending,
+                        (this.bytes.get() - startBytes) >> 20, String.format("%.1f", (this.bytes.get() - startBytes) / seconds / (1 << 20)));
+            } catch (ExecutionException e) {
+                break; // Collected below
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted while waiting for downloads", e);
+            }
+        }
+
+        IOException failure = null;
+        for (var future : futures) {
+            try {
+                join(future);
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = new IOException("Failed to download all artifacts");
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Waits for a future returned by {@link #submit(Path, URL, Util.IORunnable)}, rethrowing its failure.
+     */
+    public static Path join(CompletableFuture<Path> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            if (e.getCause() instanceof RuntimeException re)
+                throw re;
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+}
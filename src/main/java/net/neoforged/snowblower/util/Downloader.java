@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import net.neoforged.snowblower.jfr.DownloadEvent;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Downloads a file to a {@code .part} file next to it, which is only moved into place once it is complete and verified.
+ * <p>
+ * Failed attempts resume where they stopped using HTTP range requests, and a {@code .part} file left over from an
+ * earlier run is resumed as well. If a resumed file turns out to be broken, it is downloaded once more from scratch.
+ * The SHA-1 is computed while the bytes come in, so the file is never read back.
+ * <p>
+ * Large files whose size is known up front are fetched as several ranges at once, if the server supports it and the
+ * {@link DownloadScheduler} has connections to spare for the host. The ranges are written to a {@code .ranges} file
+ * instead, which is never resumed, as it has holes until every range is complete. As the ranges arrive out of order,
+ * such files are read back once to compute their SHA-1.
+ * <p>
+ * Several processes may share the cache, such as the coordinator and the workers of a run split over several processes,
+ * so a download holds a lock on a {@code .lock} file next to it. A download which finds that another process completed
+ * the file while it waited for the lock uses that file instead of downloading it again.
+ */
+public class Downloader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Downloader.class);
+    private static final int MAX_ATTEMPTS = 10;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Files at least this large are split into up to {@link #PARALLEL_RANGES} ranges. */
+    private static final long PARALLEL_THRESHOLD = 16 * 1024 * 1024;
+    private static final int PARALLEL_RANGES = 4;
+    /** File locks are held by the whole process, so downloads of the same file in this process wait for each other here. */
+    private static final Map<Path, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final Path part;
+    private final Path ranges;
+    private final URI uri;
+    @Nullable
+    private final String sha1;
+    private final long size;
+    /** Captured up front, as ranges are downloaded on other threads. */
+    private final RunReport.Stage stage = RunReport.current();
+    private final LongAdder transferred = new LongAdder();
+    private final DownloadEvent event = new DownloadEvent();
+
+    private Downloader(Path file, URI uri, @Nullable String sha1, long size) {
+        this.file = file;
+        this.part = file.resolveSibling(file.getFileName() + ".part");
+        this.ranges = file.resolveSibling(file.getFileName() + ".ranges");
+        this.uri = uri;
+        this.sha1 = sha1;
+        this.size = size;
+    }
+
+    /**
+     * @param sha1 the expected SHA-1, or {@code null} if it isn't known
+     * @param size the expected size in bytes, or {@code -1} if it isn't known
+     */
+    public static void download(Path file, URI uri, @Nullable String sha1, long size) throws IOException {
+        var downloader = new Downloader(file, uri, sha1, size);
+        downloader.event.begin();
+        // Taken before waiting for the locks, to tell whether the file was downloaded in the meantime
+        var before = lastModified(file);
+        var lock = LOCKS.computeIfAbsent(file, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            downloader.runLocked(before);
+            downloader.event.success = true;
+        } finally {
+            lock.unlock();
+            downloader.commitEvent();
+        }
+    }
+
+    private void runLocked(@Nullable FileTime before) throws IOException {
+        var lock = this.file.resolveSibling(this.file.getFileName() + ".lock");
+        try (var channel = FileChannel.open(lock, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             var held = channel.lock()) {
+            var after = lastModified(this.file);
+            if (after != null && !after.equals(before) && matches(this.file, this.sha1 == null ? null : HashFunction.SHA1.hash(this.file))) {
+                LOGGER.debug("{} was downloaded while waiting for it", this.uri);
+                return;
+            }
+            run();
+        }
+    }
+
+    @Nullable
+    private static FileTime lastModified(Path file) throws IOException {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void commitEvent() {
+        this.event.end();
+        if (!this.event.shouldCommit())
+            return;
+
+        var version = this.stage.getVersion();
+        this.event.version = version == null ? "" : version;
+        this.event.url = this.uri.toString();
+        this.event.file = this.file.toString();
+        this.event.size = this.size;
+        this.event.bytesDownloaded = this.transferred.sum();
+        this.event.commit();
+    }
+
+    private void run() throws IOException {
+        LOGGER.debug("Downloading {}", this.uri);
+        // Left over from a run that was killed, the ranges it has can't be told apart from the holes
+        Files.deleteIfExists(this.ranges);
+
+        this.event.ranges = 1;
+        if (this.size >= PARALLEL_THRESHOLD && !Files.exists(this.part) && supportsRanges()) {
+            // This download already holds one connection to the host
+            int extra = DownloadScheduler.acquireConnections(PARALLEL_RANGES - 1);
+            try {
+                if (extra > 0) {
+                    this.event.ranges = extra + 1;
+                    downloadRanges(extra + 1);
+                    // The ranges arrive out of order, so this is the one case where the file needs to be read again
+                    var actual = this.sha1 == null ? null : HashFunction.SHA1.hash(this.ranges);
+                    verify(this.ranges, actual);
+                    Files.move(this.ranges, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    return;
+                }
+            } finally {
+                DownloadScheduler.releaseConnections(extra);
+            }
+        }
+
+        boolean resumed = Files.exists(this.part);
+        var actual = downloadSequential();
+        if (resumed && !matches(this.part, actual)) {
+            // The part file was broken to begin with, e.g. written by another program
+            LOGGER.warn("Resumed download of {} doesn't match, downloading it again", this.uri);
+            Files.delete(this.part);
+            actual = downloadSequential();
+        }
+        verify(this.part, actual);
+        Files.move(this.part, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean matches(Path downloaded, @Nullable String actual) throws IOException {
+        return (this.size < 0 || Files.size(downloaded) == this.size) && (this.sha1 == null || this.sha1.equals(actual));
+    }
+
+    /**
+     * Checks the size and SHA-1 of a downloaded file, deleting it if either is wrong.
+     */
+    private void verify(Path downloaded, @Nullable String actual) throws IOException {
+        if (this.size >= 0 && Files.size(downloaded) != this.size) {
+            long actualSize = Files.size(downloaded);
+            Files.delete(downloaded);
+            throw new IOException("Failed to download " + this.uri + " Invalid Size:\n" +
+                    "    Expected: " + this.size + "\n" +
+                    "    Actual: " + actualSize);
+        }
+
+        if (this.sha1 != null && !this.sha1.equals(actual)) {
+            Files.delete(downloaded);
+            throw new IOException("Failed to download " + this.uri + " Invalid Hash:\n" +
+                    "    Expected: " + this.sha1 + "\n" +
+                    "    Actual: " + actual);
+        }
+    }
+
+    /**
+     * Downloads the whole file in order, resuming after failures, and returns its SHA-1.
+     */
+    private String downloadSequential() throws IOException {
+        var digest = HashFunction.SHA1.get();
+        try (var channel = FileChannel.open(this.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            // Pick up where an earlier run left off
+            var buf = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buf.clear()) != -1)
+                digest.update(buf.array(), 0, buf.position());
+            if (channel.position() > 0) {
+                LOGGER.debug("Resuming download of {} at {} bytes", this.uri, channel.position());
+                this.event.resumed = true;
+            }
+
+            retry(() -> {
+                long position = channel.position();
+                if (this.size >= 0 && position == this.size)
+                    return; // Already complete, the hash will tell if it's right
+
+                var request = Util.newHttpRequest(this.uri);
+                if (position > 0)
+                    request.header("Range", "bytes=" + position + '-');
+                var response = send(request.GET().build());
+
+                if (response.statusCode() == HttpURLConnection.HTTP_OK && position > 0) {
+                    reset(channel, digest); // Ranges aren't supported after all, so start over
+                } else if (response.statusCode() != HttpURLConnection.HTTP_OK && response.statusCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    response.body().close();
+                    if (response.statusCode() == 416) // Range Not Satisfiable, the part file is broken
+                        reset(channel, digest);
+                    throw new IOException("HTTP Response Code " + response.statusCode());
+                }
+
+                try (var in = response.body()) {
+                    copy(in, channel, digest);
+                }
+            });
+        } catch (IOException e) {
+            throw new IOException("Failed to download " + this.uri + " - exceeded max attempts of " + MAX_ATTEMPTS, e);
+        }
+
+        return HashFunction.toHex(digest.digest());
+    }
+
+    private static void reset(FileChannel channel, MessageDigest digest) throws IOException {
+        channel.truncate(0);
+        digest.reset();
+    }
+
+    private boolean supportsRanges() {
+        try {
+            var response = Util.HTTP_CLIENT.send(Util.newHttpRequest(this.uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                    HttpResponse.BodyHandlers.discarding());
+            return response.statusCode() == HttpURLConnection.HTTP_OK
+                    && response.headers().firstValue("Accept-Ranges").orElse("").equals("bytes")
+                    && response.headers().firstValueAsLong("Content-Length").orElse(-1) == this.size;
+        } catch (IOException e) {
+            return false; // The normal download reports the error if there is one
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while downloading " + this.uri, e);
+        }
+    }
+
+    private void downloadRanges(int ranges) throws IOException {
+        long rangeSize = (this.size + ranges - 1) / ranges;
+        try (var channel = FileChannel.open(this.ranges, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long start = 0; start < this.size; start += rangeSize) {
+                long first = start;
+                long last = Math.min(start + rangeSize, this.size) - 1;
+                futures.add(executor.submit(() -> {
+                    downloadRange(channel, first, last);
+                    return null;
+                }));
+            }
+
+            for (var future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            Files.deleteIfExists(this.ranges); // Partially written ranges can't be resumed
+            throw e.getCause() instanceof IOException io ? io : new IOException("Failed to download " + this.uri, e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while downloading " + this.uri, e);
+        }
+    }
+
+    private void downloadRange(FileChannel channel, long first, long last) throws IOException {
+        long[] position = {first};
+        try {
+            retry(() -> {
+                var request = Util.newHttpRequest(this.uri).header("Range", "bytes=" + position[0] + '-' + last).GET().build();
+                var response = send(request);
+                try (var in = response.body()) {
+                    if (response.statusCode() != HttpURLConnection.HTTP_PARTIAL)
+                        throw new IOException("HTTP Response Code " + response.statusCode());
+
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int cnt;
+                    while (position[0] <= last && (cnt = in.read(buf, 0, (int) Math.min(buf.length, last + 1 - position[0]))) != -1) {
+                        var data = ByteBuffer.wrap(buf, 0, cnt);
+                        while (data.hasRemaining())
+                            position[0] += channel.write(data, position[0]);
+                        downloaded(cnt);
+                    }
+                }
+
+                if (position[0] <= last)
+                    throw new IOException("Connection closed at " + position[0] + " of range " + first + '-' + last);
+            });
+        } catch (IOException e) {
+            throw new IOException("Failed to download " + this.uri + " - exceeded max attempts of " + MAX_ATTEMPTS, e);
+        }
+    }
+
+    private HttpResponse<InputStream> send(HttpRequest request) throws IOException {
+        try {
+            return Util.HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while downloading " + this.uri, e);
+        }
+    }
+
+    private void downloaded(int bytes) {
+        this.stage.downloaded(bytes);
+        this.transferred.add(bytes);
+    }
+
+    private void copy(InputStream in, FileChannel channel, MessageDigest digest) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int cnt;
+        while ((cnt = in.read(buf, 0, buf.length)) != -1) {
+            var data = ByteBuffer.wrap(buf, 0, cnt);
+            while (data.hasRemaining())
+                channel.write(data);
+            digest.update(buf, 0, cnt);
+            downloaded(cnt);
+        }
+    }
+
+    /**
+     * Runs {@code attempt} until it succeeds, backing off the same way as {@link Util#downloadJson(java.net.URL, Class)}.
+     */
+    private void retry(Util.IORunnable attempt) throws IOException {
+        long waitTime = 1_000L;
+        for (int attempts = 1; ; attempts++) {
+            try {
+                attempt.run();
+                return;
+            } catch (IOException e) {
+                if (attempts == MAX_ATTEMPTS)
+                    throw e;
+
+                LOGGER.warn("Failed to download {}, attempt: {}/{}, error: {}, retrying in {} ms...", this.uri, attempts, MAX_ATTEMPTS, e, waitTime);
+                try {
+                    Thread.sleep(waitTime);
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException("Interrupted while downloading " + this.uri, ie);
+                }
+                waitTime = (waitTime >= Util.MAX_REQUEST_WAIT_MS) ? Util.MAX_REQUEST_WAIT_MS : waitTime * ((long) Math.pow(2, attempts));
+            }
+        }
+    }
+}
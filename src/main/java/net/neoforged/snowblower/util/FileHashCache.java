@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent memo of file hashes, so that large files which haven't changed aren't hashed again on every run.
+ * <p>
+ * Hashes are keyed by the absolute path of a file and are only reused while its size, modification time and file key
+ * (the inode, where the file system has one) are unchanged. Like git's index, a hash is not trusted if the file was
+ * modified shortly before it was hashed, as another write within the resolution of the modification time would go
+ * unnoticed.
+ * <p>
+ * Version workers share the cache directory, and with it this file. Saving merges the entries this process hashed into
+ * the ones on disk while holding a lock, so that processes don't drop each other's hashes.
+ */
+public class FileHashCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileHashCache.class);
+    private static final int FORMAT = 1;
+    /** The coarsest modification time resolution of common file systems, which is FAT's two seconds. */
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+    @Nullable
+    private static volatile FileHashCache instance;
+
+    private final Path file;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    /** The entries hashed by this process, which take precedence over the ones on disk when saving. */
+    private final Map<Path, Entry> updated = new ConcurrentHashMap<>();
+
+    private FileHashCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Sets the cache used by {@link #hash(HashFunction, Path)}, or disables it if {@code null}.
+     */
+    public static void setInstance(@Nullable FileHashCache cache) {
+        instance = cache;
+    }
+
+    /**
+     * Hashes a file, using the shared cache if one is set.
+     */
+    public static String hash(HashFunction function, Path file) throws IOException {
+        var cache = instance;
+        return cache == null ? function.hash(file) : cache.get(function, file);
+    }
+
+    /**
+     * Loads the cache from {@code file}. Missing or unreadable caches start out empty.
+     */
+    public static FileHashCache load(Path file) {
+        var ret = new FileHashCache(file);
+        ret.entries.putAll(read(file));
+        return ret;
+    }
+
+    private static Map<Path, Entry> read(Path file) {
+        Map<Path, Entry> ret = new HashMap<>();
+        if (!Files.exists(file))
+            return ret;
+
+        try (var lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            var iterator = lines.iterator();
+            if (!iterator.hasNext() || !iterator.next().equals("format: " + FORMAT))
+                return ret;
+
+            while (iterator.hasNext()) {
+                var entry = Entry.parse(iterator.next());
+                ret.put(entry.path(), entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Ignoring unreadable file hash cache {}", file, e);
+            ret.clear();
+        }
+        return ret;
+    }
+
+    public String get(HashFunction function, Path file) throws IOException {
+        var path = file.toAbsolutePath().normalize();
+        var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        String fileKey = Objects.toString(attributes.fileKey(), "");
+
+        var entry = this.entries.get(path);
+        if (entry != null && entry.size() == size && entry.modified() == modified && entry.fileKey().equals(fileKey)
+                && modified < entry.hashed() - RACY_NANOS) {
+            var hash = entry.hashes().get(function);
+            if (hash != null)
+                return hash;
+        }
+
+        // Read the time before hashing, so a write during hashing is always seen as racy
+        long hashed = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        var hash = function.hash(path);
+        Map<HashFunction, String> hashes = new ConcurrentHashMap<>();
+        // Keep the other hashes if the file is unchanged
+        if (entry != null && entry.size() == size && entry.modified() == modified && entry.fileKey().equals(fileKey))
+            hashes.putAll(entry.hashes());
+        hashes.put(function, hash);
+        var updated = new Entry(path, size, modified, fileKey, hashed, hashes);
+        this.entries.put(path, updated);
+        this.updated.put(path, updated);
+        return hash;
+    }
+
+    /**
+     * Merges the entries hashed since the last save into the file, dropping the entries of files that no longer exist.
+     * Entries other processes saved in the meantime are kept, unless this process hashed the same file later.
+     */
+    public void save() throws IOException {
+        if (this.updated.isEmpty())
+            return;
+
+        Files.createDirectories(this.file.getParent());
+        var lock = this.file.resolveSibling(this.file.getFileName() + ".lock");
+        try (var channel = FileChannel.open(lock, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             var held = channel.lock()) {
+            // Files hashed while saving are left for the next save
+            var saving = Map.copyOf(this.updated);
+            var merged = read(this.file);
+            for (var entry : saving.values())
+                merged.merge(entry.path(), entry, (a, b) -> a.hashed() > b.hashed() ? a : b);
+            merged.keySet().removeIf(p -> !Files.exists(p));
+
+            var tmp = Files.createTempFile(this.file.getParent(), this.file.getFileName().toString(), ".tmp");
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    writer.write("format: " + FORMAT + '\n');
+                    for (var entry : merged.values())
+                        writer.write(entry.format() + '\n');
+                }
+                Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            saving.forEach(this.updated::remove);
+        }
+    }
+
+    /**
+     * @param hashed the time the file was hashed, in nanoseconds since the epoch
+     */
+    private record Entry(Path path, long size, long modified, String fileKey, long hashed, Map<HashFunction, String> hashes) {
+        static Entry parse(String line) {
+            var parts = line.split("\t", -1);
+            Map<HashFunction, String> hashes = new ConcurrentHashMap<>();
+            for (var hash : parts[5].split(",")) {
+                int idx = hash.indexOf('=');
+                hashes.put(HashFunction.valueOf(hash.substring(0, idx)), hash.substring(idx + 1));
+            }
+            return new Entry(Path.of(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3], Long.parseLong(parts[4]), hashes);
+        }
+
+        String format() {
+            var buf = new StringBuilder();
+            buf.append(this.path).append('\t').append(this.size).append('\t').append(this.modified).append('\t')
+                    .append(this.fileKey).append('\t').append(this.hashed).append('\t');
+            this.hashes.forEach((k, v) -> buf.append(k.name()).append('=').append(v).append(','));
+            buf.setLength(buf.length() - 1);
+            return buf.toString();
+        }
+    }
+}
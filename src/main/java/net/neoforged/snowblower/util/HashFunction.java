@@ -4,18 +4,21 @@
  */
 package net.neoforged.snowblower.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Different hash functions.
@@ -25,6 +28,9 @@ import java.util.Locale;
  *
  * <p>This class offers a cleaner method to retrieve an instance of these hashing functions, without having to wrap in a
  * {@code try}-{@code catch} block.</p>
+ *
+ * <p>Files and streams are hashed in chunks rather than being read into memory, and each thread reuses its own digest
+ * for the {@code hash} methods.</p>
  */
 public enum HashFunction {
     MD5("md5", 32),
@@ -32,8 +38,12 @@ public enum HashFunction {
     SHA256("SHA-256", 64),
     SHA512("SHA-512", 128);
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     private final String algo;
     private final String pad;
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(this::get);
 
     HashFunction(String algo, int length) {
         this.algo = algo;
@@ -44,6 +54,9 @@ public enum HashFunction {
         return this.name().toLowerCase(Locale.ROOT);
     }
 
+    /**
+     * Creates a new digest, which the caller owns.
+     */
     public MessageDigest get() {
         try {
             return MessageDigest.getInstance(algo);
@@ -52,23 +65,35 @@ public enum HashFunction {
         }
     }
 
+    /**
+     * Returns this thread's digest, reset and ready to use. It must not escape the calling method.
+     */
+    private MessageDigest digest() {
+        var ret = this.digest.get();
+        ret.reset();
+        return ret;
+    }
+
     public String hash(File file) throws IOException {
         return hash(file.toPath());
     }
 
     public String hash(Path file) throws IOException {
-        return hash(Files.readAllBytes(file));
+        return hash(file, this).get(this);
     }
 
     public String hash(Iterable<File> files) throws IOException {
-        MessageDigest hash = get();
+        MessageDigest hash = digest();
+        var buf = ByteBuffer.allocate(BUFFER_SIZE);
 
         for (File file : files) {
             if (!file.exists())
                 continue;
-            hash.update(Files.readAllBytes(file.toPath()));
+            try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                update(channel, buf, hash);
+            }
         }
-        return pad(new BigInteger(1, hash.digest()).toString(16));
+        return toHex(hash.digest());
     }
 
     public String hash(String data) {
@@ -76,28 +101,61 @@ public enum HashFunction {
     }
 
     public String hash(InputStream stream) throws IOException {
-        return hash(toByteArray(stream));
+        MessageDigest hash = digest();
+        byte[] buf = new byte[BUFFER_SIZE];
+        int cnt;
+        while ((cnt = stream.read(buf, 0, buf.length)) != -1)
+            hash.update(buf, 0, cnt);
+        return toHex(hash.digest());
     }
 
     public String hash(byte[] data) {
-        return pad(new BigInteger(1, get().digest(data)).toString(16));
+        return toHex(digest().digest(data));
     }
 
     public String pad(String hash) {
         return (pad + hash).substring(hash.length());
     }
 
-    private static byte[] toByteArray(InputStream input) throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        copy(input, output);
-        return output.toByteArray();
+    /**
+     * Hashes a file with several functions at once, reading it only once. Repeated functions are only hashed once, as
+     * each function has a single digest per thread.
+     */
+    public static Map<HashFunction, String> hash(Path file, HashFunction... functions) throws IOException {
+        var distinct = EnumSet.noneOf(HashFunction.class);
+        distinct.addAll(Arrays.asList(functions));
+        var ordered = distinct.toArray(HashFunction[]::new);
+        var digests = new MessageDigest[ordered.length];
+        for (int i = 0; i < ordered.length; i++)
+            digests[i] = ordered[i].digest();
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            update(channel, ByteBuffer.allocate(BUFFER_SIZE), digests);
+        }
+
+        Map<HashFunction, String> ret = new EnumMap<>(HashFunction.class);
+        for (int i = 0; i < ordered.length; i++)
+            ret.put(ordered[i], toHex(digests[i].digest()));
+        return ret;
+    }
+
+    private static void update(FileChannel channel, ByteBuffer buf, MessageDigest... digests) throws IOException {
+        while (channel.read(buf.clear()) != -1) {
+            for (var digest : digests)
+                digest.update(buf.array(), 0, buf.position());
+        }
+        RunReport.current().read(channel.position());
     }
 
-    private static void copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buf = new byte[0x100];
-        int cnt = 0;
-        while ((cnt = input.read(buf, 0, buf.length)) != -1) {
-            output.write(buf, 0, cnt);
+    /**
+     * Formats a digest as lowercase hex, which is always the full length and needs no {@link #pad(String) padding}.
+     */
+    public static String toHex(byte[] digest) {
+        var chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xF];
         }
+        return new String(chars);
     }
 }
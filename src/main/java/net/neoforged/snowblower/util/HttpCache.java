@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An on-disk cache for small HTTP resources that change over time, such as the version manifest.
+ * <p>
+ * Responses are stored together with their {@code ETag} and {@code Last-Modified} headers, which are sent back as
+ * {@code If-None-Match} and {@code If-Modified-Since} on the next request, so an unchanged resource costs a single
+ * {@code 304} response. In offline mode, the cached copy is used without asking the server at all.
+ */
+public class HttpCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpCache.class);
+    @Nullable
+    private static volatile HttpCache instance;
+
+    private final Path root;
+    private final boolean offline;
+
+    public HttpCache(Path root, boolean offline) {
+        this.root = root;
+        this.offline = offline;
+    }
+
+    /**
+     * Sets the cache used by {@link Util#downloadJson(URL, Class)}, or disables it if {@code null}.
+     */
+    public static void setInstance(@Nullable HttpCache cache) {
+        instance = cache;
+    }
+
+    @Nullable
+    public static HttpCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns whether the network must not be used.
+     */
+    public static boolean isOffline() {
+        var cache = instance;
+        return cache != null && cache.offline;
+    }
+
+    /**
+     * Returns the body of {@code url}, from the cache if the server says it hasn't changed.
+     */
+    public byte[] get(URL url) throws IOException {
+        var key = HashFunction.SHA1.hash(url.toString());
+        var body = this.root.resolve(key + ".body");
+        var meta = this.root.resolve(key + ".meta");
+        var headers = Files.exists(body) && Files.exists(meta) ? readMeta(meta) : Map.<String, String>of();
+
+        if (this.offline) {
+            if (!Files.exists(body))
+                throw new IOException("Can't download " + url + " in offline mode, as it isn't cached");
+            return Files.readAllBytes(body);
+        }
+
+        var etag = headers.get("etag");
+        var lastModified = headers.get("last-modified");
+        // The no-cache headers would tell caches along the way to ignore the validators, so they're only sent without any
+        var request = etag == null && lastModified == null ? Util.newHttpRequest(Util.toURI(url)) : HttpRequest.newBuilder(Util.toURI(url));
+        if (etag != null)
+            request.header("If-None-Match", etag);
+        if (lastModified != null)
+            request.header("If-Modified-Since", lastModified);
+
+        var response = Util.download(url, request.GET().build(), HttpResponse.BodyHandlers::ofByteArray);
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            LOGGER.debug("Using cached copy of {}", url);
+            return Files.readAllBytes(body);
+        }
+
+        RunReport.current().downloaded(response.body().length);
+        Map<String, String> updated = new LinkedHashMap<>();
+        updated.put("url", url.toString());
+        response.headers().firstValue("ETag").ifPresent(v -> updated.put("etag", v));
+        response.headers().firstValue("Last-Modified").ifPresent(v -> updated.put("last-modified", v));
+
+        Files.createDirectories(this.root);
+        // The body has to be in place before the headers that validate it
+        write(body, response.body());
+        var buf = new StringBuilder();
+        updated.forEach((k, v) -> buf.append(k).append(": ").append(v).append('\n'));
+        write(meta, buf.toString().getBytes(StandardCharsets.UTF_8));
+
+        return response.body();
+    }
+
+    private static Map<String, String> readMeta(Path meta) throws IOException {
+        Map<String, String> ret = new LinkedHashMap<>();
+        for (var line : Files.readAllLines(meta)) {
+            int idx = line.indexOf(": ");
+            if (idx != -1)
+                ret.put(line.substring(0, idx), line.substring(idx + 2));
+        }
+        return ret;
+    }
+
+    private static void write(Path target, byte[] data) throws IOException {
+        var tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import net.neoforged.snowblower.jfr.GitEvent;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Updates the working tree and the index of a repository to a new set of files, using the index to find what changed.
+ * <p>
+ * The blob id of every file is compared to the id recorded in the index, so unchanged files are never read from or
+ * written to disk. Changed files are written and staged directly, with their line endings converted the way
+ * {@code git add} would, see {@link CheckInFilter}, and every file under the prefix that isn't passed to
+ * {@link #write(String, byte[])} is removed once {@link #finish()} is called. The index is locked until this is closed.
+ * <p>
+ * If this is closed without finishing, for example because the decompiler failed while its files were passed on, the
+ * files written so far are restored to what the index has, so that the working tree isn't left with half a version.
+ */
+public class IndexSync implements AutoCloseable {
+    private final Repository repo;
+    private final Path root;
+    private final DirCache index;
+    private final DirCacheEditor editor;
+    private final ObjectInserter inserter;
+    private final CheckInFilter filter;
+    private final Set<String> stale = new HashSet<>();
+    /** The files changed in the working tree, which are restored if this isn't finished. */
+    private final Set<String> touched = new HashSet<>();
+    private final GitEvent event = new GitEvent("index");
+    private long written;
+    private int added;
+    private int changed;
+    private int removed;
+    private boolean finished;
+
+    /**
+     * @param prefix the directory whose files are all replaced, which must end with {@code /}
+     */
+    public IndexSync(Repository repo, String prefix) throws IOException {
+        this.event.begin();
+        this.repo = repo;
+        this.root = repo.getWorkTree().toPath();
+        this.index = repo.lockDirCache();
+        this.editor = this.index.editor();
+        this.inserter = repo.newObjectInserter();
+        var attributes = this.root.resolve(Constants.DOT_GIT_ATTRIBUTES);
+        this.filter = new CheckInFilter(repo, Files.exists(attributes) ? Files.readAllBytes(attributes) : null);
+
+        for (int i = 0; i < this.index.getEntryCount(); i++) {
+            var path = this.index.getEntry(i).getPathString();
+            if (path.startsWith(prefix))
+                this.stale.add(path);
+        }
+    }
+
+    /**
+     * Writes and stages a file, unless the index already has the same content for it.
+     *
+     * @param path the path relative to the working tree, separated by {@code /}
+     */
+    public void write(String path, byte[] data) throws IOException {
+        this.stale.remove(path);
+        // The working tree gets the file as is, like it would if it were added with git
+        var blob = this.filter.apply(path, data);
+        var id = this.inserter.idFor(Constants.OBJ_BLOB, blob);
+        var existing = this.index.getEntry(path);
+        if (existing != null && existing.getObjectId().equals(id))
+            return;
+
+        var target = this.root.resolve(path);
+        if (existing == null && Files.exists(target)) {
+            // On case-insensitive file systems, a file that only differs in case is still there from the last version
+            var realPath = target.toRealPath(LinkOption.NOFOLLOW_LINKS);
+            if (!realPath.toString().equals(target.toString())) {
+                var old = this.root.relativize(realPath).toString().replace('\\', '/'); // JGit requires / even on windows
+                this.touched.add(old);
+                Files.delete(realPath);
+                this.stale.remove(old);
+                this.editor.add(new DirCacheEditor.DeletePath(old));
+            }
+        }
+
+        this.touched.add(path);
+        Files.createDirectories(target.getParent());
+        Files.write(target, data);
+        this.inserter.insert(Constants.OBJ_BLOB, blob);
+        RunReport.current().written(data.length);
+        this.written += data.length;
+
+        // Record the size and time of the written file, so that git doesn't consider it modified
+        var length = data.length;
+        var modified = Files.getLastModifiedTime(target).toInstant();
+        this.editor.add(new DirCacheEditor.PathEdit(path) {
+            @Override
+            public void apply(DirCacheEntry ent) {
+                ent.setFileMode(FileMode.REGULAR_FILE);
+                ent.setObjectId(id);
+                ent.setLength(length);
+                ent.setLastModified(modified);
+            }
+        });
+        if (existing == null)
+            this.added++;
+        else
+            this.changed++;
+    }
+
+    /**
+     * Removes the files that weren't written, and writes the index if anything changed.
+     *
+     * @return the number of files that were written or removed
+     */
+    public int finish() throws IOException {
+        for (var path : this.stale) {
+            Files.deleteIfExists(this.root.resolve(path));
+            this.editor.add(new DirCacheEditor.DeletePath(path));
+            this.removed++;
+        }
+        this.stale.clear();
+
+        int total = this.added + this.changed + this.removed;
+        if (total > 0) {
+            this.inserter.flush();
+            this.editor.finish();
+            this.index.write();
+            this.index.commit();
+        }
+        this.finished = true;
+
+        this.event.end();
+        if (this.event.shouldCommit()) {
+            this.event.filesAdded = this.added;
+            this.event.filesChanged = this.changed;
+            this.event.filesRemoved = this.removed;
+            this.event.bytesWritten = this.written;
+            this.event.commit();
+        }
+        return total;
+    }
+
+    public int getAdded() {
+        return this.added;
+    }
+
+    public int getChanged() {
+        return this.changed;
+    }
+
+    public int getRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * Restores the files written so far to the content recorded in the index, or removes them if they aren't in it.
+     */
+    private void restore() throws IOException {
+        try (var reader = this.repo.newObjectReader()) {
+            for (var path : this.touched) {
+                var target = this.root.resolve(path);
+                var entry = this.index.getEntry(path);
+                if (entry == null) {
+                    Files.deleteIfExists(target);
+                } else {
+                    Files.createDirectories(target.getParent());
+                    try (var out = Files.newOutputStream(target)) {
+                        reader.open(entry.getObjectId(), Constants.OBJ_BLOB).copyTo(out);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!this.finished && !this.touched.isEmpty())
+                restore();
+        } finally {
+            this.inserter.close();
+            this.index.unlock();
+        }
+    }
+}
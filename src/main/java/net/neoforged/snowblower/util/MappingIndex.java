@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import net.neoforged.srgutils.IMappingFile;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary form of a mapping file, which is memory mapped instead of parsed, for looking up classes and members by
+ * either their original or their mapped names.
+ * <p>
+ * The file consists of a header, the classes sorted by original name, the indices of the classes sorted by mapped
+ * name, the members of all classes and a pool of deduplicated strings. Each class has its fields sorted by original
+ * name and its methods sorted by original name and descriptor, so forward lookups are binary searches. Strings are
+ * compared as UTF-8 bytes, which is the order they are sorted in when written. Reverse lookups of members scan the
+ * members of their class, as classes only have a few of them.
+ */
+public final class MappingIndex {
+    private static final int MAGIC = 0x53424D49; // SBMI
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+    /** Original, mapped, first field, field count, first method, method count. */
+    private static final int CLASS_SIZE = 6 * Integer.BYTES;
+    /** Original, mapped, descriptor and mapped descriptor, the latter two being -1 if missing. */
+    private static final int MEMBER_SIZE = 4 * Integer.BYTES;
+    private static final Comparator<byte[]> UTF8_ORDER = Arrays::compareUnsigned;
+
+    private final ByteBuffer buf;
+    private final int classCount;
+    private final int reverseOffset;
+    private final int membersOffset;
+    private final int poolOffset;
+
+    private MappingIndex(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT)
+            throw new IOException("Not a mapping index of format " + FORMAT);
+
+        this.classCount = buf.getInt(8);
+        int memberCount = buf.getInt(12);
+        this.reverseOffset = HEADER_SIZE + this.classCount * CLASS_SIZE;
+        this.membersOffset = this.reverseOffset + this.classCount * Integer.BYTES;
+        this.poolOffset = buf.getInt(16);
+        if (this.poolOffset != this.membersOffset + memberCount * MEMBER_SIZE || this.poolOffset > buf.capacity())
+            throw new IOException("Corrupt mapping index");
+    }
+
+    /**
+     * Memory maps an index written by {@link #write(IMappingFile, Path)}.
+     */
+    public static MappingIndex load(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new MappingIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static void write(IMappingFile mappings, Path target) throws IOException {
+        var pool = new Pool();
+        List<IMappingFile.IClass> classes = new ArrayList<>(mappings.getClasses());
+        classes.sort(Comparator.comparing(c -> utf8(c.getOriginal()), UTF8_ORDER));
+
+        var classData = new ByteArrayOutputStream();
+        var memberData = new ByteArrayOutputStream();
+        var classOut = new DataOutputStream(classData);
+        var memberOut = new DataOutputStream(memberData);
+        int members = 0;
+        for (var cls : classes) {
+            List<IMappingFile.IField> fields = new ArrayList<>(cls.getFields());
+            fields.sort(Comparator.comparing(f -> utf8(f.getOriginal()), UTF8_ORDER));
+            List<IMappingFile.IMethod> methods = new ArrayList<>(cls.getMethods());
+            methods.sort(Comparator.<IMappingFile.IMethod, byte[]>comparing(m -> utf8(m.getOriginal()), UTF8_ORDER)
+                    .thenComparing(m -> utf8(m.getDescriptor()), UTF8_ORDER));
+
+            classOut.writeInt(pool.add(cls.getOriginal()));
+            classOut.writeInt(pool.add(cls.getMapped()));
+            classOut.writeInt(members);
+            classOut.writeInt(fields.size());
+            classOut.writeInt(members + fields.size());
+            classOut.writeInt(methods.size());
+
+            for (var field : fields)
+                writeMember(memberOut, pool, field.getOriginal(), field.getMapped(), field.getDescriptor(), field.getMappedDescriptor());
+            for (var method : methods)
+                writeMember(memberOut, pool, method.getOriginal(), method.getMapped(), method.getDescriptor(), method.getMappedDescriptor());
+            members += fields.size() + methods.size();
+        }
+
+        Integer[] reverse = new Integer[classes.size()];
+        for (int i = 0; i < reverse.length; i++)
+            reverse[i] = i;
+        Arrays.sort(reverse, Comparator.comparing(i -> utf8(classes.get(i).getMapped()), UTF8_ORDER));
+
+        var data = new ByteArrayOutputStream();
+        var out = new DataOutputStream(data);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeInt(classes.size());
+        out.writeInt(members);
+        out.writeInt(HEADER_SIZE + classData.size() + reverse.length * Integer.BYTES + memberData.size());
+        classData.writeTo(out);
+        for (int i : reverse)
+            out.writeInt(i);
+        memberData.writeTo(out);
+        pool.data.writeTo(out);
+
+        var tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, data.toByteArray());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void writeMember(DataOutputStream out, Pool pool, String original, String mapped, @Nullable String desc, @Nullable String mappedDesc) throws IOException {
+        out.writeInt(pool.add(original));
+        out.writeInt(pool.add(mapped));
+        out.writeInt(desc == null ? -1 : pool.add(desc));
+        out.writeInt(mappedDesc == null ? -1 : pool.add(mappedDesc));
+    }
+
+    private static byte[] utf8(@Nullable String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public int getClassCount() {
+        return this.classCount;
+    }
+
+    /**
+     * Looks up a class by its original name, in internal form.
+     */
+    @Nullable
+    public ClassEntry getClass(String original) {
+        var key = utf8(original);
+        int lo = 0;
+        int hi = this.classCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(this.buf.getInt(classOffset(mid)), key);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return new ClassEntry(mid);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up a class by its mapped name, in internal form.
+     */
+    @Nullable
+    public ClassEntry getClassByMapped(String mapped) {
+        var key = utf8(mapped);
+        int lo = 0;
+        int hi = this.classCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cls = this.buf.getInt(this.reverseOffset + mid * Integer.BYTES);
+            int cmp = compare(this.buf.getInt(classOffset(cls) + Integer.BYTES), key);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return new ClassEntry(cls);
+        }
+        return null;
+    }
+
+    private int classOffset(int cls) {
+        return HEADER_SIZE + cls * CLASS_SIZE;
+    }
+
+    private int memberOffset(int member) {
+        return this.membersOffset + member * MEMBER_SIZE;
+    }
+
+    /**
+     * Compares the pooled string at {@code offset} with {@code key}, in the same order as {@link Arrays#compareUnsigned(byte[], byte[])}.
+     * A missing string, with an offset of -1, is treated as empty.
+     */
+    private int compare(int offset, byte[] key) {
+        if (offset < 0)
+            return key.length == 0 ? 0 : -1;
+
+        int start = this.poolOffset + offset;
+        int length = this.buf.getShort(start) & 0xFFFF;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Byte.compareUnsigned(this.buf.get(start + Short.BYTES + i), key[i]);
+            if (cmp != 0)
+                return cmp;
+        }
+        return length - key.length;
+    }
+
+    @Nullable
+    private String string(int offset) {
+        if (offset < 0)
+            return null;
+
+        int start = this.poolOffset + offset;
+        var bytes = new byte[this.buf.getShort(start) & 0xFFFF];
+        this.buf.get(start + Short.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public final class ClassEntry {
+        private final int offset;
+
+        private ClassEntry(int cls) {
+            this.offset = classOffset(cls);
+        }
+
+        public String getOriginal() {
+            return string(buf.getInt(this.offset));
+        }
+
+        public String getMapped() {
+            return string(buf.getInt(this.offset + Integer.BYTES));
+        }
+
+        public List<MemberEntry> getFields() {
+            return members(buf.getInt(this.offset + 2 * Integer.BYTES), buf.getInt(this.offset + 3 * Integer.BYTES));
+        }
+
+        public List<MemberEntry> getMethods() {
+            return members(buf.getInt(this.offset + 4 * Integer.BYTES), buf.getInt(this.offset + 5 * Integer.BYTES));
+        }
+
+        private List<MemberEntry> members(int first, int count) {
+            List<MemberEntry> ret = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                ret.add(new MemberEntry(first + i));
+            return ret;
+        }
+
+        /**
+         * Looks up a field by its original name.
+         */
+        @Nullable
+        public MemberEntry getField(String original) {
+            return find(buf.getInt(this.offset + 2 * Integer.BYTES), buf.getInt(this.offset + 3 * Integer.BYTES), utf8(original), null);
+        }
+
+        /**
+         * Looks up a method by its original name and descriptor.
+         */
+        @Nullable
+        public MemberEntry getMethod(String original, String descriptor) {
+            return find(buf.getInt(this.offset + 4 * Integer.BYTES), buf.getInt(this.offset + 5 * Integer.BYTES), utf8(original), utf8(descriptor));
+        }
+
+        @Nullable
+        private MemberEntry find(int first, int count, byte[] name, byte @Nullable [] descriptor) {
+            int lo = first;
+            int hi = first + count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int member = memberOffset(mid);
+                int cmp = compare(buf.getInt(member), name);
+                if (cmp == 0 && descriptor != null)
+                    cmp = compare(buf.getInt(member + 2 * Integer.BYTES), descriptor);
+                if (cmp < 0)
+                    lo = mid + 1;
+                else if (cmp > 0)
+                    hi = mid - 1;
+                else
+                    return new MemberEntry(mid);
+            }
+            return null;
+        }
+
+        /**
+         * Looks up a field by its mapped name.
+         */
+        @Nullable
+        public MemberEntry getFieldByMapped(String mapped) {
+            return findMapped(getFields(), utf8(mapped), null);
+        }
+
+        /**
+         * Looks up a method by its mapped name and mapped descriptor.
+         */
+        @Nullable
+        public MemberEntry getMethodByMapped(String mapped, String mappedDescriptor) {
+            return findMapped(getMethods(), utf8(mapped), utf8(mappedDescriptor));
+        }
+
+        @Nullable
+        private MemberEntry findMapped(List<MemberEntry> members, byte[] name, byte @Nullable [] descriptor) {
+            for (var member : members) {
+                if (compare(buf.getInt(member.offset + Integer.BYTES), name) == 0
+                        && (descriptor == null || compare(buf.getInt(member.offset + 3 * Integer.BYTES), descriptor) == 0))
+                    return member;
+            }
+            return null;
+        }
+    }
+
+    public final class MemberEntry {
+        private final int offset;
+
+        private MemberEntry(int member) {
+            this.offset = memberOffset(member);
+        }
+
+        public String getOriginal() {
+            return string(buf.getInt(this.offset));
+        }
+
+        public String getMapped() {
+            return string(buf.getInt(this.offset + Integer.BYTES));
+        }
+
+        @Nullable
+        public String getDescriptor() {
+            return string(buf.getInt(this.offset + 2 * Integer.BYTES));
+        }
+
+        @Nullable
+        public String getMappedDescriptor() {
+            return string(buf.getInt(this.offset + 3 * Integer.BYTES));
+        }
+    }
+
+    /**
+     * Deduplicated strings, each stored as its length as an unsigned short followed by its UTF-8 bytes.
+     */
+    private static final class Pool {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(this.data);
+        private final Map<String, Integer> offsets = new HashMap<>();
+
+        private int add(String value) throws IOException {
+            var existing = this.offsets.get(value);
+            if (existing != null)
+                return existing;
+
+            var bytes = utf8(value);
+            if (bytes.length > 0xFFFF)
+                throw new IOException("Name too long for a mapping index: " + value.substring(0, 100) + "...");
+            int offset = this.data.size();
+            this.out.writeShort(bytes.length);
+            this.out.write(bytes);
+            this.offsets.put(value, offset);
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.neoforged.snowblower.jfr.StageEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Records how long each stage of a run took and how much I/O it did, so that slow runs can be attributed to the
+ * decompiler, git or the network.
+ * <p>
+ * Stages are either part of a version, like the tasks producing it, or of the run as a whole, like pushing. The stage
+ * a thread works for is set with {@link Stage#time()} or {@link Stage#attach()}, and code doing I/O adds to
+ * {@link #current()}, so it doesn't need to know which stage it runs in. When no report is set, stages are still
+ * handed out but not kept.
+ * <p>
+ * CPU time is that of the thread running a stage, so work handed off to other threads, like Vineflower's worker
+ * threads, is only part of the CPU time of the whole run.
+ * <p>
+ * Every time a stage is timed, a {@link StageEvent} is emitted as well, so that a flight recording shows what the
+ * decompiler and the garbage collector were working on. The I/O of an event is counted separately from the stage, so
+ * that stages timed at the same time, like the tasks of several versions in flight, don't show up in each other's
+ * events. Threads attached to the stage returned by {@link #current()} within a timed scope count towards its event.
+ */
+public class RunReport {
+    private static final Stage DETACHED = new Stage(null, "detached");
+    private static final ThreadLocal<Stage> CURRENT = new ThreadLocal<>();
+    @Nullable
+    private static volatile RunReport instance;
+
+    private final Instant started = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final long startCpuNanos = processCpuTime();
+    private final Map<String, Stage> run = new LinkedHashMap<>();
+    private final Map<String, Map<String, Stage>> versions = new LinkedHashMap<>();
+
+    /**
+     * Sets the report stages are recorded in, or disables recording if {@code null}.
+     */
+    public static void setInstance(@Nullable RunReport report) {
+        instance = report;
+    }
+
+    /**
+     * Returns the stage to record into, creating it if needed.
+     *
+     * @param version the version the stage is part of, or {@code null} if it is part of the whole run
+     */
+    public static Stage stage(@Nullable String version, String name) {
+        var report = instance;
+        return report == null ? new Stage(version, name) : report.get(version, name);
+    }
+
+    /**
+     * Returns the stage the current thread works for, which discards everything if there is none.
+     */
+    public static Stage current() {
+        var ret = CURRENT.get();
+        return ret == null ? DETACHED : ret;
+    }
+
+    private synchronized Stage get(@Nullable String version, String name) {
+        var stages = version == null ? this.run : this.versions.computeIfAbsent(version, k -> new LinkedHashMap<>());
+        return stages.computeIfAbsent(name, k -> new Stage(version, k));
+    }
+
+    public synchronized void write(Path target) throws IOException {
+        var json = new JsonObject();
+        json.addProperty("started", this.started.toString());
+        json.addProperty("wallMs", Duration.ofNanos(System.nanoTime() - this.startNanos).toMillis());
+        long cpu = processCpuTime();
+        if (cpu >= 0 && this.startCpuNanos >= 0)
+            json.addProperty("cpuMs", Duration.ofNanos(cpu - this.startCpuNanos).toMillis());
+        json.add("stages", toJson(this.run));
+
+        var versions = new JsonArray();
+        this.versions.forEach((version, stages) -> {
+            var entry = new JsonObject();
+            entry.addProperty("version", version);
+            entry.add("stages", toJson(stages));
+            versions.add(entry);
+        });
+        json.add("versions", versions);
+
+        if (target.getParent() != null)
+            Files.createDirectories(target.getParent());
+        Files.writeString(target, new GsonBuilder().setPrettyPrinting().create().toJson(json));
+    }
+
+    private static JsonObject toJson(Map<String, Stage> stages) {
+        var ret = new JsonObject();
+        stages.forEach((name, stage) -> ret.add(name, stage.toJson()));
+        return ret;
+    }
+
+    /**
+     * Returns a summary of the run as markdown tables: the run stages, every stage summed over all versions, and
+     * the wall time of every stage per version.
+     */
+    public synchronized String toMarkdown() {
+        var buf = new StringBuilder("## Snowblower run\n\n");
+        buf.append("Took ").append(formatTime(System.nanoTime() - this.startNanos));
+        long cpu = processCpuTime();
+        if (cpu >= 0 && this.startCpuNanos >= 0)
+            buf.append(" with ").append(formatTime(cpu - this.startCpuNanos)).append(" of CPU time");
+        buf.append(" for ").append(this.versions.size()).append(" versions.\n\n");
+
+        Map<String, Stage> totals = new LinkedHashMap<>(this.run);
+        for (var stages : this.versions.values()) {
+            for (var stage : stages.values())
+                totals.merge(stage.name, stage, Stage::sum);
+        }
+        if (!totals.isEmpty()) {
+            buf.append("| Stage | Runs | Wall | CPU | Downloaded | Read | Written | Cache hits | Files +/~/- |\n");
+            buf.append("|---|--:|--:|--:|--:|--:|--:|--:|--:|\n");
+            totals.forEach((name, stage) -> buf.append("| ").append(name).append(" | ").append(stage.count.sum())
+                    .append(" | ").append(formatTime(stage.wallNanos.sum()))
+                    .append(" | ").append(formatTime(stage.cpuNanos.sum()))
+                    .append(" | ").append(formatBytes(stage.downloaded.sum()))
+                    .append(" | ").append(formatBytes(stage.read.sum()))
+                    .append(" | ").append(formatBytes(stage.written.sum()))
+                    .append(" | ").append(stage.cacheHits.sum()).append('/').append(stage.cacheHits.sum() + stage.cacheMisses.sum())
+                    .append(" | ").append(stage.filesAdded.sum()).append('/').append(stage.filesChanged.sum()).append('/').append(stage.filesRemoved.sum())
+                    .append(" |\n"));
+            buf.append('\n');
+        }
+
+        if (!this.versions.isEmpty()) {
+            Set<String> names = new LinkedHashSet<>();
+            this.versions.values().forEach(s -> names.addAll(s.keySet()));
+            List<String> columns = new ArrayList<>(names);
+
+            buf.append("<details><summary>Wall time per version</summary>\n\n| Version |");
+            columns.forEach(c -> buf.append(' ').append(c).append(" |"));
+            buf.append("\n|---|");
+            columns.forEach(c -> buf.append("--:|"));
+            buf.append('\n');
+            this.versions.forEach((version, stages) -> {
+                buf.append("| ").append(version).append(" |");
+                for (var column : columns) {
+                    var stage = stages.get(column);
+                    buf.append(' ').append(stage == null ? "" : formatTime(stage.wallNanos.sum())).append(" |");
+                }
+                buf.append('\n');
+            });
+            buf.append("\n</details>\n");
+        }
+
+        return buf.toString();
+    }
+
+    private static String formatTime(long nanos) {
+        return String.format(Locale.ROOT, "%.1f s", nanos / 1e9);
+    }
+
+    private static String formatBytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (double) (1 << 20));
+    }
+
+    private static long processCpuTime() {
+        return ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os ? os.getProcessCpuTime() : -1;
+    }
+
+    private static long threadCpuTime() {
+        var threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Restores the previous stage of the thread when closed.
+     */
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * A stage, or a view of it within a timed scope, which records into the stage as well as into the events of the
+     * scope and the scopes enclosing it.
+     */
+    public static final class Stage {
+        @Nullable
+        private final String version;
+        private final String name;
+        /** The stage this records into, which is itself unless this is a view. */
+        private final Stage root;
+        @Nullable
+        private final Counts event;
+        private final LongAdder count;
+        private final LongAdder wallNanos;
+        private final LongAdder cpuNanos;
+        private final LongAdder downloaded;
+        private final LongAdder read;
+        private final LongAdder written;
+        private final LongAdder cacheHits;
+        private final LongAdder cacheMisses;
+        private final LongAdder filesAdded;
+        private final LongAdder filesChanged;
+        private final LongAdder filesRemoved;
+
+        private Stage(@Nullable String version, String name) {
+            this.version = version;
+            this.name = name;
+            this.root = this;
+            this.event = null;
+            this.count = new LongAdder();
+            this.wallNanos = new LongAdder();
+            this.cpuNanos = new LongAdder();
+            this.downloaded = new LongAdder();
+            this.read = new LongAdder();
+            this.written = new LongAdder();
+            this.cacheHits = new LongAdder();
+            this.cacheMisses = new LongAdder();
+            this.filesAdded = new LongAdder();
+            this.filesChanged = new LongAdder();
+            this.filesRemoved = new LongAdder();
+        }
+
+        private Stage(Stage root, Counts event) {
+            this.version = root.version;
+            this.name = root.name;
+            this.root = root;
+            this.event = event;
+            this.count = root.count;
+            this.wallNanos = root.wallNanos;
+            this.cpuNanos = root.cpuNanos;
+            this.downloaded = root.downloaded;
+            this.read = root.read;
+            this.written = root.written;
+            this.cacheHits = root.cacheHits;
+            this.cacheMisses = root.cacheMisses;
+            this.filesAdded = root.filesAdded;
+            this.filesChanged = root.filesChanged;
+            this.filesRemoved = root.filesRemoved;
+        }
+
+        /**
+         * Returns the version this stage is part of, or {@code null} if it is part of the whole run.
+         */
+        @Nullable
+        public String getVersion() {
+            return this.version;
+        }
+
+        /**
+         * Makes this the stage of the current thread and measures the time until the returned scope is closed.
+         * A stage may be timed several times, for example once for every push, in which case the times add up.
+         */
+        public Scope time() {
+            var previous = CURRENT.get();
+            var event = beginEvent(this.name, null);
+            long start = System.nanoTime();
+            long startCpu = threadCpuTime();
+            return () -> {
+                this.wallNanos.add(System.nanoTime() - start);
+                long cpu = threadCpuTime();
+                if (startCpu >= 0 && cpu >= 0)
+                    this.cpuNanos.add(cpu - startCpu);
+                this.count.increment();
+                event.run();
+                CURRENT.set(previous);
+            };
+        }
+
+        /**
+         * Emits a {@link StageEvent} for one step of this stage once the returned scope is closed, like the merging
+         * and the remapping of the merge-remap stage. Steps are only visible in flight recordings, not in the report.
+         */
+        public Scope step(String name) {
+            var previous = CURRENT.get();
+            var event = beginEvent(this.name + '/' + name, getEvent());
+            return () -> {
+                event.run();
+                CURRENT.set(previous);
+            };
+        }
+
+        /**
+         * Begins an event and makes a view counting its I/O the stage of the current thread, and returns what commits
+         * the event.
+         *
+         * @param parent the counts of the enclosing event of this stage, which keep counting the I/O of this one
+         */
+        private Runnable beginEvent(String stage, @Nullable Counts parent) {
+            var event = new StageEvent();
+            if (!event.isEnabled()) {
+                // Keep counting into the enclosing event, if any
+                CURRENT.set(parent == null ? this.root : new Stage(this.root, parent));
+                return () -> {};
+            }
+
+            var counts = new Counts(parent);
+            CURRENT.set(new Stage(this.root, counts));
+            event.begin();
+            return () -> {
+                event.end();
+                if (!event.shouldCommit())
+                    return;
+
+                event.version = this.version == null ? "" : this.version;
+                event.stage = stage;
+                event.bytesRead = counts.read.sum();
+                event.bytesWritten = counts.written.sum();
+                event.bytesDownloaded = counts.downloaded.sum();
+                event.cacheHits = counts.cacheHits.intValue();
+                event.cacheMisses = counts.cacheMisses.intValue();
+                event.cacheHit = event.cacheHits > 0 && event.cacheMisses == 0;
+                event.commit();
+            };
+        }
+
+        /**
+         * Returns the counts of the innermost event this records into: the one of this view, or the one the current
+         * thread works for if this is the stage itself.
+         */
+        @Nullable
+        private Counts getEvent() {
+            if (this.event != null)
+                return this.event;
+            var current = CURRENT.get();
+            return current != null && current.root == this.root ? current.event : null;
+        }
+
+        private void count(long amount, LongAdder total, Function<Counts, LongAdder> counter) {
+            total.add(amount);
+            for (var counts = getEvent(); counts != null; counts = counts.parent)
+                counter.apply(counts).add(amount);
+        }
+
+        /**
+         * Makes this the stage of the current thread without measuring time, for threads doing work on behalf of it.
+         * If this was returned by {@link #current()} within a timed scope, the I/O counts towards its event as well.
+         */
+        public Scope attach() {
+            var previous = CURRENT.get();
+            CURRENT.set(this);
+            return () -> CURRENT.set(previous);
+        }
+
+        public void downloaded(long bytes) {
+            count(bytes, this.downloaded, Counts::downloaded);
+        }
+
+        public void read(long bytes) {
+            count(bytes, this.read, Counts::read);
+        }
+
+        /**
+         * Adds the size of the given files to the bytes read, skipping those that don't exist.
+         */
+        public void read(Path... files) throws IOException {
+            for (var file : files) {
+                if (file != null && Files.exists(file))
+                    read(Files.size(file));
+            }
+        }
+
+        public void written(long bytes) {
+            count(bytes, this.written, Counts::written);
+        }
+
+        /**
+         * Adds the size of the given file to the bytes written, if it exists.
+         */
+        public void written(Path file) throws IOException {
+            if (file != null && Files.exists(file))
+                written(Files.size(file));
+        }
+
+        public void cacheChecked(boolean hit) {
+            if (hit)
+                count(1, this.cacheHits, Counts::cacheHits);
+            else
+                count(1, this.cacheMisses, Counts::cacheMisses);
+        }
+
+        public void files(int added, int changed, int removed) {
+            this.filesAdded.add(added);
+            this.filesChanged.add(changed);
+            this.filesRemoved.add(removed);
+        }
+
+        private static Stage sum(Stage a, Stage b) {
+            var ret = new Stage(a.version, a.name);
+            for (var stage : List.of(a, b)) {
+                ret.count.add(stage.count.sum());
+                ret.wallNanos.add(stage.wallNanos.sum());
+                ret.cpuNanos.add(stage.cpuNanos.sum());
+                ret.downloaded.add(stage.downloaded.sum());
+                ret.read.add(stage.read.sum());
+                ret.written.add(stage.written.sum());
+                ret.cacheHits.add(stage.cacheHits.sum());
+                ret.cacheMisses.add(stage.cacheMisses.sum());
+                ret.files(stage.filesAdded.intValue(), stage.filesChanged.intValue(), stage.filesRemoved.intValue());
+            }
+            return ret;
+        }
+
+        private JsonObject toJson() {
+            var ret = new JsonObject();
+            ret.addProperty("count", this.count.sum());
+            ret.addProperty("wallMs", Duration.ofNanos(this.wallNanos.sum()).toMillis());
+            ret.addProperty("cpuMs", Duration.ofNanos(this.cpuNanos.sum()).toMillis());
+            ret.addProperty("downloadedBytes", this.downloaded.sum());
+            ret.addProperty("readBytes", this.read.sum());
+            ret.addProperty("writtenBytes", this.written.sum());
+            ret.addProperty("cacheHits", this.cacheHits.sum());
+            ret.addProperty("cacheMisses", this.cacheMisses.sum());
+            ret.addProperty("filesAdded", this.filesAdded.sum());
+            ret.addProperty("filesChanged", this.filesChanged.sum());
+            ret.addProperty("filesRemoved", this.filesRemoved.sum());
+            return ret;
+        }
+    }
+
+    /**
+     * The I/O of a single event.
+     *
+     * @param parent the counts of the enclosing event of the same stage, if any
+     */
+    private record Counts(@Nullable Counts parent, LongAdder downloaded, LongAdder read, LongAdder written, LongAdder cacheHits, LongAdder cacheMisses) {
+        private Counts(@Nullable Counts parent) {
+            this(parent, new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder());
+        }
+    }
+}
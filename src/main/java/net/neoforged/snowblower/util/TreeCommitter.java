@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import net.neoforged.snowblower.jfr.GitEvent;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Commits to a branch by writing blobs, trees and commits straight into the object database.
+ * <p>
+ * Neither the working tree nor the index are touched, so the repository may be bare. The tree of the branch head is
+ * kept in memory between commits, which means unchanged files are never read back from the repository and only
+ * blobs that differ from the previous commit are inserted. Likewise, only the trees of directories that changed are
+ * written, while the ids of the others are carried over from the branch head. Line endings are converted the way {@code git add} would,
+ * see {@link CheckInFilter}.
+ */
+public class TreeCommitter implements AutoCloseable {
+    private final Repository repo;
+    private final String ref;
+    private final ObjectInserter inserter;
+    /** The value of {@link #ref} when it was last read or written, used to detect concurrent updates. */
+    @Nullable
+    private ObjectId expected;
+    @Nullable
+    private ObjectId parent;
+    @Nullable
+    private ObjectId parentTree;
+    private DirCache current;
+    /** The tree ids of the directories of the branch head, by their path ending in {@code /}. */
+    private Map<String, ObjectId> trees = new HashMap<>();
+
+    /**
+     * @param orphan see {@link #reset(boolean)}
+     */
+    public TreeCommitter(Repository repo, String branch, boolean orphan) throws IOException {
+        this.repo = repo;
+        this.ref = Constants.R_HEADS + branch;
+        this.inserter = repo.newObjectInserter();
+        reset(orphan);
+    }
+
+    /**
+     * Re-reads the branch head. If {@code orphan} is set, the next commit will have no parent and replaces the branch,
+     * without the branch having to be deleted first.
+     */
+    public void reset(boolean orphan) throws IOException {
+        this.expected = this.repo.resolve(this.ref);
+        this.parent = orphan ? null : this.expected;
+        this.parentTree = null;
+        this.current = DirCache.newInCore();
+        this.trees = new HashMap<>();
+
+        if (this.parent != null) {
+            try (var walk = new RevWalk(this.repo)) {
+                this.parentTree = walk.parseCommit(this.parent).getTree();
+                DirCacheBuilder builder = this.current.builder();
+                builder.addTree(new byte[0], DirCacheEntry.STAGE_0, walk.getObjectReader(), this.parentTree);
+                builder.finish();
+
+                try (var treeWalk = new TreeWalk(walk.getObjectReader())) {
+                    treeWalk.addTree(this.parentTree);
+                    while (treeWalk.next()) {
+                        if (treeWalk.isSubtree()) {
+                            this.trees.put(treeWalk.getPathString() + '/', treeWalk.getObjectId(0));
+                            treeWalk.enterSubtree();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a file from the branch head, or returns {@code null} if it doesn't exist.
+     */
+    public byte @Nullable [] read(String path) throws IOException {
+        var entry = this.current.getEntry(path);
+        if (entry == null)
+            return null;
+
+        try (var reader = this.repo.newObjectReader()) {
+            return reader.open(entry.getObjectId(), Constants.OBJ_BLOB).getBytes();
+        }
+    }
+
+    /**
+     * Starts the tree of the next commit from the entries of the branch head for which {@code keep} returns true.
+     * Everything else has to be added again, or it is removed.
+     */
+    public Tree newTree(Predicate<String> keep) throws IOException {
+        var tree = new Tree(new CheckInFilter(this.repo, read(Constants.DOT_GIT_ATTRIBUTES)));
+        for (int i = 0; i < this.current.getEntryCount(); i++) {
+            var entry = this.current.getEntry(i);
+            if (keep.test(entry.getPathString()))
+                tree.builder.add(entry);
+        }
+        return tree;
+    }
+
+    @Override
+    public void close() {
+        this.inserter.close();
+    }
+
+    public class Tree {
+        private final DirCache cache = DirCache.newInCore();
+        private final DirCacheBuilder builder = this.cache.builder();
+        private CheckInFilter filter;
+        private long written;
+        private int added;
+        private int changed;
+        private int removed;
+
+        private Tree(CheckInFilter filter) {
+            this.filter = filter;
+        }
+
+        public void add(String path, byte[] data) throws IOException {
+            add(path, data, FileMode.REGULAR_FILE);
+        }
+
+        public void add(String path, byte[] data, FileMode mode) throws IOException {
+            data = this.filter.apply(path, data);
+            // Files added after it are converted according to the new attributes, like they would be in a working tree
+            if (path.equals(Constants.DOT_GIT_ATTRIBUTES))
+                this.filter = new CheckInFilter(TreeCommitter.this.repo, data);
+
+            var id = TreeCommitter.this.inserter.idFor(Constants.OBJ_BLOB, data);
+            var previous = TreeCommitter.this.current.getEntry(path);
+            if (previous == null || !previous.getObjectId().equals(id)) {
+                TreeCommitter.this.inserter.insert(Constants.OBJ_BLOB, data);
+                RunReport.current().written(data.length);
+                this.written += data.length;
+                if (previous == null)
+                    this.added++;
+                this.changed++;
+            } else if (previous.getFileMode() != mode) {
+                this.changed++;
+            }
+
+            var entry = new DirCacheEntry(path);
+            entry.setFileMode(mode);
+            entry.setObjectId(id);
+            entry.setLength(data.length);
+            this.builder.add(entry);
+        }
+
+        /**
+         * Returns the number of files that were added or changed compared to the branch head. Removed files aren't
+         * counted, as they are only known once the tree is committed.
+         */
+        public int getChanged() {
+            return this.changed;
+        }
+
+        /**
+         * Returns the number of files that weren't in the branch head, which are included in {@link #getChanged()}.
+         */
+        public int getAdded() {
+            return this.added;
+        }
+
+        /**
+         * Returns the number of files of the branch head that aren't in this tree, once it has been committed.
+         */
+        public int getRemoved() {
+            return this.removed;
+        }
+
+        /**
+         * Writes the tree and commits it to the branch, unless it is identical to the tree of the branch head.
+         *
+         * @return whether a commit was made
+         */
+        public boolean commit(String message, Date time) throws IOException {
+            var event = new GitEvent("commit-tree");
+            event.begin();
+            try {
+                return commitTree(message, time);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.filesAdded = this.added;
+                    event.filesChanged = this.changed - this.added;
+                    event.filesRemoved = this.removed;
+                    event.bytesWritten = this.written;
+                    event.detail = message;
+                    event.commit();
+                }
+            }
+        }
+
+        private boolean commitTree(String message, Date time) throws IOException {
+            this.builder.finish();
+            var dirty = getChangedDirectories();
+            if (dirty.isEmpty() && TreeCommitter.this.parentTree != null)
+                return false;
+
+            Map<String, ObjectId> written = new HashMap<>();
+            var treeId = writeTree(0, this.cache.getEntryCount(), "", dirty, written);
+            if (treeId.equals(TreeCommitter.this.parentTree))
+                return false;
+
+            var ident = new PersonIdent(Util.COMMITTER, time);
+            var commit = new CommitBuilder();
+            commit.setTreeId(treeId);
+            if (TreeCommitter.this.parent != null)
+                commit.setParentId(TreeCommitter.this.parent);
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage(message);
+            var commitId = TreeCommitter.this.inserter.insert(commit);
+            TreeCommitter.this.inserter.flush();
+
+            var update = TreeCommitter.this.repo.updateRef(TreeCommitter.this.ref);
+            update.setNewObjectId(commitId);
+            update.setExpectedOldObjectId(TreeCommitter.this.expected == null ? ObjectId.zeroId() : TreeCommitter.this.expected);
+            update.setRefLogMessage("commit: " + message, false);
+            // Forced, as the first commit after starting over replaces the existing branch
+            var result = update.forceUpdate();
+            if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.FORCED)
+                throw new IOException("Failed to update " + TreeCommitter.this.ref + " to " + commitId.name() + ": " + result);
+
+            TreeCommitter.this.expected = commitId;
+            TreeCommitter.this.parent = commitId;
+            TreeCommitter.this.parentTree = treeId;
+            TreeCommitter.this.current = this.cache;
+            // Directories that were removed are changed as well
+            TreeCommitter.this.trees.keySet().removeAll(dirty);
+            TreeCommitter.this.trees.putAll(written);
+            return true;
+        }
+
+        /**
+         * Returns the directories, ending in {@code /}, that have a file which was added, changed or removed compared
+         * to the branch head, including the root as an empty string. Also counts the removed files.
+         */
+        private Set<String> getChangedDirectories() {
+            Set<String> ret = new HashSet<>();
+            for (int i = 0; i < this.cache.getEntryCount(); i++) {
+                var entry = this.cache.getEntry(i);
+                var previous = TreeCommitter.this.current.getEntry(entry.getPathString());
+                if (previous == null || !previous.getObjectId().equals(entry.getObjectId()) || previous.getFileMode() != entry.getFileMode())
+                    addParents(entry.getPathString(), ret);
+            }
+            for (int i = 0; i < TreeCommitter.this.current.getEntryCount(); i++) {
+                var path = TreeCommitter.this.current.getEntry(i).getPathString();
+                if (this.cache.findEntry(path) < 0) {
+                    addParents(path, ret);
+                    this.removed++;
+                }
+            }
+            return ret;
+        }
+
+        private static void addParents(String path, Set<String> directories) {
+            directories.add("");
+            for (int idx = path.indexOf('/'); idx != -1; idx = path.indexOf('/', idx + 1))
+                directories.add(path.substring(0, idx + 1));
+        }
+
+        /**
+         * Writes the tree of a directory from its entries, which are {@code start} until {@code end} as the entries are
+         * sorted by path. Subdirectories that didn't change are referenced by the id they have in the branch head.
+         *
+         * @param directory the path of the directory ending in {@code /}, or an empty string for the root
+         * @param written   receives the ids of the subdirectories
+         */
+        private ObjectId writeTree(int start, int end, String directory, Set<String> dirty, Map<String, ObjectId> written) throws IOException {
+            var formatter = new TreeFormatter();
+            for (int i = start; i < end; ) {
+                var entry = this.cache.getEntry(i);
+                var path = entry.getPathString();
+                int slash = path.indexOf('/', directory.length());
+                if (slash == -1) {
+                    formatter.append(path.substring(directory.length()), entry.getFileMode(), entry.getObjectId());
+                    i++;
+                    continue;
+                }
+
+                // The entries of a subdirectory are next to each other, as they are sorted by path
+                var subdirectory = path.substring(0, slash + 1);
+                int next = i + 1;
+                while (next < end && this.cache.getEntry(next).getPathString().startsWith(subdirectory))
+                    next++;
+
+                var id = dirty.contains(subdirectory) ? null : TreeCommitter.this.trees.get(subdirectory);
+                if (id == null)
+                    id = writeTree(i, next, subdirectory, dirty, written);
+                written.put(subdirectory, id);
+                formatter.append(path.substring(directory.length(), slash), FileMode.TREE, id);
+                i = next;
+            }
+            return TreeCommitter.this.inserter.insert(formatter);
+        }
+    }
+}
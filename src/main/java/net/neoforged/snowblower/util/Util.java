@@ -4,8 +4,11 @@
  */
 package net.neoforged.snowblower.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -32,6 +35,7 @@ import java.util.stream.Stream;
 import net.neoforged.snowblower.Main;
 import net.neoforged.snowblower.data.MinecraftVersion;
 import net.neoforged.snowblower.data.Version;
+import net.neoforged.snowblower.jfr.GitEvent;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.lib.PersonIdent;
@@ -54,6 +58,8 @@ public class Util {
         .build();
     public static final long MAX_REQUEST_WAIT_MS = 64_000L;
     public static PersonIdent COMMITTER = new PersonIdent("snowforge[bot]", "127516132+snowforge[bot]@users.noreply.github.com");
+    private static final ThreadLocal<Boolean> STDOUT_SILENCED = ThreadLocal.withInitial(() -> false);
+    private static PrintStream stdoutFilter;
 
     public static boolean isDev() {
         return Main.class.getPackage().getImplementationVersion() == null;
@@ -90,50 +96,55 @@ public class Util {
         if (download == null)
             return false;
 
-        downloadFile(output, download.url(), download.sha1());
+        downloadFile(output, download);
 
         return true;
     }
 
+    public static void downloadFile(Path file, Version.Download download) throws IOException {
+        downloadFile(file, download.url(), download.sha1(), download.size());
+    }
+
     public static void downloadFile(Path file, URL url, @Nullable String sha1) throws IOException {
-        if (Files.exists(file)) {
-            Files.delete(file);
-        } else {
-            Files.createDirectories(file.getParent());
-        }
+        downloadFile(file, url, sha1, -1);
+    }
+
+    /**
+     * @param size the expected size in bytes, or {@code -1} if it isn't known
+     */
+    public static void downloadFile(Path file, URL url, @Nullable String sha1, long size) throws IOException {
+        Files.createDirectories(file.getParent());
 
         if (url.getProtocol().equals("file") || url.getProtocol().equals("jar")) {
+            Files.deleteIfExists(file);
             try (var inputStream = url.openStream()) {
                 Files.copy(inputStream, file);
             }
-        } else {
-            download(url, () -> HttpResponse.BodyHandlers.ofFile(file));
-        }
 
-        if (sha1 != null) {
-            var actual = HashFunction.SHA1.hash(file);
-            if (!actual.equals(sha1)) {
-                Files.delete(file);
-                throw new IOException("Failed to download " + url + " Invalid Hash:\n" +
-                        "    Expected: " + sha1 + "\n" +
-                        "    Actual: " + actual);
+            if (sha1 != null) {
+                var actual = FileHashCache.hash(HashFunction.SHA1, file);
+                if (!actual.equals(sha1)) {
+                    Files.delete(file);
+                    throw new IOException("Failed to download " + url + " Invalid Hash:\n" +
+                            "    Expected: " + sha1 + "\n" +
+                            "    Actual: " + actual);
+                }
             }
+        } else {
+            if (HttpCache.isOffline())
+                throw new IOException("Can't download " + url + " in offline mode");
+            Downloader.download(file, toURI(url), sha1, size);
         }
     }
 
-    private static <T> HttpResponse<T> download(URL url, Supplier<HttpResponse.BodyHandler<T>> bodyHandlerFactory) throws IOException {
+    /**
+     * Sends {@code httpRequest}, retrying until the server responds with {@code 200}, or {@code 304} for conditional requests.
+     */
+    static <T> HttpResponse<T> download(URL url, HttpRequest httpRequest, Supplier<HttpResponse.BodyHandler<T>> bodyHandlerFactory) throws IOException {
         LOGGER.debug("Downloading {}", url);
         int maxAttempts = 10;
         int attempts = 1;
         long waitTime = 1_000L;
-        URI uri;
-        try {
-            uri = url.toURI();
-        } catch (URISyntaxException e) {
-            throw new RuntimeException(e);
-        }
-
-        HttpRequest httpRequest = getHttpRequest(uri);
 
         while (true) {
             IOException ioException = null;
@@ -147,7 +158,7 @@ public class Util {
                 ioException = e;
             }
 
-            if (httpResponse == null || httpResponse.statusCode() != HttpURLConnection.HTTP_OK) {
+            if (httpResponse == null || (httpResponse.statusCode() != HttpURLConnection.HTTP_OK && httpResponse.statusCode() != HttpURLConnection.HTTP_NOT_MODIFIED)) {
                 if (attempts == maxAttempts) {
                     String errorMessage = "Failed to download " + url + " - exceeded max attempts of " + maxAttempts;
                     if (ioException != null) {
@@ -178,16 +189,25 @@ public class Util {
     }
 
     private static HttpRequest getHttpRequest(URI uri) {
+        return newHttpRequest(uri).GET().build();
+    }
+
+    static HttpRequest.Builder newHttpRequest(URI uri) {
         return HttpRequest.newBuilder(uri)
                 .header("Cache-Control", "no-store,max-age=0,no-cache")
                 .header("Expires", "0")
-                .header("Pragma", "no-cache")
-                .GET()
-                .build();
+                .header("Pragma", "no-cache");
     }
 
     public static <T> T downloadJson(URL url, Class<T> type) throws IOException {
-        try (var in = new InputStreamReader(download(url, HttpResponse.BodyHandlers::ofInputStream).body())) {
+        var cache = HttpCache.getInstance();
+        if (cache != null) {
+            try (var in = new InputStreamReader(new ByteArrayInputStream(cache.get(url)))) {
+                return GSON.fromJson(in, type);
+            }
+        }
+
+        try (var in = new InputStreamReader(download(url, getHttpRequest(toURI(url)), HttpResponse.BodyHandlers::ofInputStream).body())) {
             return GSON.fromJson(in, type);
         }
     }
@@ -208,6 +228,8 @@ public class Util {
     }
 
     public static void commit(Git git, String message, Date time) throws GitAPIException {
+        var event = new GitEvent("commit");
+        event.begin();
         var timed = new PersonIdent(COMMITTER, time);
         git.commit()
             .setMessage(message)
@@ -215,12 +237,32 @@ public class Util {
             .setCommitter(timed)
             .setSign(false)
             .call();
+        event.end();
+        if (event.shouldCommit()) {
+            event.detail = message;
+            event.commit();
+        }
     }
 
     public static void add(Git git, Path file) throws GitAPIException {
+        var event = new GitEvent("add");
+        event.begin();
         var root = git.getRepository().getDirectory().getParentFile().toPath();
         var path = root.toAbsolutePath().relativize(file.toAbsolutePath());
         git.add().addFilepattern(path.toString()).call();
+        event.end();
+        if (event.shouldCommit()) {
+            event.detail = path.toString();
+            event.commit();
+        }
+    }
+
+    static URI toURI(URL url) {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public static URL makeURL(String url) {
@@ -231,6 +273,54 @@ public class Util {
         }
     }
 
+    /**
+     * Runs the given action with anything it prints to {@link System#out} from the current thread discarded.
+     * Unlike swapping {@code System.out} around the call, this does not swallow output from other threads,
+     * which matters once versions are produced on a different thread than the one committing them.
+     */
+    public static void runWithoutStdout(IORunnable action) throws IOException {
+        installStdoutFilter();
+
+        boolean previous = STDOUT_SILENCED.get();
+        STDOUT_SILENCED.set(true);
+        try {
+            action.run();
+        } finally {
+            STDOUT_SILENCED.set(previous);
+        }
+    }
+
+    private static synchronized void installStdoutFilter() {
+        if (stdoutFilter != null)
+            return;
+
+        var stdout = System.out;
+        stdoutFilter = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                if (!STDOUT_SILENCED.get())
+                    stdout.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (!STDOUT_SILENCED.get())
+                    stdout.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                stdout.flush();
+            }
+        }, true);
+        System.setOut(stdoutFilter);
+    }
+
+    @FunctionalInterface
+    public interface IORunnable {
+        void run() throws IOException;
+    }
+
     public static <T> Collector<T, ?, Map<Integer, List<T>>> partitionEvery(final int chunkSize) {
         final AtomicInteger counter = new AtomicInteger();
         return Collectors.groupingBy(it -> counter.getAndIncrement() / chunkSize);
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out versions to {@link VersionWorker} processes over HTTP, and completes the future of each version once its
+ * worker reports it as produced.
+ * <p>
+ * The workers share the cache directory with the coordinator, so a version is published by its worker writing the
+ * decompiled jar into the cache as usual, and reporting its path relative to the cache. Workers ask for the next
+ * version whenever they are free, and are handed the earliest one queued, so versions are produced roughly in the
+ * order they are committed in. A worker sends a heartbeat while it produces a version, and a version whose worker
+ * stopped sending them is handed out again. Once closed, the coordinator waits a moment for the workers polling it to
+ * be told to stop.
+ * <p>
+ * Only the loopback interface is listened on unless another address is given, as the endpoints don't authenticate
+ * workers.
+ * <p>
+ * The endpoints, all of which take {@code POST} requests with the name of the worker in a {@value #WORKER_HEADER} header:
+ * <ul>
+ *     <li>{@code /claim}: answers with the id of the version to produce, {@code 204} if there is none right now, or
+ *     {@code 410} once the coordinator is shutting down</li>
+ *     <li>{@code /heartbeat/<id>}: renews the claim on a version</li>
+ *     <li>{@code /done/<id>}: reports a version as produced, with the path of its decompiled jar relative to the cache
+ *     as the body, which is empty if the version has nothing to commit</li>
+ *     <li>{@code /failed/<id>}: reports that a version couldn't be produced, with the error as the body</li>
+ * </ul>
+ */
+public class VersionCoordinator implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VersionCoordinator.class);
+    /** Names the worker making a request, as its address may change between requests. */
+    static final String WORKER_HEADER = "Snowblower-Worker";
+    static final long LEASE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+    /** Long enough for every idle worker to poll once more. */
+    private static final long SHUTDOWN_GRACE_MS = VersionWorker.POLL_INTERVAL_MS * 2;
+
+    private final HttpServer server;
+    private final ScheduledExecutorService leases = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "Snowblower-Coordinator-Leases");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Queue<Job> queue = new PriorityQueue<>(Comparator.comparingInt(Job::index));
+    private final Map<String, Job> jobs = new HashMap<>();
+    /** The workers which asked for versions and weren't told to stop yet. */
+    private final Set<String> workers = new HashSet<>();
+    private final long leaseTimeout;
+    private int submitted;
+    private boolean closed;
+
+    /**
+     * Starts listening for workers.
+     *
+     * @param address the address to listen on, or {@code null} for the loopback address
+     * @param port    the port to listen on, or 0 for any free one
+     */
+    public VersionCoordinator(@Nullable InetAddress address, int port) throws IOException {
+        this(address, port, LEASE_TIMEOUT_MS);
+    }
+
+    VersionCoordinator(@Nullable InetAddress address, int port, long leaseTimeout) throws IOException {
+        this.leaseTimeout = leaseTimeout;
+        this.server = HttpServer.create(new InetSocketAddress(address == null ? InetAddress.getLoopbackAddress() : address, port), 0);
+        this.server.createContext("/claim", this::claim);
+        this.server.createContext("/heartbeat/", ex -> handle(ex, "/heartbeat/", this::heartbeat));
+        this.server.createContext("/done/", ex -> handle(ex, "/done/", this::done));
+        this.server.createContext("/failed/", ex -> handle(ex, "/failed/", this::failed));
+        this.server.start();
+        this.leases.scheduleWithFixedDelay(this::expireLeases, leaseTimeout / 4, leaseTimeout / 4, TimeUnit.MILLISECONDS);
+        LOGGER.info("Waiting for version workers on {}", this.server.getAddress());
+    }
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Queues a version for the workers.
+     *
+     * @return a future completed with the path of the decompiled jar relative to the cache, or {@code null} if the
+     * version has nothing to commit. Cancelling it takes the version out of the queue.
+     */
+    public synchronized CompletableFuture<@Nullable String> submit(String id) {
+        var job = new Job(this.submitted++, id, new CompletableFuture<>());
+        var previous = this.jobs.put(id, job);
+        if (previous != null)
+            previous.future().cancel(false);
+        this.queue.add(job);
+        return job.future();
+    }
+
+    private synchronized void claim(HttpExchange exchange) throws IOException {
+        var worker = exchange.getRequestHeaders().getFirst(WORKER_HEADER);
+        if (worker == null) {
+            respond(exchange, 400, "Missing " + WORKER_HEADER + " header");
+            return;
+        }
+        if (this.closed) {
+            this.workers.remove(worker);
+            notifyAll();
+            respond(exchange, 410, "");
+            return;
+        }
+        this.workers.add(worker);
+
+        Job job;
+        do {
+            job = this.queue.poll();
+        } while (job != null && job.future().isDone()); // Cancelled while queued
+
+        if (job == null) {
+            respond(exchange, 204, "");
+            return;
+        }
+
+        job.worker = worker;
+        job.heartbeat = System.currentTimeMillis();
+        LOGGER.debug("Handing out {} to {}", job.id(), job.worker);
+        respond(exchange, 200, job.id());
+    }
+
+    private boolean heartbeat(Job job, String body) {
+        if (job.worker == null)
+            return false;
+        job.heartbeat = System.currentTimeMillis();
+        return true;
+    }
+
+    private boolean done(Job job, String body) {
+        LOGGER.debug("Version {} was produced by {}", job.id(), job.worker);
+        return job.future().complete(body.isEmpty() ? null : body);
+    }
+
+    private boolean failed(Job job, String body) {
+        return job.future().completeExceptionally(new IOException("Worker " + job.worker + " failed to produce " + job.id() + ":\n" + body));
+    }
+
+    private synchronized void handle(HttpExchange exchange, String prefix, Action action) throws IOException {
+        var id = exchange.getRequestURI().getPath().substring(prefix.length());
+        String body;
+        try (var in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        var job = this.jobs.get(id);
+        // Only the worker a version is handed out to gets to report it, in case it was handed out again
+        if (job == null || job.future().isDone() || !Objects.equals(exchange.getRequestHeaders().getFirst(WORKER_HEADER), job.worker) || !action.apply(job, body)) {
+            respond(exchange, 404, "");
+            return;
+        }
+
+        if (job.future().isDone())
+            this.jobs.remove(id);
+        respond(exchange, 200, "");
+    }
+
+    private synchronized void expireLeases() {
+        long now = System.currentTimeMillis();
+        for (var job : this.jobs.values()) {
+            if (job.worker != null && !job.future().isDone() && now - job.heartbeat > this.leaseTimeout) {
+                LOGGER.warn("Worker {} stopped responding while producing {}, handing it out again", job.worker, job.id());
+                this.workers.remove(job.worker);
+                job.worker = null;
+                this.queue.add(job);
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        var data = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, data.length == 0 ? -1 : data.length);
+        try (var out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+            this.jobs.values().forEach(j -> j.future().cancel(false));
+            this.jobs.clear();
+            this.queue.clear();
+
+            // Give polling workers a moment to be told to stop, rather than finding the port closed
+            long deadline = System.currentTimeMillis() + SHUTDOWN_GRACE_MS;
+            long remaining;
+            while (!this.workers.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        this.leases.shutdownNow();
+        this.server.stop(0);
+    }
+
+    @FunctionalInterface
+    private interface Action {
+        /**
+         * @return {@code false} if the request doesn't apply to the version in its current state
+         */
+        boolean apply(Job job, String body);
+    }
+
+    private static final class Job {
+        private final int index;
+        private final String id;
+        private final CompletableFuture<@Nullable String> future;
+        @Nullable
+        private String worker;
+        private long heartbeat;
+
+        private Job(int index, String id, CompletableFuture<@Nullable String> future) {
+            this.index = index;
+            this.id = id;
+            this.future = future;
+        }
+
+        private int index() {
+            return this.index;
+        }
+
+        private String id() {
+            return this.id;
+        }
+
+        private CompletableFuture<@Nullable String> future() {
+            return this.future;
+        }
+    }
+}
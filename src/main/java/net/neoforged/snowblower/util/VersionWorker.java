@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Produces the versions handed out by a {@link VersionCoordinator} until it shuts down.
+ * <p>
+ * The worker has to use the same cache directory as the coordinator, as that is where the produced versions are
+ * published. Versions are produced one at a time, while their claim is renewed in the background. If the coordinator
+ * rejects a renewal, as it handed the version out again, producing it is interrupted and its result is discarded.
+ * The tasks publish their outputs with an atomic move, so another worker producing the same version at the same time
+ * can't leave a half-written file behind.
+ */
+public class VersionWorker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VersionWorker.class);
+    static final long POLL_INTERVAL_MS = 2000;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final URI coordinator;
+    /** The JVM's name, which is its process id and host name. */
+    private final String name = ManagementFactory.getRuntimeMXBean().getName();
+
+    public VersionWorker(URI coordinator) {
+        // Otherwise the endpoints would replace the last segment of the path
+        this.coordinator = coordinator.getPath().endsWith("/") ? coordinator : URI.create(coordinator + "/");
+    }
+
+    /**
+     * Claims versions from the coordinator and produces them until the coordinator shuts down or goes away.
+     */
+    public void run(Producer producer) throws IOException {
+        LOGGER.info("Working for {} as {}", this.coordinator, this.name);
+        int produced = 0;
+        while (true) {
+            HttpResponse<String> response;
+            try {
+                response = post("claim", "");
+            } catch (ConnectException e) {
+                LOGGER.info("Coordinator is gone, stopping after producing {} versions", produced);
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("Failed to ask the coordinator for a version, trying again", e);
+                sleep(POLL_INTERVAL_MS);
+                continue;
+            }
+
+            if (response.statusCode() == 410) {
+                LOGGER.info("Coordinator is done, stopping after producing {} versions", produced);
+                return;
+            }
+            if (response.statusCode() == 204) {
+                sleep(POLL_INTERVAL_MS);
+                continue;
+            }
+            if (response.statusCode() != 200)
+                throw new IOException("Unexpected response from coordinator: " + response.statusCode() + ' ' + response.body());
+
+            produce(response.body(), producer);
+            produced++;
+        }
+    }
+
+    private void produce(String id, Producer producer) throws IOException {
+        LOGGER.info("Producing {}", id);
+        var heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "Snowblower-Worker-Heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var lease = new Lease(Thread.currentThread());
+        long interval = VersionCoordinator.LEASE_TIMEOUT_MS / 8;
+        heartbeats.scheduleWithFixedDelay(() -> {
+            try {
+                if (post("heartbeat/" + id, "").statusCode() != 200) {
+                    LOGGER.warn("Coordinator no longer expects {} from this worker, aborting it", id);
+                    lease.abort();
+                }
+            } catch (ConnectException e) {
+                LOGGER.warn("Coordinator is gone, aborting {}", id);
+                lease.abort();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to send heartbeat for {}", id, e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        String endpoint;
+        String body;
+        MDC.put("mcver", " [" + id + "]");
+        try {
+            var path = producer.produce(id);
+            endpoint = "done/";
+            body = path == null ? "" : path;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Failed to produce {}", id, e);
+            var trace = new StringWriter();
+            e.printStackTrace(new PrintWriter(trace));
+            endpoint = "failed/";
+            body = trace.toString();
+        } finally {
+            MDC.remove("mcver");
+            heartbeats.shutdownNow();
+        }
+
+        if (lease.finish()) {
+            LOGGER.info("Discarded {} as the coordinator no longer expects it", id);
+            return;
+        }
+        if (post(endpoint + id, body).statusCode() != 200)
+            LOGGER.warn("Coordinator no longer expects {} from this worker, discarding it", id);
+    }
+
+    private HttpResponse<String> post(String path, String body) throws IOException {
+        var request = HttpRequest.newBuilder(this.coordinator.resolve(path))
+                .header(VersionCoordinator.WORKER_HEADER, this.name)
+                .timeout(REQUEST_TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        try {
+            return Util.HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while talking to coordinator", e);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a version", e);
+        }
+    }
+
+    /**
+     * Interrupts the thread producing a version once the coordinator rejects a heartbeat, unless it is already done.
+     */
+    private static final class Lease {
+        private final Thread producer;
+        private boolean producing = true;
+        private boolean aborted;
+
+        private Lease(Thread producer) {
+            this.producer = producer;
+        }
+
+        private synchronized void abort() {
+            if (this.aborted)
+                return;
+            this.aborted = true;
+            if (this.producing)
+                this.producer.interrupt();
+        }
+
+        /**
+         * Called by the producing thread once it's done, which clears its interrupt if it was aborted.
+         *
+         * @return whether the version was aborted
+         */
+        private synchronized boolean finish() {
+            this.producing = false;
+            if (this.aborted)
+                Thread.interrupted();
+            return this.aborted;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Producer {
+        /**
+         * Produces a version into the cache.
+         *
+         * @return the path of the decompiled jar relative to the cache, or {@code null} if there is nothing to commit
+         */
+        @Nullable
+        String produce(String id) throws IOException;
+    }
+}
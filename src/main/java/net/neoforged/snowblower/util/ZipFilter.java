@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Copies the entries of a zip file that match a filter into a new zip file, without decompressing them.
+ * <p>
+ * The entries are chosen from the central directory alone. The local record of each kept entry, meaning its header,
+ * its compressed data and its data descriptor if it has one, is then copied byte for byte. The central directory is
+ * copied as well, with the offsets changed to point into the new file. Zip64 files and zips spanning several disks
+ * aren't supported, which {@link #filter} reports so that the caller can fall back to a regular copy.
+ */
+public class ZipFilter {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private record Entry(String name, long offset, ByteBuffer central) {}
+
+    /**
+     * Writes the entries of {@code input} whose names are accepted by {@code keep} to {@code output}, replacing it.
+     *
+     * @return {@code false} if the input uses zip features that aren't supported, in which case nothing is written
+     */
+    public static boolean filter(Path input, Path output, Predicate<String> keep) throws IOException {
+        try (var in = FileChannel.open(input, StandardOpenOption.READ)) {
+            var end = findEnd(in);
+            if (end == null)
+                throw new IOException("Not a zip file: " + input);
+
+            int disk = Short.toUnsignedInt(end.getShort(4));
+            int centralDisk = Short.toUnsignedInt(end.getShort(6));
+            int count = Short.toUnsignedInt(end.getShort(10));
+            long centralSize = Integer.toUnsignedLong(end.getInt(12));
+            long centralOffset = Integer.toUnsignedLong(end.getInt(16));
+            long endOffset = in.size() - end.capacity();
+            if (disk != 0 || centralDisk != 0 || count == 0xFFFF || centralOffset == 0xFFFFFFFFL || isZip64(in, endOffset))
+                return false;
+
+            var central = read(in, centralOffset, (int) centralSize);
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (central.remaining() < CENTRAL_HEADER_SIZE || central.getInt(central.position()) != CENTRAL_HEADER)
+                    throw new IOException("Invalid central directory in " + input);
+
+                int start = central.position();
+                int nameLength = Short.toUnsignedInt(central.getShort(start + 28));
+                int extraLength = Short.toUnsignedInt(central.getShort(start + 30));
+                int commentLength = Short.toUnsignedInt(central.getShort(start + 32));
+                long offset = Integer.toUnsignedLong(central.getInt(start + 42));
+                if (offset == 0xFFFFFFFFL)
+                    return false;
+
+                var name = new byte[nameLength];
+                central.get(start + CENTRAL_HEADER_SIZE, name);
+                int length = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+                entries.add(new Entry(new String(name, StandardCharsets.UTF_8), offset, central.slice(start, length).order(ByteOrder.LITTLE_ENDIAN)));
+                central.position(start + length);
+            }
+
+            // A local record ends where the next one, or the central directory, starts
+            Integer[] byOffset = new Integer[entries.size()];
+            for (int i = 0; i < byOffset.length; i++)
+                byOffset[i] = i;
+            Arrays.sort(byOffset, Comparator.comparingLong(i -> entries.get(i).offset()));
+            long[] recordEnds = new long[entries.size()];
+            for (int i = 0; i < byOffset.length; i++)
+                recordEnds[byOffset[i]] = i + 1 < byOffset.length ? entries.get(byOffset[i + 1]).offset() : centralOffset;
+
+            try (var out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                var newCentral = new ByteArrayOutputStream();
+                int kept = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    var entry = entries.get(i);
+                    if (!keep.test(entry.name()))
+                        continue;
+
+                    if (read(in, entry.offset(), 4).getInt(0) != LOCAL_HEADER)
+                        throw new IOException("Invalid local header for " + entry.name() + " in " + input);
+
+                    long newOffset = out.position();
+                    if (newOffset > 0xFFFFFFFEL)
+                        throw new IOException("Filtered zip would need zip64: " + output);
+                    transfer(in, entry.offset(), recordEnds[i] - entry.offset(), out);
+
+                    var header = new byte[entry.central().capacity()];
+                    entry.central().get(0, header);
+                    ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int) newOffset);
+                    newCentral.write(header);
+                    kept++;
+                }
+
+                long newCentralOffset = out.position();
+                writeFully(out, ByteBuffer.wrap(newCentral.toByteArray()));
+
+                var newEnd = ByteBuffer.allocate(END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                newEnd.putInt(END_HEADER)
+                        .putShort((short) 0)
+                        .putShort((short) 0)
+                        .putShort((short) kept)
+                        .putShort((short) kept)
+                        .putInt(newCentral.size())
+                        .putInt((int) newCentralOffset)
+                        .putShort((short) 0);
+                writeFully(out, newEnd.flip());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the end of central directory record including its comment, or {@code null} if there is none.
+     */
+    @Nullable
+    private static ByteBuffer findEnd(FileChannel in) throws IOException {
+        long size = in.size();
+        if (size < END_HEADER_SIZE)
+            return null;
+
+        int tail = (int) Math.min(size, END_HEADER_SIZE + MAX_COMMENT);
+        var buf = read(in, size - tail, tail);
+        for (int i = tail - END_HEADER_SIZE; i >= 0; i--) {
+            // The comment has to reach exactly to the end of the file, which rules out signatures inside a comment
+            if (buf.getInt(i) == END_HEADER && i + END_HEADER_SIZE + Short.toUnsignedInt(buf.getShort(i + 20)) == tail)
+                return buf.slice(i, tail - i).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return null;
+    }
+
+    private static boolean isZip64(FileChannel in, long endOffset) throws IOException {
+        return endOffset >= ZIP64_LOCATOR_SIZE && read(in, endOffset - ZIP64_LOCATOR_SIZE, 4).getInt(0) == ZIP64_LOCATOR;
+    }
+
+    private static ByteBuffer read(FileChannel in, long position, int length) throws IOException {
+        var buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of zip file");
+        }
+        return buf.flip();
+    }
+
+    private static void transfer(FileChannel in, long position, long length, FileChannel out) throws IOException {
+        long done = 0;
+        while (done < length) {
+            long cnt = in.transferTo(position + done, length - done, out);
+            if (cnt <= 0)
+                throw new IOException("Unexpected end of zip file");
+            done += cnt;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.tasks.decompile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DecompileShardsTest {
+    private static final List<String> ARGS = List.of(
+            "--decompile-inner",
+            "--remove-bridge",
+            "--decompile-generics",
+            "--remove-synthetic",
+            "--bytecode-source-mapping",
+            "--dump-code-lines",
+            "--thread-count=1",
+            "-log=ERROR"
+    );
+    /** Several packages which depend on each other, with nested, anonymous and generic classes. */
+    private static final Map<String, String> SOURCES = Map.of(
+            "fixture/Main.java", """
+                    package fixture;
+
+                    import fixture.c.Farm;
+
+                    public class Main {
+                        public static void main(String[] args) {
+                            System.out.println(new Farm().describe());
+                        }
+                    }
+                    """,
+            "fixture/a/Animal.java", """
+                    package fixture.a;
+
+                    import java.util.ArrayList;
+                    import java.util.List;
+
+                    public abstract class Animal implements Comparable<Animal> {
+                        public abstract String sound();
+
+                        @Override
+                        public int compareTo(Animal other) {
+                            return sound().compareTo(other.sound());
+                        }
+
+                        public static class Herd<T extends Animal> {
+                            private final List<T> members = new ArrayList<>();
+
+                            public void add(T animal) {
+                                this.members.add(animal);
+                            }
+
+                            public List<T> getMembers() {
+                                return this.members;
+                            }
+                        }
+                    }
+                    """,
+            "fixture/b/Dog.java", """
+                    package fixture.b;
+
+                    import fixture.a.Animal;
+
+                    public class Dog extends Animal {
+                        private final Kind kind;
+
+                        public Dog(Kind kind) {
+                            this.kind = kind;
+                        }
+
+                        @Override
+                        public String sound() {
+                            return this.kind == Kind.SMALL ? "yip" : "woof";
+                        }
+                    }
+                    """,
+            "fixture/b/Kind.java", """
+                    package fixture.b;
+
+                    public enum Kind {
+                        SMALL,
+                        LARGE;
+                    }
+                    """,
+            "fixture/c/Farm.java", """
+                    package fixture.c;
+
+                    import fixture.a.Animal;
+                    import fixture.b.Dog;
+                    import fixture.b.Kind;
+
+                    import java.util.stream.Collectors;
+
+                    public class Farm {
+                        private final Animal.Herd<Animal> herd = new Animal.Herd<>();
+
+                        public Farm() {
+                            for (var kind : Kind.values())
+                                this.herd.add(new Dog(kind));
+                            this.herd.add(new Animal() {
+                                @Override
+                                public String sound() {
+                                    return "moo";
+                                }
+                            });
+                        }
+
+                        public String describe() {
+                            return this.herd.getMembers().stream().sorted().map(Animal::sound).collect(Collectors.joining(", "));
+                        }
+                    }
+                    """
+    );
+
+    @Test
+    void shardedMatchesMonolithic(@TempDir Path dir) throws IOException {
+        var joined = createFixture(dir);
+
+        var monolithic = dir.resolve("monolithic.jar");
+        new DecompileJob(ARGS, joined, List.of(), List.of(), dir.resolve("monolithic.cfg"), monolithic, null).run(null);
+
+        var sharded = dir.resolve("sharded.jar");
+        DecompileShards.decompile(joined, sharded, 3, (shard, prefixes) -> {
+            var partial = dir.resolve("shard-" + shard + ".jar");
+            new DecompileJob(ARGS, joined, List.of(), List.copyOf(prefixes), dir.resolve("shard-" + shard + ".cfg"), partial, null).run(null);
+            return partial;
+        });
+
+        assertSameEntries(monolithic, sharded);
+    }
+
+    private static Path createFixture(Path dir) throws IOException {
+        var sources = dir.resolve("src");
+        List<String> args = new ArrayList<>(List.of("-d", dir.resolve("classes").toString()));
+        for (var source : SOURCES.entrySet()) {
+            var file = sources.resolve(source.getKey());
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, source.getValue());
+            args.add(file.toString());
+        }
+        assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, args.toArray(String[]::new)), "Failed to compile the fixture");
+
+        var classes = dir.resolve("classes");
+        var jar = dir.resolve("joined.jar");
+        try (var out = new ZipOutputStream(Files.newOutputStream(jar));
+             Stream<Path> walker = Files.walk(classes)) {
+            for (var file : walker.filter(Files::isRegularFile).sorted().toList()) {
+                out.putNextEntry(new ZipEntry(classes.relativize(file).toString().replace('\\', '/')));
+                Files.copy(file, out);
+                out.closeEntry();
+            }
+            // Resources are copied by every shard, but only written once
+            out.putNextEntry(new ZipEntry("fixture/c/animals.txt"));
+            out.write("moo\nwoof\nyip\n".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return jar;
+    }
+
+    private static void assertSameEntries(Path expected, Path actual) throws IOException {
+        try (var expectedZip = new ZipFile(expected.toFile());
+             var actualZip = new ZipFile(actual.toFile())) {
+            var expectedNames = expectedZip.stream().map(ZipEntry::getName).toList();
+            assertEquals(expectedNames, actualZip.stream().map(ZipEntry::getName).toList());
+            assertTrue(expectedNames.contains("fixture/c/Farm.java"), "The fixture wasn't decompiled: " + expectedNames);
+
+            Set<String> withExtra = new HashSet<>();
+            for (var name : expectedNames) {
+                var expectedEntry = expectedZip.getEntry(name);
+                var actualEntry = actualZip.getEntry(name);
+                assertArrayEquals(expectedEntry.getExtra(), actualEntry.getExtra(), "Extra data of " + name);
+                if (expectedEntry.getExtra() != null)
+                    withExtra.add(name);
+                try (var expectedIn = expectedZip.getInputStream(expectedEntry);
+                     var actualIn = actualZip.getInputStream(actualEntry)) {
+                    var expectedData = expectedIn.readAllBytes();
+                    var actualData = actualIn.readAllBytes();
+                    assertTrue(Arrays.equals(expectedData, actualData), () -> "Content of " + name + " differs:\n"
+                            + new String(expectedData, StandardCharsets.UTF_8) + "\nvs\n" + new String(actualData, StandardCharsets.UTF_8));
+                }
+            }
+            // Otherwise the line mappings wouldn't be compared
+            assertTrue(!withExtra.isEmpty(), "No entry has line mappings");
+        }
+    }
+}
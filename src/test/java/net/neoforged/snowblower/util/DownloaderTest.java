@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloaderTest {
+    /** Just large enough to be fetched as several ranges. */
+    private static final byte[] LARGE = new byte[17 * 1024 * 1024];
+    /** Small enough to always be fetched in one go. */
+    private static final byte[] SMALL = new byte[1024 * 1024];
+
+    static {
+        var random = new Random(0);
+        random.nextBytes(LARGE);
+        random.nextBytes(SMALL);
+    }
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    /** The Range header of every GET request, or an empty string if it had none. */
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    /** How many more GET requests to cut off halfway through the body. */
+    private final AtomicInteger drops = new AtomicInteger();
+    private volatile byte[] data = LARGE;
+    private HttpServer server;
+    private URL url;
+
+    @BeforeEach
+    void start() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.createContext("/file", this::serve);
+        this.server.start();
+        this.url = URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + "/file").toURL();
+    }
+
+    @AfterEach
+    void stop() {
+        this.server.stop(0);
+    }
+
+    @Test
+    void rangesWithoutScheduler(@TempDir Path dir) throws IOException {
+        var file = dir.resolve("file.bin");
+        Util.downloadFile(file, this.url, HashFunction.SHA1.hash(LARGE), LARGE.length);
+
+        assertArrayEquals(LARGE, Files.readAllBytes(file));
+        assertTrue(this.maxActive.get() > 1 && this.maxActive.get() <= 4, () -> "Peak of " + this.maxActive.get() + " requests");
+        assertFalse(Files.exists(dir.resolve("file.bin.ranges")));
+    }
+
+    @Test
+    void rangesStayWithinHostLimit(@TempDir Path dir) throws IOException {
+        try (var scheduler = new DownloadScheduler(2)) {
+            var sha1 = HashFunction.SHA1.hash(LARGE);
+            for (int i = 0; i < 3; i++) {
+                var file = dir.resolve("file" + i + ".bin");
+                scheduler.submit(file, this.url, () -> Util.downloadFile(file, this.url, sha1, LARGE.length));
+            }
+            scheduler.awaitAll();
+
+            for (int i = 0; i < 3; i++)
+                assertArrayEquals(LARGE, Files.readAllBytes(dir.resolve("file" + i + ".bin")));
+        }
+        assertTrue(this.maxActive.get() <= 2, () -> "Peak of " + this.maxActive.get() + " requests");
+    }
+
+    @Test
+    void sequentialWithSingleConnection(@TempDir Path dir) throws IOException {
+        var file = dir.resolve("file.bin");
+        try (var scheduler = new DownloadScheduler(1)) {
+            scheduler.submit(file, this.url, () -> Util.downloadFile(file, this.url, HashFunction.SHA1.hash(LARGE), LARGE.length));
+            scheduler.awaitAll();
+        }
+
+        assertArrayEquals(LARGE, Files.readAllBytes(file));
+        assertEquals(1, this.maxActive.get());
+    }
+
+    @Test
+    void resumesAfterDroppedConnection(@TempDir Path dir) throws IOException {
+        this.data = SMALL;
+        this.drops.set(1);
+        var file = dir.resolve("file.bin");
+        Util.downloadFile(file, this.url, HashFunction.SHA1.hash(SMALL), SMALL.length);
+
+        assertArrayEquals(SMALL, Files.readAllBytes(file));
+        assertEquals(2, this.requests.size(), this.requests::toString);
+        assertEquals("", this.requests.get(0));
+        assertTrue(this.requests.get(1).matches("bytes=[1-9][0-9]*-"), this.requests::toString);
+    }
+
+    @Test
+    void resumesLeftoverPartFile(@TempDir Path dir) throws IOException {
+        this.data = SMALL;
+        var file = dir.resolve("file.bin");
+        Files.write(dir.resolve("file.bin.part"), Arrays.copyOf(SMALL, 1000));
+        Util.downloadFile(file, this.url, HashFunction.SHA1.hash(SMALL), SMALL.length);
+
+        assertArrayEquals(SMALL, Files.readAllBytes(file));
+        assertEquals(List.of("bytes=1000-"), this.requests);
+    }
+
+    @Test
+    void restartsBrokenPartFile(@TempDir Path dir) throws IOException {
+        this.data = SMALL;
+        var file = dir.resolve("file.bin");
+        // As complete as it gets, but with the wrong content
+        Files.write(dir.resolve("file.bin.part"), new byte[SMALL.length]);
+        Util.downloadFile(file, this.url, HashFunction.SHA1.hash(SMALL), SMALL.length);
+
+        assertArrayEquals(SMALL, Files.readAllBytes(file));
+        assertEquals(List.of(""), this.requests);
+    }
+
+    @Test
+    void ignoresLeftoverRanges(@TempDir Path dir) throws IOException {
+        var file = dir.resolve("file.bin");
+        // A killed range download leaves a file of the full size with holes
+        Files.write(dir.resolve("file.bin.ranges"), new byte[LARGE.length]);
+        Util.downloadFile(file, this.url, HashFunction.SHA1.hash(LARGE), LARGE.length);
+
+        assertArrayEquals(LARGE, Files.readAllBytes(file));
+        assertFalse(Files.exists(dir.resolve("file.bin.ranges")));
+        assertFalse(Files.exists(dir.resolve("file.bin.part")));
+    }
+
+    @Test
+    void concurrentDownloadsShareTheFile(@TempDir Path dir) throws Exception {
+        this.data = SMALL;
+        var file = dir.resolve("file.bin");
+        var sha1 = HashFunction.SHA1.hash(SMALL);
+        try (var executor = Executors.newFixedThreadPool(2)) {
+            var first = executor.submit(() -> {
+                Util.downloadFile(file, this.url, sha1, SMALL.length);
+                return null;
+            });
+            var second = executor.submit(() -> {
+                Util.downloadFile(file, this.url, sha1, SMALL.length);
+                return null;
+            });
+            first.get();
+            second.get();
+        }
+
+        assertArrayEquals(SMALL, Files.readAllBytes(file));
+        assertEquals(List.of(""), this.requests);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int current = this.active.incrementAndGet();
+        this.maxActive.accumulateAndGet(current, Math::max);
+        var data = this.data;
+        try (exchange) {
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            int first = 0;
+            int last = data.length - 1;
+            var range = exchange.getRequestHeaders().getFirst("Range");
+            this.requests.add(range == null ? "" : range);
+            if (range != null) {
+                var bounds = range.substring("bytes=".length()).split("-", -1);
+                first = Integer.parseInt(bounds[0]);
+                if (!bounds[1].isEmpty())
+                    last = Integer.parseInt(bounds[1]);
+            }
+
+            int length = last + 1 - first;
+            boolean drop = this.drops.getAndUpdate(d -> Math.max(0, d - 1)) > 0;
+            exchange.sendResponseHeaders(range == null ? 200 : 206, length);
+            var out = exchange.getResponseBody();
+            // Closing the exchange before the whole body was written closes the connection
+            int end = drop ? first + length / 2 : last + 1;
+            // Slow enough for the requests to overlap
+            for (int i = first; i < end; i += 1024 * 1024) {
+                out.write(data, i, Math.min(1024 * 1024, end - i));
+                out.flush();
+                Thread.sleep(20);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            this.active.decrementAndGet();
+        }
+    }
+}
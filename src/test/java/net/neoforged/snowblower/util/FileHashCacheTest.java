@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileHashCacheTest {
+    @Test
+    void savesOfSeveralProcessesAreMerged(@TempDir Path dir) throws IOException {
+        var file = dir.resolve("file-hashes.txt");
+        var a = dir.resolve("a.bin");
+        var b = dir.resolve("b.bin");
+        Files.writeString(a, "a");
+        Files.writeString(b, "b");
+
+        // Two processes sharing the cache directory, both loading the file before either saves
+        var first = FileHashCache.load(file);
+        var second = FileHashCache.load(file);
+        first.get(HashFunction.SHA1, a);
+        second.get(HashFunction.SHA1, b);
+        first.save();
+        second.save();
+
+        var lines = Files.readAllLines(file);
+        assertEquals(3, lines.size(), () -> String.join("\n", lines));
+        assertTrue(lines.stream().anyMatch(l -> l.startsWith(a.toAbsolutePath() + "\t")), "Hash of a.bin was dropped");
+        assertTrue(lines.stream().anyMatch(l -> l.startsWith(b.toAbsolutePath() + "\t")), "Hash of b.bin was dropped");
+    }
+
+    @Test
+    void laterHashWins(@TempDir Path dir) throws IOException {
+        var file = dir.resolve("file-hashes.txt");
+        var a = dir.resolve("a.bin");
+        Files.writeString(a, "old");
+
+        var first = FileHashCache.load(file);
+        var second = FileHashCache.load(file);
+        first.get(HashFunction.SHA1, a);
+        // The hash times are in milliseconds
+        sleep(10);
+        Files.writeString(a, "new content");
+        var expected = second.get(HashFunction.SHA1, a);
+        second.save();
+        first.save();
+
+        var lines = Files.readAllLines(file);
+        assertEquals(2, lines.size(), () -> String.join("\n", lines));
+        assertTrue(lines.get(1).endsWith("SHA1=" + expected), lines.get(1));
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class IndexSyncTest {
+    /** Like the attributes written by {@code InitTask}, plus a binary rule. */
+    private static final String ATTRIBUTES = "* text eol=lf\n*.bin binary\n";
+
+    private Path root;
+    private Git git;
+
+    @BeforeEach
+    void init(@TempDir Path dir) throws Exception {
+        this.root = dir;
+        this.git = Git.init().setDirectory(dir.toFile()).call();
+        Files.writeString(dir.resolve(".gitattributes"), ATTRIBUTES);
+        this.git.add().addFilepattern(".gitattributes").call();
+    }
+
+    @AfterEach
+    void close() {
+        this.git.close();
+    }
+
+    @Test
+    void stagesLikeGitAdd() throws Exception {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("Lf.java", bytes("class A {\n}\n"));
+        files.put("Crlf.java", bytes("class A {\r\n}\r\n"));
+        files.put("LoneCr.java", bytes("class A {\r}\r\n\rint a;"));
+        files.put("Mixed.txt", bytes("a\r\nb\nc\r\n"));
+        files.put("Binary.java", new byte[] {'a', 0, '\r', '\n', (byte) 0xFF, '\r'});
+        files.put("data/Binary.bin", new byte[] {'a', '\r', '\n', 'b', '\r', '\n'});
+
+        try (var index = new IndexSync(this.git.getRepository(), "src/main/")) {
+            for (var file : files.entrySet())
+                index.write("src/main/" + file.getKey(), file.getValue());
+            assertEquals(files.size(), index.finish());
+        }
+
+        // The same files added by git, for comparison
+        for (var file : files.entrySet()) {
+            var target = this.root.resolve("reference/" + file.getKey());
+            Files.createDirectories(target.getParent());
+            Files.write(target, file.getValue());
+        }
+        this.git.add().addFilepattern("reference").call();
+
+        var index = this.git.getRepository().readDirCache();
+        for (var file : files.keySet()) {
+            var expected = index.getEntry("reference/" + file);
+            var actual = index.getEntry("src/main/" + file);
+            assertNotNull(actual, file);
+            assertEquals(expected.getObjectId(), actual.getObjectId(), file);
+            // The working tree has the files as they were passed
+            assertArrayEquals(files.get(file), Files.readAllBytes(this.root.resolve("src/main/" + file)), file);
+        }
+        try (var inserter = this.git.getRepository().newObjectInserter()) {
+            assertEquals(inserter.idFor(Constants.OBJ_BLOB, bytes("class A {\n}\n")), index.getEntry("src/main/Crlf.java").getObjectId());
+        }
+        // Staged files aren't considered modified
+        assertEquals(Set.of(), this.git.status().call().getModified());
+    }
+
+    @Test
+    void restoresTouchedFilesWithoutFinish() throws Exception {
+        try (var index = new IndexSync(this.git.getRepository(), "src/main/")) {
+            index.write("src/main/A.java", bytes("class A {}\n"));
+            index.write("src/main/B.java", bytes("class B {}\n"));
+            index.finish();
+        }
+        var before = this.git.getRepository().readDirCache().getEntry("src/main/A.java").getObjectId();
+
+        try (var index = new IndexSync(this.git.getRepository(), "src/main/")) {
+            index.write("src/main/A.java", bytes("class A { int a; }\n"));
+            index.write("src/main/pkg/C.java", bytes("class C {}\n"));
+            // Closed without finishing, like when the decompiler fails
+        }
+
+        assertArrayEquals(bytes("class A {}\n"), Files.readAllBytes(this.root.resolve("src/main/A.java")));
+        assertArrayEquals(bytes("class B {}\n"), Files.readAllBytes(this.root.resolve("src/main/B.java")));
+        assertFalse(Files.exists(this.root.resolve("src/main/pkg/C.java")));
+
+        var index = this.git.getRepository().readDirCache();
+        assertEquals(before, index.getEntry("src/main/A.java").getObjectId());
+        assertNull(index.getEntry("src/main/pkg/C.java"));
+        // The working tree matches the index again
+        var status = this.git.status().call();
+        assertEquals(Set.of(), status.getModified());
+        assertEquals(Set.of(), status.getUntracked());
+
+        // The index was unlocked
+        new IndexSync(this.git.getRepository(), "src/main/").close();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the trees written by {@link TreeCommitter} against the ones {@link DirCache#writeTree} writes for the same files.
+ */
+class TreeCommitterTest {
+    private static final String BRANCH = "release";
+
+    /** The files the branch head should have. */
+    private final Map<String, String> files = new TreeMap<>();
+    private final Set<String> executables = new HashSet<>();
+    private Repository repo;
+    private int commits;
+
+    @BeforeEach
+    void init(@TempDir Path dir) throws Exception {
+        this.repo = Git.init().setDirectory(dir.toFile()).setBare(true).call().getRepository();
+        this.files.put("README.md", "readme\n");
+        this.files.put("src/main/java/a/A.java", "class A {}\n");
+        this.files.put("src/main/java/a/b/B.java", "class B {}\n");
+        this.files.put("src/main/java/a/b/c/C.java", "class C {}\n");
+        this.files.put("src/main/java/d/D.java", "class D {}\n");
+        this.files.put("src/main/resources/data.json", "{}\n");
+    }
+
+    @AfterEach
+    void close() {
+        this.repo.close();
+    }
+
+    @Test
+    void addChangeAndRemove() throws IOException {
+        try (var committer = new TreeCommitter(this.repo, BRANCH, false)) {
+            assertTrue(commit(committer));
+
+            this.files.put("src/main/java/a/b/B.java", "class B { int b; }\n");
+            this.files.put("src/main/java/a/b/B2.java", "class B2 {}\n");
+            this.files.remove("src/main/java/d/D.java");
+            this.files.put("src/main/java/e/E.java", "class E {}\n");
+            assertTrue(commit(committer));
+
+            this.executables.add("README.md");
+            assertTrue(commit(committer));
+
+            // Nothing changed
+            assertFalse(commit(committer));
+        }
+    }
+
+    @Test
+    void removeNestedDirectories() throws IOException {
+        try (var committer = new TreeCommitter(this.repo, BRANCH, false)) {
+            assertTrue(commit(committer));
+
+            this.files.remove("src/main/java/a/b/B.java");
+            this.files.remove("src/main/java/a/b/c/C.java");
+            assertTrue(commit(committer));
+
+            // Leaves only the root and src/main/resources
+            this.files.keySet().removeIf(path -> path.startsWith("src/main/java/"));
+            assertTrue(commit(committer));
+
+            this.files.put("src/main/java/a/b/c/C.java", "class C {}\n");
+            assertTrue(commit(committer));
+        }
+    }
+
+    @Test
+    void keepFilesOfTheBranchHead() throws IOException {
+        try (var committer = new TreeCommitter(this.repo, BRANCH, false)) {
+            assertTrue(commit(committer));
+
+            var tree = committer.newTree(path -> path.startsWith("src/main/resources/"));
+            for (var file : this.files.entrySet()) {
+                if (!file.getKey().startsWith("src/main/resources/") && !file.getKey().startsWith("src/main/java/a/"))
+                    tree.add(file.getKey(), file.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            this.files.keySet().removeIf(path -> path.startsWith("src/main/java/a/"));
+            assertTrue(tree.commit("Version " + ++this.commits, new Date(this.commits * 1000L)));
+            assertEquals(3, tree.getRemoved());
+            assertCommitted();
+        }
+    }
+
+    @Test
+    void resetReadsTheBranchHead() throws IOException {
+        try (var committer = new TreeCommitter(this.repo, BRANCH, false)) {
+            assertTrue(commit(committer));
+        }
+
+        try (var committer = new TreeCommitter(this.repo, BRANCH, false)) {
+            // Unchanged directories are carried over from the trees read back from the repository
+            this.files.put("src/main/java/a/b/c/C.java", "class C { int c; }\n");
+            assertTrue(commit(committer));
+            assertEquals(2, countCommits());
+
+            committer.reset(false);
+            this.files.remove("src/main/java/d/D.java");
+            assertTrue(commit(committer));
+            assertEquals(3, countCommits());
+
+            committer.reset(true);
+            this.files.remove("README.md");
+            assertTrue(commit(committer));
+            // Starting over has no parent, and no directories to carry over
+            assertEquals(1, countCommits());
+
+            committer.reset(true);
+            // Identical to the branch head, but it replaces the branch, so is committed
+            assertTrue(commit(committer));
+            assertEquals(1, countCommits());
+        }
+    }
+
+    /**
+     * Commits {@link #files} as a tree of their own, and checks that the branch head has the expected tree.
+     */
+    private boolean commit(TreeCommitter committer) throws IOException {
+        var tree = committer.newTree(path -> false);
+        for (var file : this.files.entrySet())
+            tree.add(file.getKey(), file.getValue().getBytes(StandardCharsets.UTF_8), mode(file.getKey()));
+        boolean committed = tree.commit("Version " + ++this.commits, new Date(this.commits * 1000L));
+        assertCommitted();
+        return committed;
+    }
+
+    private void assertCommitted() throws IOException {
+        var cache = DirCache.newInCore();
+        var builder = cache.builder();
+        try (var inserter = this.repo.newObjectInserter()) {
+            for (var file : this.files.entrySet()) {
+                var entry = new DirCacheEntry(file.getKey());
+                entry.setFileMode(mode(file.getKey()));
+                entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, file.getValue().getBytes(StandardCharsets.UTF_8)));
+                builder.add(entry);
+            }
+            builder.finish();
+            ObjectId expected = cache.writeTree(inserter);
+            inserter.flush();
+            assertEquals(expected, this.repo.resolve(BRANCH + "^{tree}"));
+        }
+    }
+
+    /**
+     * Returns the number of commits the branch has.
+     */
+    private int countCommits() throws IOException {
+        try (var walk = new RevWalk(this.repo)) {
+            walk.markStart(walk.parseCommit(this.repo.resolve(BRANCH)));
+            int count = 0;
+            for (var ignored : walk)
+                count++;
+            return count;
+        }
+    }
+
+    private FileMode mode(String path) {
+        return this.executables.contains(path) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) NeoForged
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.neoforged.snowblower.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VersionCoordinatorTest {
+    private static final HttpClient CLIENT = HttpClient.newHttpClient();
+
+    /** The versions in the order the workers started producing them. */
+    private final List<String> produced = new CopyOnWriteArrayList<>();
+    private final List<Thread> workers = new CopyOnWriteArrayList<>();
+    private final List<Throwable> errors = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void stopWorkers() throws InterruptedException {
+        for (var worker : this.workers) {
+            worker.interrupt();
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Test
+    void completesVersionsInOrder() throws Exception {
+        try (var coordinator = new VersionCoordinator(null, 0)) {
+            var a = coordinator.submit("a");
+            var b = coordinator.submit("b");
+            var c = coordinator.submit("c");
+            startWorker(coordinator, id -> "versions/" + id + ".jar");
+
+            assertEquals("versions/a.jar", get(a));
+            assertEquals("versions/b.jar", get(b));
+            assertEquals("versions/c.jar", get(c));
+        }
+        assertEquals(List.of("a", "b", "c"), this.produced);
+    }
+
+    @Test
+    void completesWithNothingToCommit() throws Exception {
+        try (var coordinator = new VersionCoordinator(null, 0)) {
+            var future = coordinator.submit("a");
+            startWorker(coordinator, id -> null);
+
+            assertNull(get(future));
+        }
+    }
+
+    @Test
+    void failsVersionsTheWorkerFailed() throws Exception {
+        try (var coordinator = new VersionCoordinator(null, 0)) {
+            var broken = coordinator.submit("broken");
+            var fine = coordinator.submit("fine");
+            startWorker(coordinator, id -> {
+                if (id.equals("broken"))
+                    throw new IOException("No mappings for " + id);
+                return "versions/" + id + ".jar";
+            });
+
+            var e = assertThrows(ExecutionException.class, () -> get(broken));
+            assertInstanceOf(IOException.class, e.getCause());
+            assertTrue(e.getCause().getMessage().contains("No mappings for broken"), e.getCause()::getMessage);
+            // The worker carries on with the next version
+            assertEquals("versions/fine.jar", get(fine));
+        }
+    }
+
+    @Test
+    void handsOutExpiredLeasesAgain() throws Exception {
+        try (var coordinator = new VersionCoordinator(null, 0, 200)) {
+            var future = coordinator.submit("a");
+            // Claims the version, then never sends a heartbeat
+            var claim = post(coordinator, "dead", "claim", "");
+            assertEquals(200, claim.statusCode());
+            assertEquals("a", claim.body());
+
+            startWorker(coordinator, id -> "versions/" + id + ".jar");
+            assertEquals("versions/a.jar", get(future));
+            // The version was handed out again, so the first worker no longer gets to report it
+            assertEquals(404, post(coordinator, "dead", "done/a", "versions/other.jar").statusCode());
+        }
+        assertEquals(List.of("a"), this.produced);
+    }
+
+    @Test
+    void tellsWorkersToStop() throws Exception {
+        var coordinator = new VersionCoordinator(null, 0);
+        // Known to the coordinator once it asked for a version
+        assertEquals(204, post(coordinator, "polling", "claim", "").statusCode());
+        var worker = startWorker(coordinator, id -> "versions/" + id + ".jar");
+
+        var closing = CompletableFuture.runAsync(coordinator::close);
+        // The coordinator waits for the workers polling it, instead of closing the port on them
+        int status;
+        do {
+            status = post(coordinator, "polling", "claim", "").statusCode();
+        } while (status != 410 && !closing.isDone());
+        assertEquals(410, status);
+
+        closing.get(10, TimeUnit.SECONDS);
+        worker.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(worker.isAlive(), "Worker still running");
+        assertTrue(this.errors.isEmpty(), this.errors::toString);
+    }
+
+    private Thread startWorker(VersionCoordinator coordinator, VersionWorker.Producer producer) {
+        var worker = new Thread(() -> {
+            try {
+                new VersionWorker(uri(coordinator)).run(id -> {
+                    this.produced.add(id);
+                    return producer.produce(id);
+                });
+            } catch (Throwable e) {
+                this.errors.add(e);
+            }
+        }, "Test-Worker");
+        worker.setDaemon(true);
+        worker.start();
+        this.workers.add(worker);
+        return worker;
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws Exception {
+        return future.get(30, TimeUnit.SECONDS);
+    }
+
+    private static URI uri(VersionCoordinator coordinator) {
+        return URI.create("http://127.0.0.1:" + coordinator.getPort() + "/");
+    }
+
+    private static HttpResponse<String> post(VersionCoordinator coordinator, String worker, String path, String body) throws Exception {
+        var request = HttpRequest.newBuilder(uri(coordinator).resolve(path))
+                .header(VersionCoordinator.WORKER_HEADER, worker)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}